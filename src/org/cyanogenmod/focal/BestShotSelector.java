@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the best scored items of a series, such as the sharpest shots of a burst, so that
+ * only those get saved. Doesn't depend on Android.
+ */
+public class BestShotSelector<T> {
+    private final int mKeep;
+    private final List<T> mItems = new ArrayList<T>();
+    private final List<Float> mScores = new ArrayList<Float>();
+
+    /**
+     * @param keep The number of items to keep
+     */
+    public BestShotSelector(int keep) {
+        mKeep = Math.max(1, keep);
+    }
+
+    /**
+     * Offers an item. When the selection is full, the lowest scored item is dropped, which
+     * may be the offered one. Ties are won by the earlier items.
+     *
+     * @return The dropped item, or null if none was
+     */
+    public synchronized T offer(T item, float score) {
+        mItems.add(item);
+        mScores.add(score);
+
+        if (mItems.size() <= mKeep) return null;
+
+        int worst = mItems.size() - 1;
+        for (int i = mItems.size() - 2; i >= 0; i--) {
+            if (mScores.get(i) < mScores.get(worst)) {
+                worst = i;
+            }
+        }
+
+        mScores.remove(worst);
+        return mItems.remove(worst);
+    }
+
+    /**
+     * Returns the kept items in the order they were offered, and empties the selection
+     */
+    public synchronized List<T> drain() {
+        List<T> items = new ArrayList<T>(mItems);
+        mItems.clear();
+        mScores.clear();
+        return items;
+    }
+
+    public synchronized int size() {
+        return mItems.size();
+    }
+}
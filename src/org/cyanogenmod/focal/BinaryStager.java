@@ -0,0 +1,285 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Stages the Hugin/enblend binaries and libraries shipped in the assets into the app data
+ * folder, where they can be executed by PicSphere and the software HDR.
+ *
+ * A manifest keeps the size and hash of every staged file along with the version of the
+ * package they come from. As long as the package doesn't change, files are only checked
+ * against their recorded size. After an update, the assets are hashed and only the files
+ * that actually changed are rewritten.
+ */
+public class BinaryStager {
+    public final static String TAG = "BinaryStager";
+
+    private final static String ASSETS_DIR = "picsphere/";
+    private final static String MANIFEST_FILE = "binaries.manifest";
+    private final static String KEY_VERSION = "version";
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final static String[] FILES = {
+            "autooptimiser", "autopano", "celeste", "enblend", "enfuse", "nona", "pano_modify",
+            "ptclean", "tiffinfo", "align_image_stack",
+            "libexiv2.so", "libglib-2.0.so", "libgmodule-2.0.so", "libgobject-2.0.so",
+            "libgthread-2.0.so", "libjpeg.so", "libpano13.so", "libtiff.so", "libtiffdecoder.so",
+            "libvigraimpex.so"
+    };
+
+    private static boolean sStaged = false;
+
+    /**
+     * Makes sure the binaries are staged, copying the missing or outdated ones. This does
+     * I/O, so it shouldn't be called from the UI thread. It returns immediately once the
+     * binaries have been staged in this process.
+     *
+     * @param context The application context
+     * @return true if the binaries are ready to be run
+     */
+    public static synchronized boolean ensureStaged(Context context) {
+        if (sStaged) return true;
+
+        long start = System.currentTimeMillis();
+        File dir = context.getFilesDir();
+        File manifestFile = new File(dir, MANIFEST_FILE);
+        Properties manifest = loadManifest(manifestFile);
+        String version = getPackageVersion(context);
+        boolean sameVersion = version.equals(manifest.getProperty(KEY_VERSION));
+        boolean success = true;
+        int copied = 0;
+
+        AssetManager am = context.getAssets();
+        for (String file : FILES) {
+            File outFile = new File(dir, file);
+            String size = manifest.getProperty(file + ".size");
+            String hash = manifest.getProperty(file + ".sha1");
+
+            // Same package and intact file: nothing to do
+            if (sameVersion && size != null && outFile.exists()
+                    && outFile.length() == Long.parseLong(size)) {
+                continue;
+            }
+
+            try {
+                // The package changed or the file was damaged, but the asset itself may be
+                // the same as the staged one
+                if (hash != null && outFile.exists()) {
+                    String[] assetInfo = hashAsset(am, file);
+                    if (assetInfo[1].equals(hash)
+                            && outFile.length() == Long.parseLong(assetInfo[0])) {
+                        manifest.setProperty(file + ".size", assetInfo[0]);
+                        continue;
+                    }
+                }
+
+                String[] copiedInfo = copyAsset(am, file, outFile);
+                manifest.setProperty(file + ".size", copiedInfo[0]);
+                manifest.setProperty(file + ".sha1", copiedInfo[1]);
+                copied++;
+            } catch (FileNotFoundException e) {
+                Log.w(TAG, "Binary " + file + " isn't shipped in this build");
+                manifest.remove(file + ".size");
+                manifest.remove(file + ".sha1");
+            } catch (IOException e) {
+                Log.e(TAG, "Error staging " + file, e);
+                manifest.remove(file + ".size");
+                manifest.remove(file + ".sha1");
+                success = false;
+            }
+        }
+
+        manifest.setProperty(KEY_VERSION, version);
+        try {
+            saveManifest(manifest, manifestFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save the binaries manifest", e);
+        }
+
+        Log.d(TAG, "Staged binaries in " + (System.currentTimeMillis() - start) + "ms, "
+                + copied + " file(s) copied");
+
+        sStaged = success;
+        return success;
+    }
+
+    /**
+     * Stages the binaries in a background thread, if it isn't done already
+     */
+    public static void ensureStagedAsync(final Context context) {
+        synchronized (BinaryStager.class) {
+            if (sStaged) return;
+        }
+
+        new Thread() {
+            public void run() {
+                ensureStaged(context);
+            }
+        }.start();
+    }
+
+    private static String getPackageVersion(Context context) {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0);
+            return info.versionCode + ":" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // Can't happen for our own package, but force a full check if it does
+            return "unknown";
+        }
+    }
+
+    /**
+     * Reads an asset to compute its size and hash
+     *
+     * @return {size, sha1}
+     */
+    private static String[] hashAsset(AssetManager am, String file) throws IOException {
+        MessageDigest digest = createDigest();
+        InputStream is = am.open(ASSETS_DIR + file);
+        long size = 0;
+
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                size += read;
+            }
+        } finally {
+            is.close();
+        }
+
+        return new String[]{Long.toString(size), toHex(digest.digest())};
+    }
+
+    /**
+     * Copies an asset to a temporary file, then renames it over the staged file so that a
+     * partial copy is never executed
+     *
+     * @return {size, sha1} of the copied data
+     */
+    private static String[] copyAsset(AssetManager am, String file, File outFile)
+            throws IOException {
+        MessageDigest digest = createDigest();
+        File tempFile = new File(outFile.getParentFile(), file + ".tmp");
+        InputStream is = am.open(ASSETS_DIR + file);
+        OutputStream os = null;
+        long size = 0;
+
+        try {
+            os = new FileOutputStream(tempFile);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                size += read;
+            }
+        } finally {
+            is.close();
+            if (os != null) {
+                os.close();
+            }
+        }
+
+        if (!file.endsWith(".so") && !tempFile.setExecutable(true)) {
+            tempFile.delete();
+            throw new IOException("Unable to make " + file + " executable");
+        }
+
+        if (!tempFile.renameTo(outFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile + " to " + outFile);
+        }
+
+        return new String[]{Long.toString(size), toHex(digest.digest())};
+    }
+
+    private static Properties loadManifest(File file) {
+        Properties manifest = new Properties();
+        if (!file.exists()) return manifest;
+
+        try {
+            InputStream is = new FileInputStream(file);
+            try {
+                manifest.load(is);
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the binaries manifest, checking all files", e);
+            manifest.clear();
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Malformed binaries manifest, checking all files", e);
+            manifest.clear();
+        }
+
+        return manifest;
+    }
+
+    private static void saveManifest(Properties manifest, File file) throws IOException {
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream os = new FileOutputStream(tempFile);
+
+        try {
+            manifest.store(os, "Staged binaries");
+        } finally {
+            os.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile);
+        }
+    }
+
+    private static MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 isn't available");
+        }
+    }
+
+    private static String toHex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+}
@@ -26,10 +26,6 @@ import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.LightingColorFilter;
 import android.graphics.Paint;
-import android.renderscript.Allocation;
-import android.renderscript.Element;
-import android.renderscript.RenderScript;
-import android.renderscript.ScriptIntrinsicBlur;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -42,10 +38,6 @@ public class BitmapFilter {
     private static BitmapFilter mSingleton;
 
     private Map<String, Bitmap> mGlowCache;
-    private RenderScript mRS;
-    private Allocation mBlurInputAllocation;
-    private Allocation mBlurOutputAllocation;
-    private ScriptIntrinsicBlur mBlurScript;
 
     public static BitmapFilter getSingleton() {
         if (mSingleton == null)
@@ -68,29 +60,7 @@ public class BitmapFilter {
      */
     public Bitmap getBlur(Context context, Bitmap src, float radius) {
         if (android.os.Build.VERSION.SDK_INT >= 17) {
-            if (mRS == null) {
-                mRS = RenderScript.create(context);
-            }
-
-            if (mBlurScript == null) {
-                mBlurScript = ScriptIntrinsicBlur.create(mRS, Element.U8_4(mRS));
-            }
-
-            if (mBlurInputAllocation == null) {
-                mBlurInputAllocation = Allocation.createFromBitmap(mRS, src,
-                        Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_GRAPHICS_TEXTURE);
-                mBlurScript.setInput(mBlurInputAllocation);
-            } else {
-                mBlurInputAllocation.copyFrom(src);
-            }
-
-            if (mBlurOutputAllocation == null) {
-                mBlurOutputAllocation = Allocation.createTyped(mRS, mBlurInputAllocation.getType());
-            }
-
-            mBlurScript.setRadius(radius);
-            mBlurScript.forEach(mBlurOutputAllocation);
-            mBlurOutputAllocation.copyTo(src);
+            ComputeContext.getSingleton().blur(context, src, radius);
         }
 
         return src;
@@ -21,14 +21,13 @@ package org.cyanogenmod.focal;
 import android.app.Activity;
 import android.app.ActivityManager;
 import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.ConfigurationInfo;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.hardware.Camera;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
 import android.os.Handler;
@@ -52,9 +51,11 @@ import android.widget.Toast;
 
 import org.cyanogenmod.focal.feats.CaptureTransformer;
 import org.cyanogenmod.focal.feats.SoftwareHdrCapture;
+import org.cyanogenmod.focal.feats.ZslCapture;
 import org.cyanogenmod.focal.pano.MosaicProxy;
 import org.cyanogenmod.focal.picsphere.PicSphereCaptureTransformer;
 import org.cyanogenmod.focal.picsphere.PicSphereManager;
+import org.cyanogenmod.focal.picsphere.SensorFusion;
 import org.cyanogenmod.focal.ui.CircleTimerView;
 import org.cyanogenmod.focal.ui.ExposureHudRing;
 import org.cyanogenmod.focal.ui.FocusHudRing;
@@ -70,6 +71,13 @@ import org.cyanogenmod.focal.ui.ThumbnailFlinger;
 import org.cyanogenmod.focal.ui.WidgetRenderer;
 import org.cyanogenmod.focal.ui.showcase.ShowcaseView;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 public class CameraActivity extends Activity implements CameraManager.CameraReadyListener, ShowcaseView.OnShowcaseEventListener {
     public final static String TAG = "CameraActivity";
 
@@ -78,6 +86,13 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
     public final static int CAMERA_MODE_PANO = 3;
     public final static int CAMERA_MODE_PICSPHERE = 4;
 
+    // Debug builds only: adb shell am start -n org.cyanogenmod.focal/.CameraActivity
+    //   --es sensor_trace record|stop|replay [--es sensor_trace_file <path>]
+    //   [--ef sensor_trace_speed <speed>]
+    private final static String EXTRA_SENSOR_TRACE = "sensor_trace";
+    private final static String EXTRA_SENSOR_TRACE_FILE = "sensor_trace_file";
+    private final static String EXTRA_SENSOR_TRACE_SPEED = "sensor_trace_speed";
+
     private static int mCameraMode = CAMERA_MODE_PHOTO;
 
     private CameraManager mCamManager;
@@ -91,6 +106,10 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
     private CaptureTransformer mCaptureTransformer;
     private Handler mHandler;
     private boolean mPaused;
+    private SensorTraceRecorder mSensorTraceRecorder;
+    private File mLastSensorTrace;
+    private SensorTracePlayer mSensorTracePlayer;
+    private Thread mSensorTraceThread;
 
     private int mOrientation = OrientationEventListener.ORIENTATION_UNKNOWN;
     private int mOrientationCompensation = 0;
@@ -237,6 +256,14 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
 
 
         startShowcaseWelcome();
+
+        handleSensorTraceIntent(getIntent());
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        handleSensorTraceIntent(intent);
     }
 
     public int getOrientation() {
@@ -301,6 +328,13 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
         // Pause the camera preview
         mPaused = true;
 
+        // The live sensors take over again on resume
+        stopSensorTraceReplay();
+
+        if (mCaptureTransformer != null) {
+            mCaptureTransformer.onPause();
+        }
+
         if (mCamManager != null) {
             mCamManager.pause();
         }
@@ -321,6 +355,8 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
             unbindService(SoftwareHdrCapture.getServiceConnection());
         }
 
+        ComputeContext.getSingleton().tearDown();
+
         super.onPause();
     }
 
@@ -446,11 +482,12 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
         mCameraMode = newMode;
 
         // Reset any capture transformer
-        mCaptureTransformer = null;
+        setCaptureTransformer(null);
 
         if (newMode == CAMERA_MODE_PHOTO) {
             mShutterButton.setImageDrawable(getResources().getDrawable(R.drawable.btn_shutter_photo));
             mCamManager.setStabilization(false);
+            restoreSoftwareZsl();
         } else if (newMode == CAMERA_MODE_VIDEO) {
             mShutterButton.setImageDrawable(getResources().getDrawable(R.drawable.btn_shutter_video));
             mCamManager.setStabilization(true);
@@ -487,14 +524,33 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
     public void setCaptureTransformer(CaptureTransformer transformer) {
         if (mCaptureTransformer != null) {
             mSnapshotManager.removeListener(mCaptureTransformer);
+            mCaptureTransformer.onDetach();
         }
         mCaptureTransformer = transformer;
 
         if (mCaptureTransformer != null) {
             mSnapshotManager.addListener(transformer);
+            mCaptureTransformer.onAttach();
         }
     }
 
+    /**
+     * Applies the stored software zero shutter lag state, when entering the photo mode
+     */
+    private void restoreSoftwareZsl() {
+        if (mSnapshotManager != null
+                && SettingsStorage.getAppSetting(this, ZslCapture.KEY_ENABLED, "0").equals("1")) {
+            setCaptureTransformer(new ZslCapture(this));
+        }
+    }
+
+    /**
+     * Returns the active capture transformer, or null if there is none
+     */
+    public CaptureTransformer getCaptureTransformer() {
+        return mCaptureTransformer;
+    }
+
     /**
      * Updates the orientation of the whole UI (in place)
      * based on the calculations given by the orientation listener
@@ -643,6 +699,10 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
                     mSnapshotManager = new SnapshotManager(mCamManager, mFocusManager, CameraActivity.this);
                     mSnapshotListener = new MainSnapshotListener();
                     mSnapshotManager.addListener(mSnapshotListener);
+
+                    if (mCameraMode == CAMERA_MODE_PHOTO) {
+                        restoreSoftwareZsl();
+                    }
                 }
 
                 // Hide sidebar after start
@@ -785,7 +845,7 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
         // Reset the normal renderer
         setGLRenderer(mCamManager.getRenderer());
 
-        // Tear down PicSphere capture system
+        // Tear down PicSphere capture system, which also stops the auto-capture
         if (mPicSphereManager != null) {
             mPicSphereManager.tearDown();
         }
@@ -945,6 +1005,206 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
 
     }
 
+    /**
+     * Records or replays a sensor trace as asked by a debug intent
+     */
+    private void handleSensorTraceIntent(Intent intent) {
+        String action = (intent != null) ? intent.getStringExtra(EXTRA_SENSOR_TRACE) : null;
+        if (action == null) return;
+
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+            Log.w(TAG, "Sensor traces are only available in debug builds");
+            return;
+        }
+
+        if (action.equals("record")) {
+            startSensorTrace();
+        } else if (action.equals("stop")) {
+            stopSensorTraceReplay();
+            File file = stopSensorTrace();
+            if (file != null) {
+                mLastSensorTrace = file;
+            }
+        } else if (action.equals("replay")) {
+            String path = intent.getStringExtra(EXTRA_SENSOR_TRACE_FILE);
+            File file = (path != null) ? new File(path) : mLastSensorTrace;
+            if (file == null) {
+                Log.e(TAG, "No sensor trace to replay");
+                return;
+            }
+            replaySensorTrace(file, intent.getFloatExtra(EXTRA_SENSOR_TRACE_SPEED, 1.0f));
+        } else {
+            Log.e(TAG, "Unknown sensor trace action " + action);
+        }
+    }
+
+    /**
+     * Starts recording the rotation vector and orientation samples, to replay them later
+     * with replaySensorTrace
+     */
+    public void startSensorTrace() {
+        if (mSensorTraceRecorder != null) return;
+
+        final SensorTraceRecorder recorder = new SensorTraceRecorder();
+        mSensorTraceRecorder = recorder;
+
+        SensorFusion fusion = (mPicSphereManager != null)
+                ? mPicSphereManager.getSensorFusion() : null;
+        if (fusion != null) {
+            fusion.setRecorder(recorder);
+        }
+    }
+
+    /**
+     * Stops recording the sensor samples, and saves them in the app external files
+     *
+     * @return The trace file, or null if nothing was recorded or it couldn't be saved
+     */
+    public File stopSensorTrace() {
+        if (mSensorTraceRecorder == null) return null;
+
+        SensorFusion fusion = (mPicSphereManager != null)
+                ? mPicSphereManager.getSensorFusion() : null;
+        if (fusion != null) {
+            fusion.setRecorder(null);
+        }
+
+        SensorTraceRecorder recorder = mSensorTraceRecorder;
+        mSensorTraceRecorder = null;
+
+        File dir = getExternalFilesDir(null);
+        if (dir == null) return null;
+        File file = new File(dir, "sensors-" + System.currentTimeMillis() + ".trace");
+
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                recorder.writeTo(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save the sensor trace", e);
+            return null;
+        }
+
+        Log.d(TAG, "Saved " + recorder.getCount() + " sensor samples to " + file);
+        return file;
+    }
+
+    /**
+     * Replays a sensor trace into the PicSphere orientation tracking and the orientation
+     * listener, in place of the live sensors. The replay stops when the activity pauses.
+     *
+     * @param file The trace recorded by startSensorTrace
+     * @param speed 1 for the original speed, more to go faster, 0 for no pause at all
+     */
+    public void replaySensorTrace(final File file, final float speed) {
+        if (mPaused || mSensorTracePlayer != null) {
+            Log.e(TAG, "Can't replay a sensor trace now");
+            return;
+        }
+
+        final SensorFusion fusion = (mPicSphereManager != null)
+                ? mPicSphereManager.getSensorFusion() : null;
+        final SensorTracePlayer player = new SensorTracePlayer();
+        mSensorTracePlayer = player;
+
+        // Only the replayed samples must reach the fusion and the orientation listener
+        if (fusion != null) {
+            fusion.onPauseOrStop();
+        }
+        mOrientationListener.disable();
+
+        mSensorTraceThread = new Thread() {
+            public void run() {
+                try {
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        int count = player.play(in,
+                                new SensorTracePlayer.Listener() {
+                            @Override
+                            public void onSensorSample(int type, long timestamp,
+                                                       long arrivalTime, float[] values) {
+                                if (type == SensorTraceRecorder.TYPE_ORIENTATION) {
+                                    final int orientation = (int) values[0];
+                                    mHandler.post(new Runnable() {
+                                        public void run() {
+                                            mOrientationListener.onOrientationChanged(
+                                                    orientation);
+                                        }
+                                    });
+                                } else if (fusion != null) {
+                                    fusion.onSensorSample(type, timestamp, arrivalTime,
+                                            values);
+                                }
+                            }
+                        }, speed, System.nanoTime());
+                        Log.d(TAG, "Replayed " + count + " sensor samples");
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to replay the sensor trace " + file, e);
+                }
+
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (mSensorTracePlayer != player) return;
+                        mSensorTracePlayer = null;
+                        mSensorTraceThread = null;
+
+                        if (!mPaused) {
+                            if (fusion != null) {
+                                fusion.onResume();
+                            }
+                            mOrientationListener.enable();
+                        }
+                    }
+                });
+            }
+        };
+        mSensorTraceThread.start();
+    }
+
+    /**
+     * Stops the sensor trace replay in progress, if any, and waits for it to be done so
+     * that no replayed sample is fed after the live ones
+     */
+    private void stopSensorTraceReplay() {
+        SensorTracePlayer player = mSensorTracePlayer;
+        Thread thread = mSensorTraceThread;
+        if (player == null) return;
+
+        mSensorTracePlayer = null;
+        mSensorTraceThread = null;
+        player.stop();
+        thread.interrupt();
+
+        boolean interrupted = false;
+        boolean joined = false;
+        while (!joined) {
+            try {
+                thread.join();
+                joined = true;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!mPaused) {
+            SensorFusion fusion = (mPicSphereManager != null)
+                    ? mPicSphereManager.getSensorFusion() : null;
+            if (fusion != null) {
+                fusion.onResume();
+            }
+            mOrientationListener.enable();
+        }
+    }
+
     /**
      * Listener that is called when the preview pauses or resumes
      */
@@ -1286,6 +1546,13 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
 
         @Override
         public void onOrientationChanged(int orientation) {
+            SensorTraceRecorder recorder = mSensorTraceRecorder;
+            if (recorder != null) {
+                long now = System.nanoTime();
+                recorder.record(SensorTraceRecorder.TYPE_ORIENTATION, now, now,
+                        new float[]{orientation});
+            }
+
             // We keep the last known orientation. So if the user first orient
             // the camera then point the camera to floor or sky, we still have
             // the correct orientation.
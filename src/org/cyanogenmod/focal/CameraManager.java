@@ -46,6 +46,7 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -80,6 +81,10 @@ public class CameraManager {
     private List<NameValuePair> mPendingParameters;
     private boolean mIsResuming;
     private CameraRenderer mRenderer;
+    private int mPictureRotation;
+    private volatile PreviewFrameListener mPreviewFrameListener;
+    // Guards the release of the camera against buffers given back from other threads
+    private final Object mReleaseLock = new Object();
 
     public interface PreviewPauseListener {
         /**
@@ -109,6 +114,21 @@ public class CameraManager {
         public void onCameraFailed();
     }
 
+    public interface PreviewFrameListener {
+        /**
+         * Called for every preview frame, from the preview callback thread. The listener may
+         * keep the buffer, which the camera won't fill again until it is given back through
+         * addPreviewBuffer.
+         *
+         * @param data The frame, in the preview format
+         * @param width The width of the frame
+         * @param height The height of the frame
+         * @param timestamp When the frame was received, in System.nanoTime() time
+         * @return true if the listener kept the buffer
+         */
+        public boolean onPreviewFrame(byte[] data, int width, int height, long timestamp);
+    }
+
     Thread mParametersThread = new Thread() {
         public void run() {
             while (true) {
@@ -314,9 +334,11 @@ public class CameraManager {
     private void releaseCamera() {
         if (mCamera != null && mCameraReady) {
             Log.v(TAG, "Releasing camera facing " + mCurrentFacing);
-            mCamera.release();
+            synchronized (mReleaseLock) {
+                mCamera.release();
+                mCamera = null;
+            }
             mCameraOpen = false;
-            mCamera = null;
             mParameters = null;
             mPreview.notifyCameraChanged(false);
             mCameraReady = true;
@@ -415,6 +437,48 @@ public class CameraManager {
         }.start();
     }
 
+    /**
+     * Sets the listener receiving the preview frames. Buffers added through
+     * addPreviewBuffer are only filled again while a listener is set.
+     *
+     * @param listener The listener, or null to stop receiving frames
+     */
+    public void setPreviewFrameListener(PreviewFrameListener listener) {
+        mPreviewFrameListener = listener;
+    }
+
+    /**
+     * Adds a buffer for the camera to fill with preview frames, or gives back a buffer
+     * kept by the preview frame listener
+     *
+     * @param buffer A buffer large enough for a frame in the preview format
+     */
+    public void addPreviewBuffer(byte[] buffer) {
+        // Can be called from any thread, while the camera is being released
+        synchronized (mReleaseLock) {
+            if (mCamera != null) {
+                mCamera.addCallbackBuffer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Returns the rotation of the pictures, as set in the camera parameters
+     */
+    public int getPictureRotation() {
+        return mPictureRotation;
+    }
+
+    /**
+     * Waits for the next preview frame and returns a copy of it, in the preview format
+     *
+     * @param timeoutMs How long to wait for the frame
+     * @return The copy, or null if no frame came in time
+     */
+    public byte[] grabPreviewFrame(long timeoutMs) {
+        return mPreview.grabNextFrame(timeoutMs);
+    }
+
     /**
      * Returns the last frame of the preview surface
      *
@@ -575,6 +639,7 @@ public class CameraManager {
             rotation = (info.orientation + orientation) % 360;
         }
 
+        mPictureRotation = rotation;
         setParameterAsync("rotation", Integer.toString(rotation));
     }
 
@@ -901,7 +966,12 @@ public class CameraManager {
 
         private SurfaceTexture mTexture;
         private byte[] mLastFrameBytes;
+        private int mPreviewWidth;
+        private int mPreviewHeight;
         private boolean mPauseCopyFrame;
+        private final Object mGrabLock = new Object();
+        private volatile boolean mGrabRequested;
+        private byte[] mGrabbedFrame;
 
         public CameraPreview(Context context) {
             super(context);
@@ -929,6 +999,8 @@ public class CameraManager {
 
         public void notifyPreviewSize(int width, int height) {
             mLastFrameBytes = new byte[(int) (width * height * 1.5 + 0.5)];
+            mPreviewWidth = width;
+            mPreviewHeight = height;
             requestLayout();
         }
 
@@ -936,6 +1008,37 @@ public class CameraManager {
             return mLastFrameBytes;
         }
 
+        /**
+         * Waits for the next frame and returns a copy of it, made before its buffer goes
+         * back to the camera
+         *
+         * @return The copy, or null if no frame came within the timeout
+         */
+        public byte[] grabNextFrame(long timeoutMs) {
+            synchronized (mGrabLock) {
+                mGrabbedFrame = null;
+                mGrabRequested = true;
+
+                final long deadline = System.currentTimeMillis() + timeoutMs;
+                while (mGrabbedFrame == null) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) break;
+
+                    try {
+                        mGrabLock.wait(left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+
+                mGrabRequested = false;
+                byte[] frame = mGrabbedFrame;
+                mGrabbedFrame = null;
+                return frame;
+            }
+        }
+
         public void notifyCameraChanged(boolean startPreview) {
             synchronized (mParametersThread) {
                 if (mCamera != null) {
@@ -1033,8 +1136,29 @@ public class CameraManager {
 
         @Override
         public void onPreviewFrame(byte[] data, Camera camera) {
+            if (mGrabRequested && data != null) {
+                synchronized (mGrabLock) {
+                    if (mGrabRequested && mGrabbedFrame == null) {
+                        mGrabbedFrame = Arrays.copyOf(data, data.length);
+                        mGrabLock.notifyAll();
+                    }
+                }
+            }
+
+            final PreviewFrameListener listener = mPreviewFrameListener;
+            if (listener != null && data != null && listener.onPreviewFrame(data,
+                    mPreviewWidth, mPreviewHeight, System.nanoTime())) {
+                // The listener gives it back when it's done with it
+                return;
+            }
+
             if (mCamera != null && !mPauseCopyFrame) {
-                mCamera.addCallbackBuffer(mLastFrameBytes);
+                if (data == null || data == mLastFrameBytes) {
+                    mCamera.addCallbackBuffer(mLastFrameBytes);
+                } else if (listener != null) {
+                    // Extra buffers are dropped once nobody listens to them anymore
+                    mCamera.addCallbackBuffer(data);
+                }
             }
         }
     }
@@ -0,0 +1,227 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.Script;
+import android.renderscript.ScriptIntrinsicBlur;
+import android.renderscript.ScriptIntrinsicYuvToRGB;
+import android.renderscript.Type;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shared RenderScript context for the image helpers. A single context is created on first
+ * use, intrinsics are cached by type and allocations by size and element, the least
+ * recently used ones being destroyed once MAX_ALLOCATIONS is reached.
+ *
+ * Every operation is synchronized, as the intrinsics and allocations are shared between
+ * the callers. RenderScript requires API 17, callers must check it beforehand.
+ */
+public class ComputeContext {
+    public final static String TAG = "ComputeContext";
+
+    private final static int MAX_ALLOCATIONS = 8;
+
+    // An operation may need several allocations of the same kind
+    private final static int SLOT_INPUT = 0;
+    private final static int SLOT_OUTPUT = 1;
+
+    private static ComputeContext mSingleton;
+
+    private RenderScript mRS;
+    private Map<Class<? extends Script>, Script> mIntrinsics;
+    private LinkedHashMap<AllocationKey, Allocation> mAllocations;
+
+    private static class AllocationKey {
+        final int width;
+        final int height;
+        final Element element;
+        final int slot;
+
+        AllocationKey(int width, int height, Element element, int slot) {
+            this.width = width;
+            this.height = height;
+            this.element = element;
+            this.slot = slot;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof AllocationKey)) return false;
+            AllocationKey other = (AllocationKey) o;
+            return width == other.width && height == other.height
+                    && element == other.element && slot == other.slot;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((width * 31 + height) * 31 + System.identityHashCode(element)) * 31 + slot;
+        }
+    }
+
+    public static synchronized ComputeContext getSingleton() {
+        if (mSingleton == null) {
+            mSingleton = new ComputeContext();
+        }
+
+        return mSingleton;
+    }
+
+    private ComputeContext() {
+        mIntrinsics = new HashMap<Class<? extends Script>, Script>();
+        mAllocations = new LinkedHashMap<AllocationKey, Allocation>(MAX_ALLOCATIONS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<AllocationKey, Allocation> eldest) {
+                if (size() > MAX_ALLOCATIONS) {
+                    eldest.getValue().destroy();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Converts YUV420SP (NV21) data into an ARGB_8888 bitmap
+     *
+     * @param context A context, used to create the RenderScript context if needed
+     * @param yuv420sp The YUV420SP data
+     * @param width Width of the picture
+     * @param height Height of the picture
+     * @return A decoded bitmap
+     */
+    public synchronized Bitmap decodeYUV420SP(Context context, byte[] yuv420sp,
+                                              int width, int height) {
+        RenderScript rs = getRenderScript(context);
+
+        ScriptIntrinsicYuvToRGB script = (ScriptIntrinsicYuvToRGB)
+                mIntrinsics.get(ScriptIntrinsicYuvToRGB.class);
+        if (script == null) {
+            script = ScriptIntrinsicYuvToRGB.create(rs, Element.RGBA_8888(rs));
+            mIntrinsics.put(ScriptIntrinsicYuvToRGB.class, script);
+        }
+
+        Allocation allocationIn = obtainAllocation(
+                (height * width) + ((height / 2) * (width / 2) * 2), 0, Element.U8(rs),
+                SLOT_INPUT);
+        Allocation allocationOut = obtainAllocation(width, height, Element.RGBA_8888(rs),
+                SLOT_OUTPUT);
+
+        Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        allocationIn.copyFrom(yuv420sp);
+        script.setInput(allocationIn);
+        script.forEach(allocationOut);
+        allocationOut.copyTo(bmp);
+
+        return bmp;
+    }
+
+    /**
+     * Blurs an ARGB_8888 bitmap in place
+     *
+     * @param context A context, used to create the RenderScript context if needed
+     * @param bitmap The bitmap to blur
+     * @param radius The blur radius, up to 25
+     */
+    public synchronized void blur(Context context, Bitmap bitmap, float radius) {
+        RenderScript rs = getRenderScript(context);
+
+        ScriptIntrinsicBlur script = (ScriptIntrinsicBlur)
+                mIntrinsics.get(ScriptIntrinsicBlur.class);
+        if (script == null) {
+            script = ScriptIntrinsicBlur.create(rs, Element.U8_4(rs));
+            mIntrinsics.put(ScriptIntrinsicBlur.class, script);
+        }
+
+        Allocation allocationIn = obtainAllocation(bitmap.getWidth(), bitmap.getHeight(),
+                Element.RGBA_8888(rs), SLOT_INPUT);
+        Allocation allocationOut = obtainAllocation(bitmap.getWidth(), bitmap.getHeight(),
+                Element.RGBA_8888(rs), SLOT_OUTPUT);
+
+        allocationIn.copyFrom(bitmap);
+        script.setInput(allocationIn);
+        script.setRadius(radius);
+        script.forEach(allocationOut);
+        allocationOut.copyTo(bitmap);
+    }
+
+    /**
+     * Destroys the cached allocations, intrinsics and the RenderScript context. They will
+     * be created again on next use.
+     */
+    public synchronized void tearDown() {
+        if (mRS == null) return;
+
+        for (Allocation allocation : mAllocations.values()) {
+            allocation.destroy();
+        }
+        mAllocations.clear();
+
+        for (Script script : mIntrinsics.values()) {
+            script.destroy();
+        }
+        mIntrinsics.clear();
+
+        mRS.destroy();
+        mRS = null;
+        Log.v(TAG, "RenderScript context destroyed");
+    }
+
+    private RenderScript getRenderScript(Context context) {
+        if (mRS == null) {
+            mRS = RenderScript.create(context.getApplicationContext());
+        }
+
+        return mRS;
+    }
+
+    /**
+     * Returns a cached allocation of the provided size and element, or creates one
+     *
+     * @param width The width of the allocation
+     * @param height The height of the allocation, or 0 for a one-dimensional allocation
+     * @param element The element of the allocation
+     * @param slot The slot of the allocation in the operation using it
+     */
+    private Allocation obtainAllocation(int width, int height, Element element, int slot) {
+        AllocationKey key = new AllocationKey(width, height, element, slot);
+        Allocation allocation = mAllocations.get(key);
+
+        if (allocation == null) {
+            Type.Builder tb = new Type.Builder(mRS, element);
+            tb.setX(width);
+            if (height > 0) {
+                tb.setY(height);
+            }
+
+            allocation = Allocation.createTyped(mRS, tb.create());
+            mAllocations.put(key, allocation);
+        }
+
+        return allocation;
+    }
+}
@@ -19,11 +19,41 @@
 
 package org.cyanogenmod.focal;
 
+import android.media.ExifInterface;
 import android.util.Log;
 
+import java.io.IOException;
+
 public class Exif {
     private static final String TAG = "CameraExif";
 
+    // Writes the orientation, in degrees clockwise, into the EXIF of a JPEG file
+    public static void writeOrientation(String path, int degrees) {
+        int orientation;
+        switch (((degrees + 45) / 90 * 90 % 360 + 360) % 360) {
+            case 90:
+                orientation = ExifInterface.ORIENTATION_ROTATE_90;
+                break;
+            case 180:
+                orientation = ExifInterface.ORIENTATION_ROTATE_180;
+                break;
+            case 270:
+                orientation = ExifInterface.ORIENTATION_ROTATE_270;
+                break;
+            default:
+                orientation = ExifInterface.ORIENTATION_NORMAL;
+                break;
+        }
+
+        try {
+            ExifInterface exif = new ExifInterface(path);
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(orientation));
+            exif.saveAttributes();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot set EXIF orientation for " + path, e);
+        }
+    }
+
     // Returns the degrees in clockwise. Values are 0, 90, 180, or 270.
     public static int getOrientation(byte[] jpeg) {
         if (jpeg == null) {
@@ -0,0 +1,554 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Baseline JPEG encoder (YCbCr 4:2:0, standard Huffman tables) fed row by row, so that
+ * images bigger than what fits in memory can be written out as they are produced. Only
+ * one strip of 16 rows is buffered at a time.
+ *
+ * This class doesn't depend on Android.
+ */
+public class JpegStreamEncoder {
+    private final static int[] ZIGZAG = {
+            0, 1, 5, 6, 14, 15, 27, 28,
+            2, 4, 7, 13, 16, 26, 29, 42,
+            3, 8, 12, 17, 25, 30, 41, 43,
+            9, 11, 18, 24, 31, 40, 44, 53,
+            10, 19, 23, 32, 39, 45, 52, 54,
+            20, 22, 33, 38, 46, 51, 55, 60,
+            21, 34, 37, 47, 50, 56, 59, 61,
+            35, 36, 48, 49, 57, 58, 62, 63
+    };
+
+    private final static int[] LUMINANCE_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    private final static int[] CHROMINANCE_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    private final static int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private final static int[] DC_LUMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private final static int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private final static int[] DC_CHROMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+    private final static int[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private final static int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+            0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1,
+            0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18,
+            0x19, 0x1a, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57,
+            0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+            0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92,
+            0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8,
+            0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+    };
+
+    private final static int[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private final static int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+            0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09,
+            0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25,
+            0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+            0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+            0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+            0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6,
+            0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+    };
+
+    // AAN DCT scale factors
+    private final static double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    // Number of rows in a strip of MCUs (4:2:0 subsampling)
+    public final static int STRIP_ROWS = 16;
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mPaddedWidth;
+
+    private final int[] mLumaTable = new int[64];
+    private final int[] mChromaTable = new int[64];
+    private final float[] mLumaDivisors = new float[64];
+    private final float[] mChromaDivisors = new float[64];
+
+    private final int[][] mDcLumaCodes;
+    private final int[][] mAcLumaCodes;
+    private final int[][] mDcChromaCodes;
+    private final int[][] mAcChromaCodes;
+
+    // Current strip, in YCbCr planes. Chroma is stored at full resolution then averaged.
+    private final float[] mStripY;
+    private final float[] mStripCb;
+    private final float[] mStripCr;
+    private int mStripFill;
+    private int mRowsWritten;
+
+    private final float[] mBlock = new float[64];
+    private final int[] mQuantized = new int[64];
+    private int mDcY, mDcCb, mDcCr;
+
+    // Bit writer state
+    private int mBitBuffer;
+    private int mBitCount;
+    private final byte[] mOutBuffer = new byte[8192];
+    private int mOutLength;
+
+    /**
+     * Starts a new JPEG image and writes its headers
+     *
+     * @param out The stream receiving the JPEG data. It's not closed by the encoder.
+     * @param width The image width
+     * @param height The image height
+     * @param quality The JPEG quality, from 1 to 100
+     * @throws IOException
+     */
+    public JpegStreamEncoder(OutputStream out, int width, int height, int quality)
+            throws IOException {
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mPaddedWidth = (width + 15) & ~15;
+
+        mStripY = new float[mPaddedWidth * STRIP_ROWS];
+        mStripCb = new float[mPaddedWidth * STRIP_ROWS];
+        mStripCr = new float[mPaddedWidth * STRIP_ROWS];
+
+        initQuantTables(quality);
+        mDcLumaCodes = buildHuffmanCodes(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        mAcLumaCodes = buildHuffmanCodes(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        mDcChromaCodes = buildHuffmanCodes(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        mAcChromaCodes = buildHuffmanCodes(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+        writeHeaders();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Appends rows of ARGB pixels to the image (alpha is ignored)
+     *
+     * @param argb The pixels
+     * @param offset Index of the first pixel of the first row
+     * @param stride Number of pixels between the start of two rows
+     * @param rows The number of rows to append
+     * @throws IOException
+     */
+    public void writeRows(int[] argb, int offset, int stride, int rows) throws IOException {
+        for (int row = 0; row < rows; row++) {
+            int src = offset + row * stride;
+            int dst = mStripFill * mPaddedWidth;
+
+            for (int x = 0; x < mWidth; x++, dst++) {
+                int color = argb[src + x];
+                float r = (color >> 16) & 0xFF;
+                float g = (color >> 8) & 0xFF;
+                float b = color & 0xFF;
+                mStripY[dst] = 0.299f * r + 0.587f * g + 0.114f * b - 128.0f;
+                mStripCb[dst] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+                mStripCr[dst] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+            }
+
+            onRowFilled();
+        }
+    }
+
+    /**
+     * Encodes a whole NV21 image (full resolution Y plane followed by the interleaved and
+     * subsampled V/U plane), strip by strip, without converting it to RGB first
+     *
+     * @param nv21 The image data, which may be larger than width * height * 3 / 2
+     * @throws IOException
+     */
+    public void writeNV21(byte[] nv21) throws IOException {
+        final int chromaOffset = mWidth * mHeight;
+
+        for (int y = mRowsWritten; y < mHeight; y++) {
+            int luma = y * mWidth;
+            int chroma = chromaOffset + (y >> 1) * mWidth;
+            int dst = mStripFill * mPaddedWidth;
+
+            for (int x = 0; x < mWidth; x++, dst++) {
+                int c = chroma + (x & ~1);
+                mStripY[dst] = (nv21[luma + x] & 0xFF) - 128.0f;
+                mStripCr[dst] = (nv21[c] & 0xFF) - 128.0f;
+                mStripCb[dst] = (nv21[c + 1] & 0xFF) - 128.0f;
+            }
+
+            onRowFilled();
+        }
+    }
+
+    private void onRowFilled() throws IOException {
+        int dst = mStripFill * mPaddedWidth;
+
+        // Replicate the last column into the padding
+        for (int x = mWidth; x < mPaddedWidth; x++) {
+            mStripY[dst + x] = mStripY[dst + mWidth - 1];
+            mStripCb[dst + x] = mStripCb[dst + mWidth - 1];
+            mStripCr[dst + x] = mStripCr[dst + mWidth - 1];
+        }
+
+        mStripFill++;
+        mRowsWritten++;
+
+        if (mStripFill == STRIP_ROWS || mRowsWritten == mHeight) {
+            encodeStrip();
+        }
+    }
+
+    /**
+     * Flushes the last strip and writes the end of the image. All the rows must have been
+     * written.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (mRowsWritten != mHeight) {
+            throw new IOException("Only " + mRowsWritten + " rows out of " + mHeight
+                    + " were written");
+        }
+
+        // Pad the remaining bits with ones
+        if (mBitCount > 0) {
+            writeBits(0x7F, 7);
+        }
+        flushBytes();
+
+        mOut.write(0xFF);
+        mOut.write(0xD9);
+        mOut.flush();
+    }
+
+    private void encodeStrip() throws IOException {
+        // Replicate the last row into the padding rows
+        for (int row = mStripFill; row < STRIP_ROWS; row++) {
+            System.arraycopy(mStripY, (mStripFill - 1) * mPaddedWidth, mStripY,
+                    row * mPaddedWidth, mPaddedWidth);
+            System.arraycopy(mStripCb, (mStripFill - 1) * mPaddedWidth, mStripCb,
+                    row * mPaddedWidth, mPaddedWidth);
+            System.arraycopy(mStripCr, (mStripFill - 1) * mPaddedWidth, mStripCr,
+                    row * mPaddedWidth, mPaddedWidth);
+        }
+
+        for (int mcuX = 0; mcuX < mPaddedWidth; mcuX += 16) {
+            // Four luma blocks
+            for (int by = 0; by < 16; by += 8) {
+                for (int bx = 0; bx < 16; bx += 8) {
+                    int base = by * mPaddedWidth + mcuX + bx;
+                    for (int i = 0; i < 8; i++) {
+                        System.arraycopy(mStripY, base + i * mPaddedWidth, mBlock, i * 8, 8);
+                    }
+                    mDcY = encodeBlock(mLumaDivisors, mDcY, mDcLumaCodes, mAcLumaCodes);
+                }
+            }
+
+            // Subsampled chroma blocks
+            loadSubsampledBlock(mStripCb, mcuX);
+            mDcCb = encodeBlock(mChromaDivisors, mDcCb, mDcChromaCodes, mAcChromaCodes);
+            loadSubsampledBlock(mStripCr, mcuX);
+            mDcCr = encodeBlock(mChromaDivisors, mDcCr, mDcChromaCodes, mAcChromaCodes);
+        }
+
+        flushBytes();
+        mStripFill = 0;
+    }
+
+    private void loadSubsampledBlock(float[] plane, int mcuX) {
+        for (int y = 0; y < 8; y++) {
+            int row0 = (y * 2) * mPaddedWidth + mcuX;
+            int row1 = row0 + mPaddedWidth;
+            for (int x = 0; x < 8; x++) {
+                int c = x * 2;
+                mBlock[y * 8 + x] = (plane[row0 + c] + plane[row0 + c + 1]
+                        + plane[row1 + c] + plane[row1 + c + 1]) * 0.25f;
+            }
+        }
+    }
+
+    /**
+     * Transforms, quantizes and entropy-codes the current block
+     *
+     * @return The DC value of the block, for the next prediction
+     */
+    private int encodeBlock(float[] divisors, int lastDc, int[][] dcCodes, int[][] acCodes)
+            throws IOException {
+        forwardDct(mBlock);
+
+        for (int i = 0; i < 64; i++) {
+            mQuantized[ZIGZAG[i]] = Math.round(mBlock[i] * divisors[i]);
+        }
+
+        // DC coefficient, predicted from the previous block of the component
+        int dc = mQuantized[0];
+        int diff = dc - lastDc;
+        writeCoefficient(diff, dcCodes, 0);
+
+        // AC coefficients, run-length coded
+        int run = 0;
+        for (int i = 1; i < 64; i++) {
+            int ac = mQuantized[i];
+            if (ac == 0) {
+                run++;
+                continue;
+            }
+
+            while (run > 15) {
+                writeBits(acCodes[0xF0][0], acCodes[0xF0][1]);
+                run -= 16;
+            }
+            writeCoefficient(ac, acCodes, run << 4);
+            run = 0;
+        }
+
+        if (run > 0) {
+            writeBits(acCodes[0x00][0], acCodes[0x00][1]);
+        }
+
+        return dc;
+    }
+
+    private void writeCoefficient(int value, int[][] codes, int symbolBase) throws IOException {
+        int magnitude = value < 0 ? -value : value;
+        int size = 0;
+        while (magnitude > 0) {
+            size++;
+            magnitude >>= 1;
+        }
+
+        int[] code = codes[symbolBase | size];
+        writeBits(code[0], code[1]);
+
+        if (size > 0) {
+            int bits = value < 0 ? value - 1 : value;
+            writeBits(bits & ((1 << size) - 1), size);
+        }
+    }
+
+    private void writeBits(int bits, int count) throws IOException {
+        mBitBuffer = (mBitBuffer << count) | (bits & ((1 << count) - 1));
+        mBitCount += count;
+
+        while (mBitCount >= 8) {
+            int b = (mBitBuffer >> (mBitCount - 8)) & 0xFF;
+            putByte(b);
+            if (b == 0xFF) {
+                putByte(0);
+            }
+            mBitCount -= 8;
+        }
+    }
+
+    private void putByte(int b) throws IOException {
+        if (mOutLength == mOutBuffer.length) {
+            flushBytes();
+        }
+        mOutBuffer[mOutLength++] = (byte) b;
+    }
+
+    private void flushBytes() throws IOException {
+        mOut.write(mOutBuffer, 0, mOutLength);
+        mOutLength = 0;
+    }
+
+    private void initQuantTables(int quality) {
+        quality = Math.max(1, Math.min(100, quality));
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+
+        for (int i = 0; i < 64; i++) {
+            mLumaTable[ZIGZAG[i]] = clampQuant((LUMINANCE_QUANT[i] * scale + 50) / 100);
+            mChromaTable[ZIGZAG[i]] = clampQuant((CHROMINANCE_QUANT[i] * scale + 50) / 100);
+        }
+
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                int i = row * 8 + col;
+                double aan = AAN_SCALE[row] * AAN_SCALE[col] * 8.0;
+                mLumaDivisors[i] = (float) (1.0 / (mLumaTable[ZIGZAG[i]] * aan));
+                mChromaDivisors[i] = (float) (1.0 / (mChromaTable[ZIGZAG[i]] * aan));
+            }
+        }
+    }
+
+    private static int clampQuant(int value) {
+        return Math.max(1, Math.min(255, value));
+    }
+
+    /**
+     * Builds the {code, length} table of each symbol out of the JPEG bits/values lists
+     */
+    private static int[][] buildHuffmanCodes(int[] bits, int[] values) {
+        int[][] codes = new int[256][];
+        int code = 0;
+        int k = 0;
+
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++) {
+                codes[values[k++]] = new int[]{code, length};
+                code++;
+            }
+            code <<= 1;
+        }
+
+        return codes;
+    }
+
+    /**
+     * Float AAN forward DCT, in place. Outputs are scaled by the AAN factors, which are folded
+     * into the quantization divisors.
+     */
+    private static void forwardDct(float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            // First pass on rows, second on columns
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+
+            for (int line = 0; line < 8; line++) {
+                int p = line * next;
+                float d0 = data[p], d1 = data[p + step], d2 = data[p + 2 * step],
+                        d3 = data[p + 3 * step], d4 = data[p + 4 * step],
+                        d5 = data[p + 5 * step], d6 = data[p + 6 * step],
+                        d7 = data[p + 7 * step];
+
+                float tmp0 = d0 + d7, tmp7 = d0 - d7;
+                float tmp1 = d1 + d6, tmp6 = d1 - d6;
+                float tmp2 = d2 + d5, tmp5 = d2 - d5;
+                float tmp3 = d3 + d4, tmp4 = d3 - d4;
+
+                // Even part
+                float tmp10 = tmp0 + tmp3, tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2, tmp12 = tmp1 - tmp2;
+                data[p] = tmp10 + tmp11;
+                data[p + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[p + 2 * step] = tmp13 + z1;
+                data[p + 6 * step] = tmp13 - z1;
+
+                // Odd part
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                data[p + 5 * step] = z13 + z2;
+                data[p + 3 * step] = z13 - z2;
+                data[p + step] = z11 + z4;
+                data[p + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    private void writeHeaders() throws IOException {
+        // SOI
+        writeMarker(0xD8);
+
+        // APP0 (JFIF)
+        writeMarker(0xE0);
+        writeShort(16);
+        mOut.write(new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+
+        // DQT
+        writeMarker(0xDB);
+        writeShort(2 + 2 * 65);
+        mOut.write(0);
+        for (int i = 0; i < 64; i++) mOut.write(mLumaTable[i]);
+        mOut.write(1);
+        for (int i = 0; i < 64; i++) mOut.write(mChromaTable[i]);
+
+        // SOF0: 3 components, luma sampled 2x2, chroma 1x1
+        writeMarker(0xC0);
+        writeShort(17);
+        mOut.write(8);
+        writeShort(mHeight);
+        writeShort(mWidth);
+        mOut.write(3);
+        mOut.write(new byte[]{1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+
+        // DHT
+        writeMarker(0xC4);
+        int length = 2 + 4 * 17 + DC_LUMINANCE_VALUES.length + AC_LUMINANCE_VALUES.length
+                + DC_CHROMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length;
+        writeShort(length);
+        writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+        // SOS
+        writeMarker(0xDA);
+        writeShort(12);
+        mOut.write(new byte[]{3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+    }
+
+    private void writeHuffmanTable(int id, int[] bits, int[] values) throws IOException {
+        mOut.write(id);
+        for (int b : bits) mOut.write(b);
+        for (int v : values) mOut.write(v);
+    }
+
+    private void writeMarker(int marker) throws IOException {
+        mOut.write(0xFF);
+        mOut.write(marker);
+    }
+
+    private void writeShort(int value) throws IOException {
+        mOut.write((value >> 8) & 0xFF);
+        mOut.write(value & 0xFF);
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.util.Log;
+
+/**
+ * Tracks how much the device is shaking, from the gyroscope, so that shots can be held
+ * back until the hands are steady instead of coming out blurry.
+ *
+ * The squared angular speed is integrated into an exponentially decaying energy, which is
+ * cheap to update and smooth enough to compare against a threshold.
+ */
+public class MotionMonitor implements SensorEventListener {
+    public final static String TAG = "MotionMonitor";
+
+    // Below this energy, in (rad/s)², a shot at usual shutter speeds isn't blurred by motion
+    public final static float DEFAULT_THRESHOLD = 0.01f;
+
+    private final static int SAMPLING_PERIOD_US = 10000;
+    // Time constant of the energy decay
+    private final static float TIME_CONSTANT_NS = 100000000.0f;
+    // Samples older than this aren't trusted to reflect the current motion
+    private final static long STALE_NS = 200000000L;
+
+    private final SensorManager mSensorManager;
+    private final Sensor mGyroscope;
+    private final Object mLock = new Object();
+    private boolean mRunning;
+    private float mEnergy;
+    private long mLastTimestamp = -1;
+    private long mLastArrivalTime;
+
+    private int mShotCount;
+    private int mGatedCount;
+    private int mTimedOutCount;
+    private long mTotalWaitNs;
+
+    public MotionMonitor(Context context) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mGyroscope = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+
+        if (mGyroscope == null) {
+            Log.w(TAG, "No gyroscope, shots won't be gated on motion");
+        }
+    }
+
+    /**
+     * Starts listening to the gyroscope
+     */
+    public void start() {
+        if (mGyroscope == null || mRunning) return;
+
+        mSensorManager.registerListener(this, mGyroscope, SAMPLING_PERIOD_US);
+        mRunning = true;
+    }
+
+    /**
+     * Stops listening to the gyroscope and forgets the current motion
+     */
+    public void stop() {
+        if (!mRunning) return;
+
+        mSensorManager.unregisterListener(this);
+        mRunning = false;
+
+        synchronized (mLock) {
+            mEnergy = 0;
+            mLastTimestamp = -1;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        addSample(event.timestamp, event.values[0], event.values[1], event.values[2]);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    /**
+     * Integrates a gyroscope sample
+     *
+     * @param timestamp The time of the sample, in nanoseconds
+     * @param x, y, z The angular speed around each axis, in rad/s
+     */
+    public void addSample(long timestamp, float x, float y, float z) {
+        final float magnitude = x * x + y * y + z * z;
+
+        synchronized (mLock) {
+            if (mLastTimestamp < 0 || timestamp <= mLastTimestamp) {
+                mEnergy = magnitude;
+            } else {
+                float alpha = 1.0f - (float) Math.exp(-(timestamp - mLastTimestamp)
+                        / TIME_CONSTANT_NS);
+                mEnergy += alpha * (magnitude - mEnergy);
+            }
+
+            mLastTimestamp = timestamp;
+            mLastArrivalTime = System.nanoTime();
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return The current motion energy, in (rad/s)²
+     */
+    public float getEnergy() {
+        synchronized (mLock) {
+            return mEnergy;
+        }
+    }
+
+    /**
+     * Blocks until the motion energy drops below a threshold, or a deadline passes. Returns
+     * immediately if there is no recent gyroscope data to judge from.
+     *
+     * @param threshold The energy to wait for, in (rad/s)²
+     * @param deadlineMs How long to wait at most, in milliseconds
+     * @return How long was waited, in milliseconds
+     */
+    public long waitForStill(float threshold, long deadlineMs) {
+        final long start = System.nanoTime();
+        final long deadline = start + deadlineMs * 1000000L;
+        boolean gated = false;
+        boolean timedOut = false;
+
+        synchronized (mLock) {
+            while (mEnergy >= threshold && mLastTimestamp >= 0
+                    && System.nanoTime() - mLastArrivalTime < STALE_NS) {
+                final long remaining = deadline - System.nanoTime();
+                gated = true;
+                if (remaining <= 0) {
+                    timedOut = true;
+                    break;
+                }
+
+                try {
+                    mLock.wait(Math.max(1, remaining / 1000000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            final long waited = System.nanoTime() - start;
+            mShotCount++;
+            if (gated) {
+                mGatedCount++;
+                mTotalWaitNs += waited;
+            }
+            if (timedOut) {
+                mTimedOutCount++;
+            }
+
+            return gated ? waited / 1000000L : 0;
+        }
+    }
+
+    /**
+     * @return The number of shots that went through the gate
+     */
+    public int getShotCount() {
+        synchronized (mLock) {
+            return mShotCount;
+        }
+    }
+
+    /**
+     * @return The number of shots that had to wait for the motion to settle
+     */
+    public int getGatedCount() {
+        synchronized (mLock) {
+            return mGatedCount;
+        }
+    }
+
+    /**
+     * @return The number of shots taken anyway because the motion didn't settle in time
+     */
+    public int getTimedOutCount() {
+        synchronized (mLock) {
+            return mTimedOutCount;
+        }
+    }
+
+    /**
+     * @return The total time shots waited at the gate, in milliseconds
+     */
+    public long getTotalWaitMs() {
+        synchronized (mLock) {
+            return mTotalWaitNs / 1000000L;
+        }
+    }
+
+    public void resetStats() {
+        synchronized (mLock) {
+            mShotCount = 0;
+            mGatedCount = 0;
+            mTimedOutCount = 0;
+            mTotalWaitNs = 0;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Replays a trace recorded by SensorTraceRecorder, at its original speed, faster, or as
+ * fast as possible. The replayed times are shifted so that the trace starts at a given
+ * time, which makes replays deterministic when that time is fixed. Doesn't depend on
+ * Android.
+ *
+ * A player is single-use: once stopped, even before it started playing, it doesn't replay
+ * anything anymore.
+ */
+public class SensorTracePlayer {
+    /**
+     * Receives the replayed samples, on the thread replaying them
+     */
+    public interface Listener {
+        /**
+         * @param type One of the SensorTraceRecorder.TYPE_ constants
+         * @param timestamp The timestamp of the sample, in the sensor clock
+         * @param arrivalTime When the sample was received, in System.nanoTime() base
+         * @param values The values of the sample. The array is reused for the next samples.
+         */
+        void onSensorSample(int type, long timestamp, long arrivalTime, float[] values);
+    }
+
+    private final float[][] mValues = new float[256][];
+    private volatile boolean mStopped;
+
+    /**
+     * Replays a trace, blocking until it is done or stopped
+     *
+     * @param in The trace
+     * @param listener The listener to replay the samples to
+     * @param speed 1 for the original speed, more to go faster, 0 for no pause at all
+     * @param startTime The arrival time of the first replayed sample
+     * @return The number of replayed samples
+     */
+    public int play(InputStream in, Listener listener, float speed, long startTime)
+            throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != SensorTraceRecorder.MAGIC) {
+            throw new IOException("Not a sensor trace");
+        }
+        int version = data.readUnsignedByte();
+        if (version != SensorTraceRecorder.VERSION) {
+            throw new IOException("Unsupported sensor trace version " + version);
+        }
+
+        long arrivalTime = 0;
+        long timestamp = 0;
+        long firstArrivalTime = 0;
+        long playStart = System.nanoTime();
+        int count = 0;
+
+        while (!mStopped && !Thread.currentThread().isInterrupted()) {
+            int type;
+            try {
+                type = data.readUnsignedByte();
+            } catch (EOFException e) {
+                break;
+            }
+
+            arrivalTime += readVarLong(data);
+            timestamp += readVarLong(data);
+            int length = data.readUnsignedByte();
+            float[] values = mValues[length];
+            if (values == null) {
+                values = new float[length];
+                mValues[length] = values;
+            }
+            for (int i = 0; i < length; i++) {
+                values[i] = data.readFloat();
+            }
+
+            if (count == 0) {
+                firstArrivalTime = arrivalTime;
+            }
+            final long elapsed = arrivalTime - firstArrivalTime;
+
+            if (speed > 0) {
+                long wait = playStart + (long) (elapsed / speed) - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+
+                if (mStopped) {
+                    break;
+                }
+            }
+
+            // Shift both clocks the same way, so that they keep their relation
+            final long shift = startTime - firstArrivalTime;
+            listener.onSensorSample(type, timestamp + shift, arrivalTime + shift, values);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Stops the replay in progress, or the one about to start
+     */
+    public void stop() {
+        mStopped = true;
+    }
+
+    private static long readVarLong(DataInputStream data) throws IOException {
+        long zigzag = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data.readUnsignedByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records sensor samples into a compact binary trace, which SensorTracePlayer can replay
+ * to drive the orientation-dependent code without a device.
+ *
+ * The trace is kept in memory while recording, so that nothing blocks the sensor thread on
+ * I/O, and written out once done. Each record holds its type, the delta of its arrival
+ * time and sensor timestamp against the previous record as variable-length integers, and
+ * its values. Doesn't depend on Android.
+ */
+public class SensorTraceRecorder {
+    public final static int MAGIC = 0x46535452;
+    public final static int VERSION = 1;
+
+    // Types of the recorded samples
+    public final static int TYPE_ROTATION_VECTOR = 1;
+    // 2 was used for accelerometer samples, which nothing replays
+    // Values are the orientation in degrees, as given by OrientationEventListener
+    public final static int TYPE_ORIENTATION = 3;
+
+    private final ByteArrayOutputStream mBuffer;
+    private final DataOutputStream mOut;
+    private long mLastArrivalTime;
+    private long mLastTimestamp;
+    private int mCount;
+
+    public SensorTraceRecorder() {
+        mBuffer = new ByteArrayOutputStream();
+        mOut = new DataOutputStream(mBuffer);
+
+        try {
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(VERSION);
+        } catch (IOException e) {
+            // Can't happen with a memory stream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Records a sample. Can be called from several threads.
+     *
+     * @param type One of the TYPE_ constants
+     * @param timestamp The timestamp of the sample, in the sensor clock
+     * @param arrivalTime When the sample was received, in System.nanoTime() base
+     * @param values The values of the sample, 255 at most
+     */
+    public synchronized void record(int type, long timestamp, long arrivalTime,
+                                    float[] values) {
+        try {
+            mOut.writeByte(type);
+            writeVarLong(arrivalTime - mLastArrivalTime);
+            writeVarLong(timestamp - mLastTimestamp);
+            mOut.writeByte(values.length);
+            for (float value : values) {
+                mOut.writeFloat(value);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        mLastArrivalTime = arrivalTime;
+        mLastTimestamp = timestamp;
+        mCount++;
+    }
+
+    /**
+     * @return The number of samples recorded
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Writes the trace recorded so far
+     */
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        mOut.flush();
+        mBuffer.writeTo(out);
+    }
+
+    /**
+     * Writes a zigzag-encoded variable-length integer, 7 bits per byte
+     */
+    private void writeVarLong(long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            mOut.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        mOut.writeByte((int) zigzag);
+    }
+}
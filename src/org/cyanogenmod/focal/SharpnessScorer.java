@@ -0,0 +1,271 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+/**
+ * Scores how sharp a preview frame is, with the variance of the Laplacian of its luma
+ * plane downsampled 2x2. Blurry frames have few edges, so their Laplacian is flat and its
+ * variance low. Scores are only comparable between frames of the same scene and size.
+ *
+ * The rows are split in stripes scored in parallel by worker threads, which are started
+ * once. Scoring doesn't allocate once the row buffers fit the frame width. Doesn't depend
+ * on Android.
+ */
+public class SharpnessScorer {
+    public final static String TAG = "SharpnessScorer";
+
+    private final static int MAX_STRIPES = 4;
+
+    private final Stripe[] mStripes;
+    private final Worker[] mWorkers;
+    private final Object mLock = new Object();
+    private int mGeneration;
+    private int mPending;
+    private boolean mReleased;
+
+    // The frame being scored
+    private byte[] mData;
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * Scores the luma of one stripe of rows
+     */
+    private static class Stripe {
+        private final int mIndex;
+        private final int mCount;
+        private int[] mRows = new int[0];
+        private long mSum;
+        private long mSumSquares;
+        private long mSamples;
+
+        Stripe(int index, int count) {
+            mIndex = index;
+            mCount = count;
+        }
+
+        void score(byte[] data, int width, int height) {
+            mSum = 0;
+            mSumSquares = 0;
+            mSamples = 0;
+
+            final int dw = width / 2;
+            final int dh = height / 2;
+            if (dw < 3 || dh < 3) return;
+
+            if (mRows.length < dw * 3) {
+                mRows = new int[dw * 3];
+            }
+
+            // Border rows have no Laplacian
+            final int first = 1 + (dh - 2) * mIndex / mCount;
+            final int last = 1 + (dh - 2) * (mIndex + 1) / mCount;
+            if (first >= last) return;
+
+            downsampleRow(data, width, dw, first - 1);
+            downsampleRow(data, width, dw, first);
+
+            long sum = 0;
+            long sumSquares = 0;
+            for (int y = first; y < last; y++) {
+                downsampleRow(data, width, dw, y + 1);
+
+                final int up = ((y - 1) % 3) * dw;
+                final int center = (y % 3) * dw;
+                final int down = ((y + 1) % 3) * dw;
+                for (int x = 1; x < dw - 1; x++) {
+                    final int laplacian = 4 * mRows[center + x] - mRows[center + x - 1]
+                            - mRows[center + x + 1] - mRows[up + x] - mRows[down + x];
+                    sum += laplacian;
+                    sumSquares += laplacian * laplacian;
+                }
+            }
+
+            mSum = sum;
+            mSumSquares = sumSquares;
+            mSamples = (long) (last - first) * (dw - 2);
+        }
+
+        /**
+         * Sums the 2x2 blocks of a row pair into the row ring
+         */
+        private void downsampleRow(byte[] data, int width, int dw, int y) {
+            final int offset = (y % 3) * dw;
+            int i = y * 2 * width;
+            for (int x = 0; x < dw; x++, i += 2) {
+                mRows[offset + x] = (data[i] & 0xFF) + (data[i + 1] & 0xFF)
+                        + (data[i + width] & 0xFF) + (data[i + width + 1] & 0xFF);
+            }
+        }
+    }
+
+    private class Worker extends Thread {
+        private final Stripe mStripe;
+        private int mDoneGeneration;
+
+        Worker(Stripe stripe) {
+            super(TAG);
+            mStripe = stripe;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                byte[] data;
+                int width, height;
+                synchronized (mLock) {
+                    while (mGeneration == mDoneGeneration && !mReleased) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            // Only released stops us
+                        }
+                    }
+                    if (mReleased) return;
+
+                    mDoneGeneration = mGeneration;
+                    data = mData;
+                    width = mWidth;
+                    height = mHeight;
+                }
+
+                mStripe.score(data, width, height);
+
+                synchronized (mLock) {
+                    mPending--;
+                    if (mPending == 0) {
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    public SharpnessScorer() {
+        this(Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param stripes The number of stripes to score in parallel
+     */
+    public SharpnessScorer(int stripes) {
+        stripes = Math.max(1, stripes);
+        mStripes = new Stripe[stripes];
+        mWorkers = new Worker[stripes - 1];
+
+        for (int i = 0; i < stripes; i++) {
+            mStripes[i] = new Stripe(i, stripes);
+        }
+
+        // The calling thread scores the first stripe itself
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker(mStripes[i + 1]);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Scores a frame
+     *
+     * @param data The frame, starting with its luma plane (NV21 or any YUV 4:2:0 layout)
+     * @param width The width of the frame
+     * @param height The height of the frame
+     * @return The sharpness, or 0 if the frame is too small
+     */
+    public synchronized float score(byte[] data, int width, int height) {
+        synchronized (mLock) {
+            if (mReleased) {
+                throw new IllegalStateException("Scorer has been released");
+            }
+
+            mData = data;
+            mWidth = width;
+            mHeight = height;
+            mPending = mWorkers.length;
+            mGeneration++;
+            mLock.notifyAll();
+        }
+
+        mStripes[0].score(data, width, height);
+
+        boolean interrupted = false;
+        synchronized (mLock) {
+            while (mPending > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    // The workers are still using the frame, wait for them anyway
+                    interrupted = true;
+                }
+            }
+            mData = null;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        long sum = 0;
+        long sumSquares = 0;
+        long samples = 0;
+        for (Stripe stripe : mStripes) {
+            sum += stripe.mSum;
+            sumSquares += stripe.mSumSquares;
+            samples += stripe.mSamples;
+        }
+
+        if (samples == 0) return 0;
+
+        // The blocks are sums of 4 pixels, which scales the variance by 16
+        final double mean = (double) sum / samples;
+        return (float) (((double) sumSquares / samples - mean * mean) / 16.0);
+    }
+
+    /**
+     * Measures the time taken to score frames of a given size
+     *
+     * @return The average time per frame, in nanoseconds
+     */
+    public long benchmark(int width, int height, int iterations) {
+        byte[] frame = new byte[width * height * 3 / 2];
+        for (int i = 0; i < width * height; i++) {
+            frame[i] = (byte) ((i * 7919) ^ (i / width * 31));
+        }
+
+        // Warm up the code paths before measuring
+        score(frame, width, height);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            score(frame, width, height);
+        }
+        return (System.nanoTime() - start) / Math.max(1, iterations);
+    }
+
+    /**
+     * Stops the worker threads, once the frame being scored if any is done. The scorer
+     * can't be used afterwards.
+     */
+    public synchronized void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            mLock.notifyAll();
+        }
+    }
+}
@@ -43,7 +43,10 @@ import com.drew.metadata.Metadata;
 import com.drew.metadata.Tag;
 
 import org.cyanogenmod.focal.feats.AutoPictureEnhancer;
+import org.cyanogenmod.focal.feats.BitmapImage;
+import org.cyanogenmod.focal.feats.CpuPictureEnhancer;
 import org.cyanogenmod.focal.feats.PixelBuffer;
+import org.cyanogenmod.focal.feats.ToneCurve;
 import org.cyanogenmod.focal.widgets.SimpleToggleWidget;
 
 import java.io.BufferedInputStream;
@@ -59,6 +62,10 @@ import java.util.List;
  */
 public class SnapshotManager {
     public final static String TAG = "SnapshotManager";
+    // How long a shot may be held back waiting for the device to stop shaking
+    public final static long DEFAULT_GATE_DEADLINE_MS = 300;
+    // How long to wait for a preview frame to score, about a few frames
+    private final static long PREVIEW_GRAB_TIMEOUT_MS = 200;
     private boolean mPaused;
 
     public interface SnapshotListener {
@@ -132,6 +139,15 @@ public class SnapshotManager {
 
         // Whether or not to bypass image processing (even if user enabled it)
         public boolean mBypassProcessing;
+
+        // The auto-enhancement curve, estimated from the preview while the picture is
+        // being captured, and the thread estimating it
+        public ToneCurve mToneCurve;
+        public Thread mToneCurveEstimator;
+
+        // The sharpness of the last preview frame before the shutter, or -1 if it wasn't
+        // scored
+        public float mSharpness = -1;
     }
 
 
@@ -139,9 +155,16 @@ public class SnapshotManager {
     private CameraManager mCameraManager;
     private FocusManager mFocusManager;
     private boolean mBypassProcessing;
+    private MotionMonitor mMotionMonitor;
+    private volatile float mGateThreshold = MotionMonitor.DEFAULT_THRESHOLD;
+    private volatile long mGateDeadlineMs = DEFAULT_GATE_DEADLINE_MS;
+    private volatile SharpnessScorer mSharpnessScorer;
+    private volatile boolean mScoreSharpness;
+    private volatile BestShotSelector<SaveRequest> mBestShots;
+    private boolean mFinishingBestShots;
 
     // Photo-related variables
-    private boolean mWaitExposureSettle;
+    private volatile boolean mWaitExposureSettle;
     private int mResetExposure;
     private List<SnapshotInfo> mSnapshotsQueue;
     private int mCurrentShutterQueueIndex;
@@ -188,6 +211,19 @@ public class SnapshotManager {
                 listener.onSnapshotShutter(snap);
             }
 
+            // Estimate the enhancement from the preview while the JPEG is on its way. Shots
+            // with a specific exposure don't look like the preview, they are estimated from
+            // the JPEG itself.
+            if (mDoAutoEnhance && !snap.mBypassProcessing && snap.mThumbnail != null
+                    && snap.mExposureCompensation == 0) {
+                snap.mToneCurveEstimator = new Thread() {
+                    public void run() {
+                        snap.mToneCurve = AutoPictureEnhancer.computeCurve(snap.mThumbnail);
+                    }
+                };
+                snap.mToneCurveEstimator.start();
+            }
+
             // If we used Samsung HDR, reset exposure
             if (mContext.getResources().getBoolean(R.bool.config_useSamsungHDR) &&
                 SimpleToggleWidget.isWidgetEnabled(mContext, mCameraManager, "scene-mode", "hdr")) {
@@ -258,19 +294,65 @@ public class SnapshotManager {
                                 Log.e(TAG, "Error processing input JPEG", e);
                             }
 
-                            // XXX: PixelBuffer has to be created every time because the GL context
-                            // can only be used from its original thread. It's not very intense, but
-                            // ideally we would be re-using the same thread every time.
-                            mOffscreenGL = new PixelBuffer(mContext, s.width, s.height);
-                            mAutoPicEnhancer = new AutoPictureEnhancer(mContext);
-                            mOffscreenGL.setRenderer(mAutoPicEnhancer);
-                            mAutoPicEnhancer.setTexture(BitmapFactory.decodeByteArray(finalData, 0, finalData.length));
+                            // Only the lookup of the enhancement curve is done at full resolution
+                            ToneCurve curve = getToneCurve(snap, finalData);
+
+                            // Interrupted while waiting for the estimate, save the original
+                            final boolean interrupted = Thread.currentThread().isInterrupted();
+                            if (interrupted) {
+                                Log.w(TAG, "Enhancement interrupted, saving the original");
+                            }
+
+                            // Large pictures are enhanced in place
+                            BitmapFactory.Options opts = new BitmapFactory.Options();
+                            opts.inMutable = true;
+                            Bitmap picture = interrupted ? null : BitmapFactory.decodeByteArray(
+                                    finalData, 0, finalData.length, opts);
+                            Bitmap enhanced = null;
+
+                            if (!interrupted && (long) s.width * s.height
+                                    < mContext.getResources().getInteger(
+                                    R.integer.config_autoEnhanceCpuMinPixels)) {
+                                // XXX: PixelBuffer has to be created every time because the GL context
+                                // can only be used from its original thread. It's not very intense, but
+                                // ideally we would be re-using the same thread every time.
+                                mOffscreenGL = new PixelBuffer(mContext, s.width, s.height);
+                                if (mOffscreenGL.isValid()) {
+                                    mAutoPicEnhancer = new AutoPictureEnhancer(mContext);
+                                    mOffscreenGL.setRenderer(mAutoPicEnhancer);
+                                    mAutoPicEnhancer.setCurve(curve);
+                                    mAutoPicEnhancer.setTexture(picture);
+                                    enhanced = mOffscreenGL.getBitmap();
+                                } else {
+                                    Log.w(TAG, "No offscreen GL context, enhancing on the CPU");
+                                }
+                            }
+
+                            if (enhanced == null && !interrupted) {
+                                CpuPictureEnhancer enhancer = new CpuPictureEnhancer();
+                                boolean done;
+                                if (curve != null) {
+                                    done = enhancer.apply(new BitmapImage(picture), curve);
+                                } else {
+                                    done = enhancer.enhance(new BitmapImage(picture));
+                                }
 
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            mOffscreenGL.getBitmap().compress(Bitmap.CompressFormat.JPEG, 90, baos);
+                                if (done) {
+                                    enhanced = picture;
+                                } else {
+                                    Log.w(TAG, "Enhancement interrupted, saving the original");
+                                }
+                            }
+
+                            byte[] enhancedData = finalData;
+                            if (enhanced != null) {
+                                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                                enhanced.compress(Bitmap.CompressFormat.JPEG, 90, baos);
+                                enhancedData = baos.toByteArray();
+                            }
 
                             if (mImageSaver != null) {
-                                mImageSaver.addImage(baos.toByteArray(), uri, title, null,
+                                mImageSaver.addImage(enhancedData, uri, title, null,
                                         width, height, correctedOrientation, tagsList, snap);
                             } else {
                                 Log.e(TAG, "ImageSaver was null: couldn't save image!");
@@ -285,6 +367,17 @@ public class SnapshotManager {
                             mImageIsProcessing = false;
                         }
                     }.start();
+                } else if (mBestShots != null) {
+                    // Hold it until we know whether it's among the best shots
+                    SaveRequest r = new SaveRequest();
+                    r.data = jpegData;
+                    r.uri = uri;
+                    r.title = title;
+                    r.width = width;
+                    r.height = height;
+                    r.orientation = correctedOrientation;
+                    r.snap = snap;
+                    discardShot(mBestShots.offer(r, snap.mSharpness));
                 } else {
                     // Just save it as is
                     mImageSaver.addImage(jpegData, uri, title, null,
@@ -295,16 +388,33 @@ public class SnapshotManager {
             // Camera is ready to take another shot, doit
             if (mSnapshotsQueue.size() > mCurrentShutterQueueIndex + 1) {
                 mCurrentShutterQueueIndex++;
-                mHandler.post(mCaptureRunnable);
+                // Not on the UI thread, the shot may wait for the motion to settle
+                new Thread(new CaptureRunnable(
+                        mSnapshotsQueue.get(mCurrentShutterQueueIndex))).start();
             }
 
             // We're done with our shot here!
             mCurrentShutterQueueIndex--;
             mSnapshotsQueue.remove(0);
+
+            if (mFinishingBestShots && mSnapshotsQueue.isEmpty()) {
+                saveBestShotsAsync();
+            }
         }
     };
 
-    private Runnable mCaptureRunnable = new Runnable() {
+    /**
+     * Takes a queued shot. The shot is handed over when queued, as the queue keeps changing
+     * while the shot waits. The waits happen on the thread running it, but the shot itself
+     * is taken from the handler, where the queue and the picture callbacks live.
+     */
+    private class CaptureRunnable implements Runnable {
+        private final SnapshotInfo mSnap;
+
+        public CaptureRunnable(SnapshotInfo snap) {
+            mSnap = snap;
+        }
+
         @Override
         public void run() {
             if (mWaitExposureSettle) {
@@ -314,9 +424,27 @@ public class SnapshotManager {
                     e.printStackTrace();
                 }
             }
-            mCameraManager.takeSnapshot(mShutterCallback, null, mJpegPictureCallback);
+
+            if (mGateDeadlineMs > 0) {
+                long waited = mMotionMonitor.waitForStill(mGateThreshold, mGateDeadlineMs);
+                if (waited > 0) {
+                    Log.v(TAG, "Held the shot " + waited + "ms for the motion to settle");
+                }
+            }
+
+            // Score the preview right before the shutter, after any earlier shot restarted it
+            if (mScoreSharpness || mBestShots != null) {
+                mSnap.mSharpness = scorePreviewFrame();
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCameraManager.takeSnapshot(mShutterCallback, null, mJpegPictureCallback);
+                }
+            });
         }
-    };
+    }
 
     private Runnable mPreviewCaptureRunnable = new Runnable() {
         @Override
@@ -367,6 +495,8 @@ public class SnapshotManager {
         mImageNamer = new ImageNamer();
         mVideoNamer = new VideoNamer();
         mContentResolver = ctx.getContentResolver();
+        mMotionMonitor = new MotionMonitor(ctx);
+        mMotionMonitor.start();
         mProfile = CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
         mPaused = false;
         mImageIsProcessing = false;
@@ -391,6 +521,134 @@ public class SnapshotManager {
         mBypassProcessing = bypass;
     }
 
+    /**
+     * Sets how shots are held back while the device is shaking
+     *
+     * @param threshold The motion energy, in (rad/s)², below which shots are taken
+     * @param deadlineMs How long a shot may wait at most, or 0 to never wait
+     */
+    public void setCaptureGate(float threshold, long deadlineMs) {
+        mGateThreshold = threshold;
+        mGateDeadlineMs = deadlineMs;
+    }
+
+    /**
+     * Sets whether the preview frame right before every shot is scored for sharpness, in
+     * SnapshotInfo.mSharpness
+     */
+    public void setSharpnessScoring(boolean enabled) {
+        mScoreSharpness = enabled;
+    }
+
+    /**
+     * Starts holding the shots instead of saving them, until finishBestShotSelection is
+     * called. Then only the sharpest ones are saved, and the others are discarded without
+     * ever reaching the media store. Shots going through auto-enhancement are saved as usual.
+     *
+     * @param keep The number of shots to keep
+     */
+    public void startBestShotSelection(int keep) {
+        if (mBestShots != null) {
+            // Don't lose the shots of an unfinished selection
+            saveBestShotsAsync();
+        }
+
+        mBestShots = new BestShotSelector<SaveRequest>(keep);
+        mFinishingBestShots = false;
+    }
+
+    /**
+     * Saves the best shots once the shots still queued are taken
+     */
+    public void finishBestShotSelection() {
+        if (mBestShots == null) return;
+
+        if (mSnapshotsQueue.isEmpty()) {
+            saveBestShotsAsync();
+        } else {
+            mFinishingBestShots = true;
+        }
+    }
+
+    /**
+     * Scores the sharpness of the next preview frame
+     *
+     * @return The score, or -1 if there is no frame
+     */
+    private float scorePreviewFrame() {
+        byte[] data = mCameraManager.grabPreviewFrame(PREVIEW_GRAB_TIMEOUT_MS);
+        Camera.Parameters params = mCameraManager.getParameters();
+        if (data == null || params == null) return -1;
+
+        Camera.Size size = params.getPreviewSize();
+        if (size == null || data.length < size.width * size.height) return -1;
+
+        SharpnessScorer scorer = mSharpnessScorer;
+        if (scorer == null) {
+            scorer = new SharpnessScorer();
+            mSharpnessScorer = scorer;
+        }
+
+        try {
+            return scorer.score(data, size.width, size.height);
+        } catch (IllegalStateException e) {
+            // Released by onPause
+            return -1;
+        }
+    }
+
+    /**
+     * Hands over the held best shots to the image saver, from another thread as the saver
+     * may block when its queue is full
+     */
+    private void saveBestShotsAsync() {
+        final BestShotSelector<SaveRequest> bestShots = mBestShots;
+        mBestShots = null;
+        mFinishingBestShots = false;
+
+        new Thread() {
+            public void run() {
+                saveBestShots(bestShots);
+            }
+        }.start();
+    }
+
+    private void saveBestShots(BestShotSelector<SaveRequest> bestShots) {
+        if (bestShots == null) return;
+
+        final ImageSaver saver = mImageSaver;
+        for (SaveRequest r : bestShots.drain()) {
+            if (saver != null) {
+                saver.addImage(r.data, r.uri, r.title, null, r.width, r.height,
+                        r.orientation, r.snap);
+            } else {
+                Log.e(TAG, "ImageSaver was null: couldn't save best shot!");
+                discardShot(r);
+            }
+        }
+    }
+
+    /**
+     * Removes the placeholder media entry of a shot that won't be saved
+     */
+    private void discardShot(final SaveRequest r) {
+        if (r == null) return;
+
+        Log.v(TAG, "Discarding shot of sharpness " + r.snap.mSharpness);
+        new Thread() {
+            public void run() {
+                Storage.getStorage().deleteImage(mContentResolver, r.uri);
+            }
+        }.start();
+    }
+
+    /**
+     * Returns the gyroscope monitor gating the shots, which keeps stats on the gating
+     */
+    public MotionMonitor getMotionMonitor() {
+        return mMotionMonitor;
+    }
+
     public void setAutoEnhance(boolean enhance) {
         mDoAutoEnhance = enhance;
     }
@@ -399,6 +657,30 @@ public class SnapshotManager {
         return mDoAutoEnhance;
     }
 
+    /**
+     * Returns the auto-enhancement curve of a shot: the one estimated from the preview if
+     * there is one, or one estimated from a downscaled decode of the JPEG otherwise
+     *
+     * @return The curve, or null if interrupted, with the interrupt flag kept
+     */
+    private ToneCurve getToneCurve(SnapshotInfo snap, byte[] jpegData) {
+        if (snap.mToneCurveEstimator != null) {
+            try {
+                snap.mToneCurveEstimator.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while estimating the enhancement from the preview");
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        if (snap.mToneCurve != null) {
+            return snap.mToneCurve;
+        }
+
+        return AutoPictureEnhancer.computeCurve(jpegData);
+    }
+
     public void prepareNamerUri(int width, int height) {
         if (mImageNamer == null) {
             // ImageNamer can be dead if the user exitted the app. We restart it temporarily.
@@ -435,6 +717,43 @@ public class SnapshotManager {
         mImageSaver.finish();
     }
 
+    /**
+     * Saves a picture that didn't go through the snapshot queue, such as a frame of the
+     * preview stream. Can be called from any thread, and blocks while the saver is busy.
+     *
+     * @param jpegData The encoded picture
+     * @param title The title of the picture, which is its file name as well
+     * @param orientation The rotation of the picture, in degrees, written into its EXIF
+     */
+    public void saveFrame(byte[] jpegData, String title, int width, int height,
+                          int orientation) {
+        saveFrame(jpegData, title, width, height, orientation, createSnapshotInfo());
+    }
+
+    /**
+     * Saves a picture that didn't go through the snapshot queue, reporting it to the
+     * listeners with the given info
+     */
+    public void saveFrame(byte[] jpegData, String title, int width, int height,
+                          int orientation, SnapshotInfo info) {
+        final ImageSaver saver = mImageSaver;
+        if (saver == null) {
+            Log.e(TAG, "ImageSaver was null: couldn't save frame!");
+            return;
+        }
+
+        saver.addImage(jpegData, null, title, null, width, height, orientation, info);
+    }
+
+    /**
+     * Creates the info of a picture to be saved through saveFrame
+     */
+    public SnapshotInfo createSnapshotInfo() {
+        SnapshotInfo info = new SnapshotInfo();
+        info.mSave = true;
+        return info;
+    }
+
     /**
      * Queues a snapshot that will be taken as soon as possible
      *
@@ -482,7 +801,7 @@ public class SnapshotManager {
             Log.v(TAG, "No snapshot queued, starting runnable");
 
             mCurrentShutterQueueIndex = 0;
-            new Thread(mCaptureRunnable).start();
+            new Thread(new CaptureRunnable(info)).start();
         }
     }
 
@@ -660,11 +979,26 @@ public class SnapshotManager {
 
     public void onPause() {
         mPaused = true;
+        mMotionMonitor.stop();
+
+        // Held shots have to make it before the saver stops
+        saveBestShots(mBestShots);
+        mBestShots = null;
+        mFinishingBestShots = false;
+
+        SharpnessScorer scorer = mSharpnessScorer;
+        mSharpnessScorer = null;
+        if (scorer != null) {
+            scorer.release();
+        }
 
         if (!mImageIsProcessing && mImageSaver != null) {
             // We wait until the last processing image was saved
             mImageSaver.finish();
         }
+        if (!mImageIsProcessing) {
+            PixelBuffer.releaseReadbackBuffer();
+        }
         mImageNamer.finish();
         mVideoNamer.finish();
         mImageSaver = null;
@@ -674,6 +1008,7 @@ public class SnapshotManager {
 
     public void onResume() {
         mPaused = false;
+        mMotionMonitor.start();
 
         // Restore threads if needed
         if (mImageSaver == null) {
@@ -835,8 +1170,25 @@ public class SnapshotManager {
         private void storeImage(final byte[] data, Uri uri, String title,
                                 Location loc, int width, int height, int orientation,
                                 List<Tag> exifTags, SnapshotInfo snap) {
-            boolean ok = Storage.getStorage().updateImage(mContentResolver, uri, title, loc,
-                    orientation, data, width, height);
+            boolean ok;
+            if (uri == null) {
+                // No placeholder was made for it, write it all at once. It was encoded by us
+                // rather than by the camera, so the rotation has to be added to its EXIF.
+                Storage storage = Storage.getStorage();
+                String path = storage.writeFile(title, data);
+                if (orientation != 0) {
+                    Exif.writeOrientation(path, orientation);
+                }
+                uri = storage.addImage(mContentResolver, title, System.currentTimeMillis(),
+                        loc, orientation, (int) new File(path).length(), path, width, height);
+                ok = (uri != null);
+                if (snap != null) {
+                    snap.mUri = uri;
+                }
+            } else {
+                ok = Storage.getStorage().updateImage(mContentResolver, uri, title, loc,
+                        orientation, data, width, height);
+            }
 
             if (ok) {
                 if (exifTags != null && exifTags.size() > 0) {
@@ -32,8 +32,11 @@ import android.provider.MediaStore.Images.ImageColumns;
 import android.provider.MediaStore.MediaColumns;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
 public class Storage {
     private static final String TAG = "CameraStorage";
@@ -43,6 +46,16 @@ public class Storage {
     public static final long UNKNOWN_SIZE = -3L;
     public static final long LOW_STORAGE_THRESHOLD = 50000000;
 
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Produces the contents of a file directly into its output stream, for pictures too
+     * large to be held in memory as a whole
+     */
+    public interface StreamWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
     private String mRoot = Environment.getExternalStorageDirectory().toString();
     private static Storage sStorage;
 
@@ -84,6 +97,40 @@ public class Storage {
         return path;
     }
 
+    /**
+     * Writes a file from a stream writer. The data goes to a temporary file that is renamed
+     * once complete, so other apps never read a partial picture.
+     *
+     * @return The path of the written file, or null if it failed
+     */
+    public String writeFile(String title, StreamWriter writer) {
+        String path = generateFilepath(title);
+        File tmpFile = new File(path + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmpFile), STREAM_BUFFER_SIZE);
+            writer.write(out);
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(new File(path))) {
+                throw new IOException("Unable to rename " + tmpFile);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to write data", e);
+            tmpFile.delete();
+            return null;
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (Exception e) {
+            }
+        }
+        return path;
+    }
+
     // Save the image and add it to media store.
     public Uri addImage(ContentResolver resolver, String title,
                         long date, Location location, int orientation, byte[] jpeg,
@@ -190,6 +237,17 @@ public class Storage {
             }
         }
 
+        return updateImage(resolver, uri, title, location, orientation, jpeg.length,
+                width, height);
+    }
+
+    // Updates the MediaStore entry of an image whose file was already written,
+    // for instance when a preview picture is replaced by its final version.
+    //
+    // Returns true if the update is successful.
+    public boolean updateImage(ContentResolver resolver, Uri uri,
+                               String title, Location location, int orientation, long jpegLength,
+                               int width, int height) {
         // Insert into MediaStore.
         ContentValues values = new ContentValues(9);
         values.put(ImageColumns.TITLE, title);
@@ -197,7 +255,7 @@ public class Storage {
         values.put(ImageColumns.MIME_TYPE, "image/jpeg");
         // Clockwise rotation in degrees. 0, 90, 180, or 270.
         values.put(ImageColumns.ORIENTATION, orientation);
-        values.put(ImageColumns.SIZE, jpeg.length);
+        values.put(ImageColumns.SIZE, jpegLength);
 
         setImageSize(values, width, height);
 
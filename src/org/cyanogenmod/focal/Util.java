@@ -30,11 +30,6 @@ import android.net.Uri;
 import android.os.Build;
 import android.provider.BaseColumns;
 import android.provider.MediaStore;
-import android.renderscript.Allocation;
-import android.renderscript.Element;
-import android.renderscript.RenderScript;
-import android.renderscript.ScriptIntrinsicYuvToRGB;
-import android.renderscript.Type;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.OrientationEventListener;
@@ -231,22 +226,7 @@ public class Util {
         Bitmap bmp = null;
 
         if (Build.VERSION.SDK_INT >= 17) {
-            final RenderScript rs = RenderScript.create(context);
-            final ScriptIntrinsicYuvToRGB script = ScriptIntrinsicYuvToRGB.create(rs, Element.RGBA_8888(rs));
-            Type.Builder tb = new Type.Builder(rs, Element.RGBA_8888(rs));
-            tb.setX(width);
-            tb.setY(height);
-
-            Allocation allocationOut = Allocation.createTyped(rs, tb.create());
-            Allocation allocationIn = Allocation.createSized(rs, Element.U8(rs), (height * width) +
-                    ((height / 2) * (width / 2) * 2));
-
-            script.setInput(allocationIn);
-
-            bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-            allocationIn.copyFrom(yuv420sp);
-            script.forEach(allocationOut);
-            allocationOut.copyTo(bmp);
+            bmp = ComputeContext.getSingleton().decodeYUV420SP(context, yuv420sp, width, height);
         } else {
             final int frameSize = width * height;
             int[] rgb = new int[frameSize];
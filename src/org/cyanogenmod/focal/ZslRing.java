@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the latest preview frames, so that a picture can be made out of the frame shown
+ * when the shutter was pressed rather than waiting for a new one ("zero shutter lag").
+ *
+ * Frames are copied into a fixed pool of buffers, allocated once for a preview size. The
+ * slots being encoded are locked, and skipped by the writer until they are released.
+ */
+public class ZslRing implements CameraManager.PreviewFrameListener {
+    public final static String TAG = "ZslRing";
+
+    private final int mCapacity;
+    private byte[][] mBuffers;
+    private final long[] mTimestamps;
+    private final boolean[] mLocked;
+    private int mWidth;
+    private int mHeight;
+    private int mNext;
+
+    /**
+     * @param capacity The number of frames kept
+     */
+    public ZslRing(int capacity) {
+        mCapacity = Math.max(2, capacity);
+        mTimestamps = new long[mCapacity];
+        mLocked = new boolean[mCapacity];
+    }
+
+    @Override
+    public synchronized boolean onPreviewFrame(byte[] data, int width, int height,
+                                               long timestamp) {
+        final int size = width * height * 3 / 2;
+        if (data.length < size) return false;
+
+        if (mBuffers == null || width != mWidth || height != mHeight) {
+            // Locked frames keep their old buffer, and their slot is skipped until released
+            mBuffers = new byte[mCapacity][];
+            for (int i = 0; i < mCapacity; i++) {
+                mBuffers[i] = new byte[size];
+                mTimestamps[i] = 0;
+            }
+            mWidth = width;
+            mHeight = height;
+        }
+
+        // Overwrite the oldest slot that isn't being encoded
+        for (int i = 0; i < mCapacity; i++) {
+            final int slot = (mNext + i) % mCapacity;
+            if (!mLocked[slot]) {
+                System.arraycopy(data, 0, mBuffers[slot], 0, size);
+                mTimestamps[slot] = timestamp;
+                mNext = (slot + 1) % mCapacity;
+                break;
+            }
+        }
+
+        // The camera can have the buffer back right away
+        return false;
+    }
+
+    /**
+     * A frame locked in the ring
+     */
+    public static class Frame {
+        public final byte[] data;
+        public final int width;
+        public final int height;
+        public final long timestamp;
+        private final int mSlot;
+
+        private Frame(byte[] data, int width, int height, long timestamp, int slot) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.timestamp = timestamp;
+            mSlot = slot;
+        }
+    }
+
+    /**
+     * Locks the frame closest to a time, and the frames around it. Picking among them is
+     * left to the caller, so that they aren't compared with the ring held.
+     *
+     * @param time The time to look for, in System.nanoTime() time
+     * @param maxAge How far from the time the closest frame can be, in nanoseconds
+     * @param window How far from the closest frame the other frames can be, 0 for none
+     * @return The frames, the closest one first, to be released once done with. The list
+     *         is empty if there is no frame close enough.
+     */
+    public synchronized List<Frame> acquire(long time, long maxAge, long window) {
+        List<Frame> frames = new ArrayList<Frame>();
+        if (mBuffers == null) return frames;
+
+        int closest = -1;
+        for (int i = 0; i < mCapacity; i++) {
+            if (mLocked[i] || mTimestamps[i] == 0
+                    || Math.abs(mTimestamps[i] - time) > maxAge) {
+                continue;
+            }
+            if (closest < 0 || Math.abs(mTimestamps[i] - time)
+                    < Math.abs(mTimestamps[closest] - time)) {
+                closest = i;
+            }
+        }
+
+        if (closest < 0) return frames;
+
+        frames.add(lock(closest));
+        if (window > 0) {
+            for (int i = 0; i < mCapacity; i++) {
+                if (i == closest || mLocked[i] || mTimestamps[i] == 0
+                        || Math.abs(mTimestamps[i] - mTimestamps[closest]) > window) {
+                    continue;
+                }
+                frames.add(lock(i));
+            }
+        }
+
+        return frames;
+    }
+
+    private Frame lock(int slot) {
+        mLocked[slot] = true;
+        return new Frame(mBuffers[slot], mWidth, mHeight, mTimestamps[slot], slot);
+    }
+
+    /**
+     * Unlocks the slot of a frame, which can then be overwritten
+     */
+    public synchronized void release(Frame frame) {
+        mLocked[frame.mSlot] = false;
+    }
+
+    /**
+     * Forgets the frames and frees the buffers. Locked frames stay valid until released.
+     */
+    public synchronized void clear() {
+        mBuffers = null;
+        for (int i = 0; i < mCapacity; i++) {
+            mTimestamps[i] = 0;
+        }
+    }
+}
@@ -20,6 +20,12 @@ package org.cyanogenmod.focal.feats;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.media.effect.Effect;
 import android.media.effect.EffectContext;
 import android.media.effect.EffectFactory;
@@ -31,15 +37,32 @@ import android.util.Log;
 import org.cyanogenmod.focal.R;
 import org.cyanogenmod.focal.Util;
 
+import java.nio.IntBuffer;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 /**
  * Automatic photo enhancement
+ *
+ * Pictures that fit in a texture go through the media effects framework. Larger ones are
+ * processed in tiles at full resolution: the tone curve is computed once from a downscaled
+ * copy, then applied to each tile in a shader and written back into the picture. When the
+ * curve was estimated beforehand (see setCurve), only the lookup is done at full
+ * resolution, in a single pass for pictures that fit in a texture.
+ *
+ * The tone curve only approximates the effects framework, so pictures going through the
+ * two paths don't come out exactly alike.
  */
-public class AutoPictureEnhancer implements GLSurfaceView.Renderer {
+public class AutoPictureEnhancer implements GLSurfaceView.Renderer, PixelBuffer.BitmapRenderer {
     public final static String TAG = "AutoPictureEnhancer";
 
+    // Size of the tiles of large pictures, and of the copy their statistics are taken from
+    private final static int MAX_TILE_SIZE = 1024;
+    private final static int STATS_SIZE = 256;
+    // Downscaling of the JPEG decoded to estimate the curve
+    private final static int STATS_SAMPLE_SIZE = 8;
+
     private int[] mTextures = new int[2];
     private EffectContext mEffectContext;
     private Effect mAutoFixEffect;
@@ -50,6 +73,8 @@ public class AutoPictureEnhancer implements GLSurfaceView.Renderer {
     private Bitmap mBitmapToLoad;
     private boolean mInitialized = false;
     private Context mContext;
+    private Bitmap mTiledResult;
+    private ToneCurve mCurve;
 
     public AutoPictureEnhancer(Context context) {
         mContext = context;
@@ -59,56 +84,166 @@ public class AutoPictureEnhancer implements GLSurfaceView.Renderer {
         mBitmapToLoad = bitmap;
     }
 
-    public static Bitmap scale(Bitmap bmp, int w, int h) {
-        Bitmap b = null;
-        if (bmp != null) {
-            Log.v(TAG, "Scaling bitmap from " + bmp.getWidth() + "x" + bmp.getHeight() + " to " + w + "x" + h);
+    /**
+     * Sets the tone curve to apply, if it was estimated beforehand
+     */
+    public void setCurve(ToneCurve curve) {
+        mCurve = curve;
+    }
+
+    @Override
+    public Bitmap getRenderedBitmap() {
+        Bitmap result = mTiledResult;
+        mTiledResult = null;
+        return result;
+    }
+
+    private boolean needsTiling(Bitmap bitmap) {
+        final int maxTextureSize = mContext.getResources().getInteger(R.integer.config_maxTextureSize);
+        return bitmap.getWidth() > maxTextureSize || bitmap.getHeight() > maxTextureSize;
+    }
+
+    /**
+     * Computes the tone curve of a picture from a downscaled copy
+     */
+    public static ToneCurve computeCurve(Bitmap bitmap) {
+        float ratio = Math.min(1.0f, (float) STATS_SIZE
+                / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        int width = Math.max(1, Math.round(bitmap.getWidth() * ratio));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * ratio));
+
+        Bitmap small = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        int[] pixels = new int[width * height];
+        small.getPixels(pixels, 0, width, 0, 0, width, height);
+        if (small != bitmap) {
+            small.recycle();
+        }
+
+        int[] histogram = new int[256];
+        ToneCurve.accumulateHistogram(histogram, pixels, 0, width, width, height, 1);
+        return ToneCurve.fromHistogram(histogram);
+    }
+
+    /**
+     * Computes the tone curve of a JPEG picture from a 1/8 scale decode of it
+     *
+     * @return The curve, or null if the picture couldn't be decoded
+     */
+    public static ToneCurve computeCurve(byte[] jpeg) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = STATS_SAMPLE_SIZE;
+        Bitmap small = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, opts);
+        if (small == null) {
+            return null;
+        }
+
+        ToneCurve curve = computeCurve(small);
+        small.recycle();
+        return curve;
+    }
+
+    /**
+     * Enhances a picture larger than the maximum texture size, tile by tile, at full
+     * resolution. The pixels are written back into the picture (or a mutable copy of it).
+     */
+    private Bitmap enhanceTiled(Bitmap bitmap) {
+        final int maxTextureSize = mContext.getResources().getInteger(R.integer.config_maxTextureSize);
+        final int tileSize = Math.min(MAX_TILE_SIZE, maxTextureSize);
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        // Never render past the surface, which is as large as the picture when it is small
+        final int tileSurfaceWidth = Math.min(tileSize, width);
+        final int tileSurfaceHeight = Math.min(tileSize, height);
+        long start = System.currentTimeMillis();
+
+        if (!bitmap.isMutable()) {
+            Bitmap copy = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+            bitmap.recycle();
+            bitmap = copy;
+        }
+
+        ToneCurveRenderer renderer = new ToneCurveRenderer();
+        renderer.init();
+        renderer.setCurve(mCurve != null ? mCurve : computeCurve(bitmap));
+
+        Bitmap tile = Bitmap.createBitmap(tileSurfaceWidth, tileSurfaceHeight,
+                Bitmap.Config.ARGB_8888);
+        Canvas tileCanvas = new Canvas(tile);
+        Canvas outCanvas = new Canvas(bitmap);
+        Paint copyPaint = new Paint();
+        copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        ReadbackBuffer readback = new ReadbackBuffer();
+        Rect tileRect = new Rect();
+        Rect imageRect = new Rect();
+
+        GLES20.glGenTextures(1, mTextures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0]);
+        ToneCurveRenderer.initNearestTexParams();
 
-            // We're going to need some memory
-            System.gc();
-            Runtime.getRuntime().gc();
+        // The curve is a per-pixel operation, so the tiles don't need to overlap
+        for (int y = 0; y < height; y += tileSize) {
+            for (int x = 0; x < width; x += tileSize) {
+                int tileWidth = Math.min(tileSize, width - x);
+                int tileHeight = Math.min(tileSize, height - y);
+                tileRect.set(0, 0, tileWidth, tileHeight);
+                imageRect.set(x, y, x + tileWidth, y + tileHeight);
 
-            // Scale it!
-            b=Bitmap.createScaledBitmap(bmp, w, h, true);
+                // Upload the tile, render it through the curve and read it back
+                tileCanvas.drawBitmap(bitmap, imageRect, tileRect, copyPaint);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0]);
+                GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, tile, 0);
+                renderer.renderTexture(mTextures[0], tileSurfaceWidth, tileSurfaceHeight);
 
-            // Release original bitmap
-            bmp.recycle();
+                IntBuffer pixels = readback.obtain(tileSurfaceWidth, tileSurfaceHeight);
+                GLES20.glReadPixels(0, 0, tileSurfaceWidth, tileSurfaceHeight, GLES20.GL_RGBA,
+                        GLES20.GL_UNSIGNED_BYTE, pixels);
+                readback.flipVertically(tileSurfaceWidth, tileSurfaceHeight);
+                tile.copyPixelsFromBuffer(pixels);
+
+                outCanvas.drawBitmap(tile, tileRect, imageRect, copyPaint);
+            }
         }
-        return b;
+
+        GLES20.glDeleteTextures(1, mTextures, 0);
+        renderer.tearDown();
+        tile.recycle();
+
+        Log.v(TAG, "Enhanced " + width + "x" + height + " in tiles of " + tileSize + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return bitmap;
     }
 
     private void loadTextureImpl(Bitmap bitmap) {
         // Generate textures
         GLES20.glGenTextures(1, mTextures, 0);
 
-        final int mMaxTextureSize = mContext.getResources().getInteger(R.integer.config_maxTextureSize);
-        // Load input bitmap
-        if (bitmap.getWidth() > mMaxTextureSize || bitmap.getHeight() > mMaxTextureSize) {
-            mImageWidth = mMaxTextureSize;
-            mImageHeight = mMaxTextureSize;
-        } else {
-            mImageWidth = bitmap.getWidth();
-            mImageHeight = bitmap.getHeight();
-        }
+        // Larger pictures are processed in tiles, see enhanceTiled()
+        mImageWidth = bitmap.getWidth();
+        mImageHeight = bitmap.getHeight();
 
         mTexRenderer.updateTextureSize(mImageWidth, mImageHeight);
 
         // Upload to texture
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0]);
-        if (mImageWidth != bitmap.getWidth() || mImageHeight != bitmap.getHeight()) {
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, scale(bitmap, mImageWidth, mImageHeight), 0);
-        } else {
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
-        }
-
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
         bitmap.recycle();
-        System.gc();
-        Runtime.getRuntime().gc();
 
         // Set texture parameters
         GLToolbox.initTexParams();
     }
 
+    /**
+     * Renders the loaded texture through the precomputed curve, to be read back by the
+     * PixelBuffer
+     */
+    private void renderCurve() {
+        ToneCurveRenderer renderer = new ToneCurveRenderer();
+        renderer.init();
+        renderer.setCurve(mCurve);
+        renderer.renderTexture(mTextures[0], mImageWidth, mImageHeight);
+        renderer.tearDown();
+    }
+
     private void initEffects() {
         EffectFactory effectFactory = mEffectContext.getFactory();
         if (mAutoFixEffect != null) {
@@ -143,13 +278,24 @@ public class AutoPictureEnhancer implements GLSurfaceView.Renderer {
             mInitialized = true;
         }
 
-        if (mBitmapToLoad != null) {
+        if (mBitmapToLoad != null && needsTiling(mBitmapToLoad)) {
+            // The result is handed directly to the PixelBuffer
+            mTiledResult = enhanceTiled(mBitmapToLoad);
+            mBitmapToLoad = null;
+            return;
+        } else if (mBitmapToLoad != null) {
             loadTextureImpl(mBitmapToLoad);
             mBitmapToLoad = null;
         } else {
             Log.e(TAG, "Bitmap to load is null");
         }
 
+        if (mCurve != null) {
+            // Only the lookup is left to do
+            renderCurve();
+            return;
+        }
+
         // Render the effect
         initEffects();
         applyEffects();
@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.feats;
+
+import android.graphics.Bitmap;
+
+/**
+ * Row access to a mutable Bitmap for the CpuPictureEnhancer
+ */
+public class BitmapImage implements CpuPictureEnhancer.Image {
+    private final Bitmap mBitmap;
+
+    public BitmapImage(Bitmap bitmap) {
+        mBitmap = bitmap;
+    }
+
+    public int getWidth() {
+        return mBitmap.getWidth();
+    }
+
+    public int getHeight() {
+        return mBitmap.getHeight();
+    }
+
+    public void getRows(int[] argb, int y, int rows) {
+        mBitmap.getPixels(argb, 0, mBitmap.getWidth(), 0, y, mBitmap.getWidth(), rows);
+    }
+
+    public void setRows(int[] argb, int y, int rows) {
+        mBitmap.setPixels(argb, 0, mBitmap.getWidth(), 0, y, mBitmap.getWidth(), rows);
+    }
+}
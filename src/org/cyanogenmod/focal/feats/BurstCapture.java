@@ -22,6 +22,7 @@ import android.os.Handler;
 import android.util.Log;
 
 import org.cyanogenmod.focal.CameraActivity;
+import org.cyanogenmod.focal.R;
 import org.cyanogenmod.focal.SnapshotManager;
 import org.cyanogenmod.focal.ui.ShutterButton;
 
@@ -32,6 +33,10 @@ public class BurstCapture extends CaptureTransformer {
     public final static String TAG = "BurstCapture";
 
     private int mBurstCount = -1;
+    private int mKeepBest;
+    private boolean mUsePreviewStream;
+    private PreviewBurst mPreviewBurst;
+    private boolean mIsPreviewStreamBurst;
     private int mShotsDone;
     private boolean mBurstInProgress = false;
     private Handler mHandler;
@@ -41,6 +46,24 @@ public class BurstCapture extends CaptureTransformer {
         super(activity.getCamManager(), activity.getSnapManager());
         mHandler = new Handler();
         mActivity = activity;
+        mKeepBest = activity.getResources().getInteger(R.integer.config_burstKeepBest);
+        mUsePreviewStream = activity.getResources().getBoolean(
+                R.bool.config_burstUsePreviewStream);
+
+        mPreviewBurst = new PreviewBurst(activity.getCamManager(), activity.getSnapManager());
+        mPreviewBurst.setMaxFps(activity.getResources().getInteger(
+                R.integer.config_burstPreviewMaxFps));
+        mPreviewBurst.setListener(new PreviewBurst.Listener() {
+            @Override
+            public void onBurstDone(int frames) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mBurstInProgress = false;
+                    }
+                });
+            }
+        });
     }
 
     /**
@@ -53,12 +76,41 @@ public class BurstCapture extends CaptureTransformer {
         mBurstCount = count;
     }
 
+    /**
+     * Sets the number of sharpest shots of a burst to save, or 0 to save all of them
+     *
+     * @param keep The number of shots to keep
+     */
+    public void setKeepBest(int keep) {
+        mKeepBest = keep;
+    }
+
+    /**
+     * Sets whether the burst grabs frames from the preview stream, which is much faster but
+     * limited to the preview resolution
+     */
+    public void setUsePreviewStream(boolean usePreviewStream) {
+        mUsePreviewStream = usePreviewStream;
+    }
+
     /**
      * Starts the burst shooting
      */
     public void startBurstShot() {
         mShotsDone = 0;
         mBurstInProgress = true;
+
+        mIsPreviewStreamBurst = mUsePreviewStream && mPreviewBurst.start(mBurstCount);
+        if (mIsPreviewStreamBurst) {
+            mActivity.getReviewDrawer().openQuickReview();
+            return;
+        }
+
+        if (isSelectingBest()) {
+            // Held shots must not go through processing, which saves them right away
+            mSnapManager.startBestShotSelection(mKeepBest);
+            mSnapManager.setBypassProcessing(true);
+        }
         mSnapManager.queueSnapshot(true, 0);
 
         // Open the quick review drawer
@@ -67,6 +119,33 @@ public class BurstCapture extends CaptureTransformer {
 
     public void terminateBurstShot() {
         mBurstInProgress = false;
+
+        if (mIsPreviewStreamBurst) {
+            mPreviewBurst.stop();
+            return;
+        }
+
+        if (isSelectingBest()) {
+            mSnapManager.finishBestShotSelection();
+        }
+    }
+
+    @Override
+    public void onDetach() {
+        if (mBurstInProgress || mPreviewBurst.isRunning()) {
+            terminateBurstShot();
+        }
+    }
+
+    @Override
+    public void onPause() {
+        // The snapshot manager saves the held best shots itself when pausing
+        mBurstInProgress = false;
+        mPreviewBurst.stop();
+    }
+
+    private boolean isSelectingBest() {
+        return mKeepBest > 0;
     }
 
     private void tryTakeShot() {
@@ -90,7 +169,22 @@ public class BurstCapture extends CaptureTransformer {
 
     @Override
     public void onSnapshotShutter(final SnapshotManager.SnapshotInfo info) {
+        // Held shots aren't saved until the end of the burst, so go on from the shutter
+        if (!mBurstInProgress || !isSelectingBest() || mIsPreviewStreamBurst) return;
+
+        mShotsDone++;
+        Log.v(TAG, "Done " + mShotsDone + " shots");
 
+        if (mShotsDone < mBurstCount || mBurstCount == 0) {
+            tryTakeShot();
+        } else {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    terminateBurstShot();
+                }
+            });
+        }
     }
 
     @Override
@@ -106,7 +200,7 @@ public class BurstCapture extends CaptureTransformer {
     @Override
     public void onSnapshotSaved(SnapshotManager.SnapshotInfo info) {
         // XXX: Show it in the quick review drawer
-        if (!mBurstInProgress) return;
+        if (!mBurstInProgress || isSelectingBest() || mIsPreviewStreamBurst) return;
 
         mShotsDone++;
         Log.v(TAG, "Done " + mShotsDone + " shots");
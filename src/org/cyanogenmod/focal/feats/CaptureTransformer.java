@@ -49,4 +49,19 @@ public abstract class CaptureTransformer implements SnapshotManager.SnapshotList
      */
     public void onShutterButtonLongPressed(ShutterButton button) { }
 
+    /**
+     * Called when the transformer becomes the active one (optional)
+     */
+    public void onAttach() { }
+
+    /**
+     * Called when the transformer stops being the active one (optional)
+     */
+    public void onDetach() { }
+
+    /**
+     * Called when the activity pauses while the transformer is active (optional)
+     */
+    public void onPause() { }
+
 }
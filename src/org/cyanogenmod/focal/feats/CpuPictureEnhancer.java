@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.feats;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CPU implementation of the automatic photo enhancement, for when OpenGL isn't available or
+ * the picture is too large to be worth the texture round-trips.
+ *
+ * The picture is processed in horizontal stripes spread over several threads: a first pass
+ * builds the luminance histogram the ToneCurve is computed from, and a second one maps every
+ * pixel through the curve's lookup table. Each worker only holds one stripe of pixels.
+ * This class doesn't depend on Android and can be exercised on a plain JVM.
+ */
+public class CpuPictureEnhancer {
+    public final static String TAG = "CpuPictureEnhancer";
+
+    private final static int STRIPE_ROWS = 64;
+
+    /**
+     * Row access to the picture to enhance. Different rows may be accessed concurrently.
+     */
+    public interface Image {
+        public int getWidth();
+        public int getHeight();
+        public void getRows(int[] argb, int y, int rows);
+        public void setRows(int[] argb, int y, int rows);
+    }
+
+    private final int mThreadCount;
+
+    public CpuPictureEnhancer(int threadCount) {
+        mThreadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Creates an enhancer using all the available cores
+     */
+    public CpuPictureEnhancer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Wraps an ARGB array as an Image
+     */
+    public static Image wrap(final int[] argb, final int width, final int height) {
+        return new Image() {
+            public int getWidth() {
+                return width;
+            }
+
+            public int getHeight() {
+                return height;
+            }
+
+            public void getRows(int[] out, int y, int rows) {
+                System.arraycopy(argb, y * width, out, 0, rows * width);
+            }
+
+            public void setRows(int[] in, int y, int rows) {
+                System.arraycopy(in, 0, argb, y * width, rows * width);
+            }
+        };
+    }
+
+    /**
+     * Enhances the image in place
+     *
+     * @return false if the calling thread was interrupted, in which case the image may be
+     *         partially enhanced
+     */
+    public boolean enhance(Image image) {
+        ToneCurve curve = computeCurve(image);
+        return curve != null && apply(image, curve);
+    }
+
+    /**
+     * Computes the tone curve of the image from the histogram of all its pixels
+     *
+     * @return The curve, or null if the calling thread was interrupted
+     */
+    public ToneCurve computeCurve(final Image image) {
+        final int[][] histograms = new int[mThreadCount][256];
+
+        boolean done = runStriped(image, new StripeProcessor() {
+            public void process(int worker, int[] argb, int y, int rows) {
+                image.getRows(argb, y, rows);
+                ToneCurve.accumulateHistogram(histograms[worker], argb, 0, image.getWidth(),
+                        image.getWidth(), rows, 1);
+            }
+        });
+        if (!done) {
+            return null;
+        }
+
+        int[] histogram = histograms[0];
+        for (int i = 1; i < mThreadCount; i++) {
+            for (int bin = 0; bin < 256; bin++) {
+                histogram[bin] += histograms[i][bin];
+            }
+        }
+
+        return ToneCurve.fromHistogram(histogram);
+    }
+
+    /**
+     * Applies a tone curve to the image in place
+     *
+     * @return false if the calling thread was interrupted, in which case the image may be
+     *         partially processed
+     */
+    public boolean apply(final Image image, final ToneCurve curve) {
+        return runStriped(image, new StripeProcessor() {
+            public void process(int worker, int[] argb, int y, int rows) {
+                image.getRows(argb, y, rows);
+                curve.apply(argb, 0, image.getWidth(), image.getWidth(), rows);
+                image.setRows(argb, y, rows);
+            }
+        });
+    }
+
+    private interface StripeProcessor {
+        public void process(int worker, int[] argb, int y, int rows);
+    }
+
+    /**
+     * Runs the processor on every stripe of the image, the workers picking the next stripe
+     * available until they are all done. An interrupt of the calling thread stops the
+     * workers once their current stripe is done, and is kept on the thread.
+     *
+     * @return false if the work was stopped by an interrupt
+     */
+    private boolean runStriped(final Image image, final StripeProcessor processor) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int stripes = (height + STRIPE_ROWS - 1) / STRIPE_ROWS;
+        final int workers = Math.min(mThreadCount, Math.max(1, stripes));
+        final AtomicInteger nextStripe = new AtomicInteger();
+
+        Thread[] threads = new Thread[workers - 1];
+        for (int i = 0; i < workers; i++) {
+            final int worker = i;
+            Runnable task = new Runnable() {
+                public void run() {
+                    int[] argb = new int[width * STRIPE_ROWS];
+                    int stripe;
+                    while ((stripe = nextStripe.getAndIncrement()) < stripes) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            nextStripe.set(stripes);
+                            return;
+                        }
+
+                        int y = stripe * STRIPE_ROWS;
+                        processor.process(worker, argb, y, Math.min(STRIPE_ROWS, height - y));
+                    }
+                }
+            };
+
+            if (i < workers - 1) {
+                threads[i] = new Thread(task, TAG + "-" + i);
+                threads[i].start();
+            } else {
+                // The calling thread does its share of the work
+                task.run();
+            }
+        }
+
+        // The workers are always waited for, so that none still touches the image
+        boolean interrupted = Thread.interrupted();
+        if (interrupted) {
+            nextStripe.set(stripes);
+        }
+
+        for (Thread thread : threads) {
+            boolean joined = false;
+            while (!joined) {
+                try {
+                    thread.join();
+                    joined = true;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    nextStripe.set(stripes);
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+}
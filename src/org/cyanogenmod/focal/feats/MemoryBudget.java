@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.feats;
+
+/**
+ * Snapshot of the memory left to the app heap, used to size large allocations (such as full
+ * resolution bitmaps) so that they fit instead of waiting for memory to come back.
+ * This class doesn't depend on Android and can be exercised on a plain JVM.
+ */
+public class MemoryBudget {
+    private final long mMaxBytes;
+    private final long mUsedBytes;
+
+    /**
+     * @param maxBytes The maximum size the heap can grow to
+     * @param usedBytes The memory currently in use in the heap
+     */
+    public MemoryBudget(long maxBytes, long usedBytes) {
+        mMaxBytes = maxBytes;
+        mUsedBytes = usedBytes;
+    }
+
+    /**
+     * Returns the current budget of the app heap. Bitmap pixels are accounted in this heap.
+     */
+    public static MemoryBudget fromRuntime() {
+        Runtime runtime = Runtime.getRuntime();
+        return new MemoryBudget(runtime.maxMemory(),
+                runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    public long getAvailableBytes() {
+        return Math.max(0, mMaxBytes - mUsedBytes);
+    }
+
+    /**
+     * Returns whether an allocation fits in the budget, leaving the provided headroom
+     */
+    public boolean canAllocate(long bytes, long headroom) {
+        return bytes + headroom <= getAvailableBytes();
+    }
+
+    public static long getBitmapBytes(int width, int height) {
+        return 4L * width * height;
+    }
+
+    /**
+     * Returns the largest scale, at most 1, at which an ARGB_8888 bitmap of the provided size
+     * fits in the budget with the provided headroom, or 0 if nothing fits
+     */
+    public float getFittingScale(int width, int height, long headroom) {
+        long available = getAvailableBytes() - headroom;
+        long needed = getBitmapBytes(width, height);
+
+        if (available <= 0) {
+            return 0;
+        } else if (needed <= available) {
+            return 1;
+        }
+
+        // The size scales with the square of the dimensions
+        return (float) Math.sqrt((double) available / needed);
+    }
+}
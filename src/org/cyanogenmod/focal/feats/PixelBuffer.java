@@ -18,7 +18,6 @@
 
 package org.cyanogenmod.focal.feats;
 
-import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.opengl.GLSurfaceView;
@@ -67,6 +66,21 @@ public class PixelBuffer {
     final static private int EGL_TEXTURE_RGB = 0x305D;
     final static private int EGL_TEXTURE_RGBA = 0x305E;
     final static private int EGL_TEXTURE_2D = 0x305F;
+    // Memory kept free when scaling back a large image
+    final static private long SCALE_HEADROOM_BYTES = 16 * 1048576L;
+
+    final static private ReadbackBuffer sReadbackBuffer = new ReadbackBuffer();
+
+    /**
+     * Implemented by renderers that can produce the final bitmap themselves (for instance
+     * by processing it in tiles), in which case the surface isn't read back
+     */
+    public interface BitmapRenderer {
+        /**
+         * @return The rendered bitmap, or null to read it from the surface
+         */
+        public Bitmap getRenderedBitmap();
+    }
 
     GLSurfaceView.Renderer mRenderer; // borrow this interface
     int mWidth, mHeight;
@@ -131,6 +145,14 @@ public class PixelBuffer {
         mThreadOwner = Thread.currentThread().getName();
     }
 
+    /**
+     * Returns whether the offscreen context and surface could be created
+     */
+    public boolean isValid() {
+        return mEGLContext != null && mEGLContext != EGL_NO_CONTEXT
+                && mEGLSurface != null && mEGLSurface != EGL10.EGL_NO_SURFACE;
+    }
+
     public void setRenderer(GLSurfaceView.Renderer renderer) {
         mRenderer = renderer;
 
@@ -160,6 +182,15 @@ public class PixelBuffer {
 
         // Call the renderer draw routine
         mRenderer.onDrawFrame(mGL);
+
+        if (mRenderer instanceof BitmapRenderer) {
+            Bitmap rendered = ((BitmapRenderer) mRenderer).getRenderedBitmap();
+            if (rendered != null) {
+                mBitmap = rendered;
+                return mBitmap;
+            }
+        }
+
         convertToBitmap();
         return mBitmap;
     }
@@ -225,59 +256,56 @@ public class PixelBuffer {
     }
 
     private void convertToBitmap() {
-        System.gc();
-        Runtime.getRuntime().gc();
-
         final int mMaxTextureSize = mContext.getResources().getInteger(R.integer.config_maxTextureSize);
         boolean isScaled = (mWidth > mMaxTextureSize || mHeight > mMaxTextureSize);
 
         int scaledWidth = isScaled ? mMaxTextureSize : mWidth;
         int scaledHeight = isScaled ? mMaxTextureSize : mHeight;
 
-        IntBuffer ib = IntBuffer.allocate(scaledWidth*scaledHeight);
-        IntBuffer ibt = IntBuffer.allocate(scaledWidth*scaledHeight);
-        mGL.glReadPixels(0, 0, scaledWidth, scaledHeight, GL_RGBA, GL_UNSIGNED_BYTE, ib);
+        // The readback buffer is shared by all the instances, as one is created per shot
+        synchronized (sReadbackBuffer) {
+            IntBuffer ib = sReadbackBuffer.obtain(scaledWidth, scaledHeight);
+            mGL.glReadPixels(0, 0, scaledWidth, scaledHeight, GL_RGBA, GL_UNSIGNED_BYTE, ib);
 
-        // Convert upside down mirror-reversed image to right-side up normal image.
-        for (int i = 0; i < scaledHeight; i++) {
-            for (int j = 0; j < scaledWidth; j++) {
-                ibt.put((scaledHeight-i-1)*scaledWidth + j, ib.get(i*scaledWidth + j));
-            }
-        }
+            // Convert upside down mirror-reversed image to right-side up normal image.
+            sReadbackBuffer.flipVertically(scaledWidth, scaledHeight);
 
-        mBitmap = Bitmap.createBitmap(scaledWidth, scaledHeight, Bitmap.Config.ARGB_8888);
-        mBitmap.copyPixelsFromBuffer(ibt);
-
-        // Release IntBuffers memory
-        ibt = null;
-        ib = null;
+            mBitmap = Bitmap.createBitmap(scaledWidth, scaledHeight, Bitmap.Config.ARGB_8888);
+            mBitmap.copyPixelsFromBuffer(ib);
+        }
 
         if (isScaled) {
-            ActivityManager.MemoryInfo mi = new ActivityManager.MemoryInfo();
-            ActivityManager activityManager = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
-            activityManager.getMemoryInfo(mi);
-            long availableMegs = mi.availMem / 1048576L;
-            Log.d(TAG, "Available memory: " + availableMegs + "MB");
-            while (availableMegs < 200) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                Log.e(TAG, "Waiting for more memory! (Free: " + availableMegs + "MB)");
-                // We're going to need some memory
-                System.gc();
-                Runtime.getRuntime().gc();
-
-                activityManager.getMemoryInfo(mi);
-                availableMegs = mi.availMem / 1048576L;
+            // Image was converted to a power of two texture, scale it back. Both bitmaps
+            // are alive while scaling, so shrink the result if it doesn't fit in the heap.
+            MemoryBudget budget = MemoryBudget.fromRuntime();
+            float scale = budget.getFittingScale(mWidth, mHeight, SCALE_HEADROOM_BYTES);
+            int targetWidth = (int) (mWidth * scale);
+            int targetHeight = (int) (mHeight * scale);
+
+            if (targetWidth <= 0 || targetHeight <= 0) {
+                Log.e(TAG, "Not enough memory to scale back the image (available: "
+                        + budget.getAvailableBytes() / 1048576L + "MB), keeping it at "
+                        + scaledWidth + "x" + scaledHeight);
+                return;
+            } else if (scale < 1) {
+                Log.w(TAG, "Not enough memory for " + mWidth + "x" + mHeight + " (available: "
+                        + budget.getAvailableBytes() / 1048576L + "MB), using "
+                        + targetWidth + "x" + targetHeight);
             }
 
-            // Image was converted to a power of two texture, scale it back
-            Log.v(TAG, "Image was scaled, scaling back to " + mWidth + "x" + mHeight);
-            Bitmap scaled = Bitmap.createScaledBitmap(mBitmap, mWidth, mHeight, true);
+            Log.v(TAG, "Image was scaled, scaling back to " + targetWidth + "x" + targetHeight);
+            Bitmap scaled = Bitmap.createScaledBitmap(mBitmap, targetWidth, targetHeight, true);
             mBitmap.recycle();
             mBitmap = scaled;
         }
     }
+
+    /**
+     * Frees the shared readback buffer, when no more offscreen rendering is expected soon
+     */
+    public static void releaseReadbackBuffer() {
+        synchronized (sReadbackBuffer) {
+            sReadbackBuffer.release();
+        }
+    }
 }
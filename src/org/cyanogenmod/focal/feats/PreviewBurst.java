@@ -0,0 +1,277 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.feats;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.hardware.Camera;
+import android.util.Log;
+
+import org.cyanogenmod.focal.CameraManager;
+import org.cyanogenmod.focal.SnapshotManager;
+import org.cyanogenmod.focal.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * High-speed burst grabbing the frames straight from the preview stream, instead of going
+ * through a takePicture cycle and a preview restart for every shot. Frames are at the
+ * preview resolution, and are encoded in parallel by a pool of workers.
+ *
+ * The preview buffers grabbed are encoded in place and given back to the camera, so
+ * frames are dropped rather than queued when the workers fall behind.
+ */
+public class PreviewBurst implements CameraManager.PreviewFrameListener {
+    public final static String TAG = "PreviewBurst";
+
+    public final static float DEFAULT_MAX_FPS = 15.0f;
+
+    private final static int JPEG_QUALITY = 90;
+    private final static int MAX_WORKERS = 4;
+    // Buffers for the camera to fill while the others are being encoded
+    private final static int SPARE_BUFFERS = 2;
+
+    public interface Listener {
+        /**
+         * Called once the last frame of the burst has been handed to the image saver
+         *
+         * @param frames The number of frames grabbed
+         */
+        public void onBurstDone(int frames);
+    }
+
+    private static class Frame {
+        byte[] data;
+        int width;
+        int height;
+        int index;
+    }
+
+    private final CameraManager mCamManager;
+    private final SnapshotManager mSnapManager;
+    private final Object mLock = new Object();
+    private final List<Frame> mQueue = new ArrayList<Frame>();
+    private Listener mListener;
+    private float mMaxFps = DEFAULT_MAX_FPS;
+
+    // State of the current burst
+    private Thread[] mWorkers = new Thread[0];
+    private boolean mRunning;
+    private boolean mDone = true;
+    private int mCount;
+    private int mGrabbed;
+    private int mPending;
+    private long mMinIntervalNs;
+    private long mLastGrabTime;
+    private String mTitle;
+    private int mRotation;
+
+    public PreviewBurst(CameraManager camManager, SnapshotManager snapManager) {
+        mCamManager = camManager;
+        mSnapManager = snapManager;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the highest rate frames are grabbed at
+     *
+     * @param fps The rate, in frames per second, or 0 for as fast as the preview goes
+     */
+    public void setMaxFps(float fps) {
+        mMaxFps = fps;
+    }
+
+    /**
+     * Starts grabbing frames
+     *
+     * @param count The number of frames to grab, or 0 until stop is called
+     * @return false if the preview stream can't be used, in which case nothing is started
+     */
+    public boolean start(int count) {
+        Camera.Parameters params = mCamManager.getParameters();
+        if (params == null || params.getPreviewFormat() != ImageFormat.NV21) {
+            Log.w(TAG, "Preview isn't in NV21, can't burst from it");
+            return false;
+        }
+
+        Camera.Size size = params.getPreviewSize();
+        final int bufferSize = size.width * size.height
+                * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        final int workers = Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors());
+
+        synchronized (mLock) {
+            if (!mDone) {
+                Log.w(TAG, "A burst is already in progress");
+                return false;
+            }
+
+            mRunning = true;
+            mDone = false;
+            mCount = count;
+            mGrabbed = 0;
+            mPending = 0;
+            mMinIntervalNs = (mMaxFps > 0) ? (long) (1000000000L / mMaxFps) : 0;
+            mLastGrabTime = 0;
+            mTitle = Util.createJpegName(System.currentTimeMillis());
+            mRotation = mCamManager.getPictureRotation();
+            mQueue.clear();
+
+            mWorkers = new Thread[workers];
+            for (int i = 0; i < workers; i++) {
+                mWorkers[i] = new Thread(mEncodeRunnable, TAG);
+                mWorkers[i].start();
+            }
+        }
+
+        mCamManager.setPreviewFrameListener(this);
+        for (int i = 0; i < workers + SPARE_BUFFERS; i++) {
+            mCamManager.addPreviewBuffer(new byte[bufferSize]);
+        }
+
+        Log.v(TAG, "Starting burst of " + count + " frames at " + size.width + "x"
+                + size.height + ", " + workers + " workers");
+        return true;
+    }
+
+    /**
+     * Stops grabbing frames. The frames already grabbed are still encoded and saved.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            if (mDone) return;
+        }
+        mCamManager.setPreviewFrameListener(null);
+
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+        }
+        notifyIfDone();
+    }
+
+    public boolean isRunning() {
+        synchronized (mLock) {
+            return !mDone;
+        }
+    }
+
+    @Override
+    public boolean onPreviewFrame(byte[] data, int width, int height, long timestamp) {
+        synchronized (mLock) {
+            if (!mRunning || timestamp - mLastGrabTime < mMinIntervalNs) {
+                return false;
+            }
+
+            // Drop the frame if the workers are all busy, counting the frames being
+            // encoded: queueing would only add latency, and keep buffers from the camera
+            if (mPending >= mWorkers.length) {
+                return false;
+            }
+
+            Frame frame = new Frame();
+            frame.data = data;
+            frame.width = width;
+            frame.height = height;
+            frame.index = mGrabbed++;
+            mQueue.add(frame);
+            mPending++;
+            mLastGrabTime = timestamp;
+
+            if (mCount > 0 && mGrabbed >= mCount) {
+                mRunning = false;
+            }
+            mLock.notifyAll();
+        }
+
+        return true;
+    }
+
+    private Runnable mEncodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            Rect rect = new Rect();
+
+            while (true) {
+                Frame frame;
+                synchronized (mLock) {
+                    while (mQueue.isEmpty() && mRunning) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            // Only stopping ends the workers
+                        }
+                    }
+
+                    if (mQueue.isEmpty()) break;
+                    frame = mQueue.remove(0);
+                }
+
+                baos.reset();
+                rect.set(0, 0, frame.width, frame.height);
+                YuvImage image = new YuvImage(frame.data, ImageFormat.NV21, frame.width,
+                        frame.height, null);
+                boolean encoded = image.compressToJpeg(rect, JPEG_QUALITY, baos);
+
+                // The camera can fill the buffer again
+                mCamManager.addPreviewBuffer(frame.data);
+
+                if (encoded) {
+                    mSnapManager.saveFrame(baos.toByteArray(),
+                            String.format("%s_BURST%03d", mTitle, frame.index),
+                            frame.width, frame.height, mRotation);
+                } else {
+                    Log.e(TAG, "Couldn't encode frame " + frame.index);
+                }
+
+                synchronized (mLock) {
+                    mPending--;
+                }
+                notifyIfDone();
+            }
+        }
+    };
+
+    /**
+     * Notifies the listener if the burst is stopped and all its frames are saved
+     */
+    private void notifyIfDone() {
+        final int frames;
+        synchronized (mLock) {
+            if (mDone || mRunning || mPending > 0) return;
+
+            // Grabbing may have ended on its own, no more frames needed
+            mCamManager.setPreviewFrameListener(null);
+            mDone = true;
+            frames = mGrabbed;
+            mLock.notifyAll();
+        }
+
+        Log.v(TAG, "Burst done, " + frames + " frames");
+        if (mListener != null) {
+            mListener.onBurstDone(frames);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.feats;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Reusable direct buffer for pixel readbacks. The buffer lives outside of the Java heap and is
+ * only reallocated when a larger image is read, so successive readbacks don't churn the heap.
+ * This class doesn't depend on Android and can be exercised on a plain JVM.
+ */
+public class ReadbackBuffer {
+    private IntBuffer mBuffer;
+    private int[] mRowA;
+    private int[] mRowB;
+
+    /**
+     * Returns a buffer able to hold width*height pixels, positioned at 0 with its limit set
+     * to the image size. The buffer is only valid until the next call.
+     */
+    public IntBuffer obtain(int width, int height) {
+        final int size = width * height;
+        if (mBuffer == null || mBuffer.capacity() < size) {
+            mBuffer = null;
+            mBuffer = ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder())
+                    .asIntBuffer();
+        }
+
+        if (mRowA == null || mRowA.length < width) {
+            mRowA = new int[width];
+            mRowB = new int[width];
+        }
+
+        mBuffer.clear();
+        mBuffer.limit(size);
+        return mBuffer;
+    }
+
+    /**
+     * Flips the image held in the buffer upside down, in place, one row swap at a time. GL
+     * reads pixels bottom-up, while bitmaps are stored top-down.
+     */
+    public void flipVertically(int width, int height) {
+        flipVertically(mBuffer, width, height, mRowA, mRowB);
+        mBuffer.rewind();
+    }
+
+    /**
+     * Flips the first width*height pixels of a buffer upside down, using two scratch rows of
+     * at least width pixels
+     */
+    public static void flipVertically(IntBuffer buffer, int width, int height,
+                                      int[] rowA, int[] rowB) {
+        for (int top = 0, bottom = height - 1; top < bottom; top++, bottom--) {
+            buffer.position(top * width);
+            buffer.get(rowA, 0, width);
+            buffer.position(bottom * width);
+            buffer.get(rowB, 0, width);
+
+            buffer.position(top * width);
+            buffer.put(rowB, 0, width);
+            buffer.position(bottom * width);
+            buffer.put(rowA, 0, width);
+        }
+    }
+
+    /**
+     * Drops the buffer, which will be reallocated on the next readback
+     */
+    public void release() {
+        mBuffer = null;
+        mRowA = null;
+        mRowB = null;
+    }
+}
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.net.Uri;
 import android.util.Log;
 
+import org.cyanogenmod.focal.BinaryStager;
 import org.cyanogenmod.focal.SnapshotManager;
 
 import java.io.BufferedReader;
@@ -55,6 +56,9 @@ public class SoftwareHdrProcessor {
     }
 
     private void run(String command) throws IOException {
+        if (!BinaryStager.ensureStaged(mContext)) {
+            throw new IOException("HDR binaries are unavailable");
+        }
         Runtime rt = Runtime.getRuntime();
         Process proc = rt.exec(command, new String[]{"PATH="+mPathPrefix+":/system/bin",
                 "LD_LIBRARY_PATH="+mPathPrefix+":/system/lib"});
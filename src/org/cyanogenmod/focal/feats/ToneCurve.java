@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.feats;
+
+/**
+ * Global tone curve of the automatic enhancement, computed from a luminance histogram and
+ * applied to each color channel through a 256-entry lookup table.
+ *
+ * It approximates the media effects pipeline used by AutoPictureEnhancer: the black and
+ * white points are stretched first (EFFECT_BLACKWHITE), then the result is partially
+ * equalized (EFFECT_AUTOFIX). The effects framework doesn't expose its auto-fix curve, so
+ * this is not the same operation, and a picture enhanced with it can look noticeably
+ * different from one enhanced by the framework. Since the curve only depends on global
+ * statistics, it can be computed on a downscaled copy of a picture and applied to the
+ * full resolution one in pieces.
+ * This class doesn't depend on Android and can be exercised on a plain JVM.
+ */
+public class ToneCurve {
+    public final static float DEFAULT_BLACK = 0.1f;
+    public final static float DEFAULT_WHITE = 0.8f;
+    public final static float DEFAULT_AUTOFIX_SCALE = 0.4f;
+
+    private final int[] mLut;
+
+    private ToneCurve(int[] lut) {
+        mLut = lut;
+    }
+
+    /**
+     * Returns a curve that leaves pixels untouched
+     */
+    public static ToneCurve identity() {
+        int[] lut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            lut[i] = i;
+        }
+        return new ToneCurve(lut);
+    }
+
+    /**
+     * Computes the curve from a luminance histogram, using the default parameters
+     */
+    public static ToneCurve fromHistogram(int[] histogram) {
+        return fromHistogram(histogram, DEFAULT_BLACK, DEFAULT_WHITE, DEFAULT_AUTOFIX_SCALE);
+    }
+
+    /**
+     * Computes the curve from a luminance histogram
+     *
+     * @param histogram 256 luminance bins
+     * @param black The input level mapped to black, from 0 to 1
+     * @param white The input level mapped to white, from 0 to 1
+     * @param autoFixScale The strength of the equalization, from 0 to 1
+     */
+    public static ToneCurve fromHistogram(int[] histogram, float black, float white,
+                                          float autoFixScale) {
+        // Black and white points
+        int[] levels = new int[256];
+        float range = Math.max(white - black, 1.0f / 255.0f);
+        for (int i = 0; i < 256; i++) {
+            levels[i] = clamp(Math.round((i / 255.0f - black) / range * 255.0f));
+        }
+
+        // Equalization of the stretched histogram
+        long[] cdf = new long[256];
+        for (int i = 0; i < 256; i++) {
+            cdf[levels[i]] += histogram[i];
+        }
+        for (int i = 1; i < 256; i++) {
+            cdf[i] += cdf[i - 1];
+        }
+        long total = cdf[255];
+
+        int[] lut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int level = levels[i];
+            float equalized = (total > 0) ? (255.0f * cdf[level] / total) : level;
+            lut[i] = clamp(Math.round(level + autoFixScale * (equalized - level)));
+        }
+
+        return new ToneCurve(lut);
+    }
+
+    /**
+     * Accumulates the luminance histogram of a block of ARGB pixels
+     *
+     * @param histogram 256 bins, added to
+     * @param step Sampling step in both directions, 1 to use every pixel
+     */
+    public static void accumulateHistogram(int[] histogram, int[] argb, int offset, int stride,
+                                           int width, int height, int step) {
+        for (int y = 0; y < height; y += step) {
+            int index = offset + y * stride;
+            for (int x = 0; x < width; x += step) {
+                histogram[luminance(argb[index + x])]++;
+            }
+        }
+    }
+
+    /**
+     * Returns the Rec. 601 luma of an ARGB pixel
+     */
+    public static int luminance(int argb) {
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        return (r * 77 + g * 150 + b * 29) >> 8;
+    }
+
+    /**
+     * Returns the lookup table, which maps each channel value to its enhanced value. The
+     * array must not be modified.
+     */
+    public int[] getLut() {
+        return mLut;
+    }
+
+    /**
+     * Applies the curve to a block of ARGB pixels, in place
+     */
+    public void apply(int[] argb, int offset, int stride, int width, int height) {
+        final int[] lut = mLut;
+        for (int y = 0; y < height; y++) {
+            int index = offset + y * stride;
+            final int end = index + width;
+            for (; index < end; index++) {
+                int c = argb[index];
+                argb[index] = (c & 0xFF000000) | (lut[(c >> 16) & 0xFF] << 16)
+                        | (lut[(c >> 8) & 0xFF] << 8) | lut[c & 0xFF];
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.feats;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Renders a texture 1:1 into the current viewport, mapping each channel through the lookup
+ * table of a ToneCurve
+ */
+public class ToneCurveRenderer {
+    private int mProgram;
+    private int mTexSamplerHandle;
+    private int mLutSamplerHandle;
+    private int mTexCoordHandle;
+    private int mPosCoordHandle;
+    private int[] mLutTexture = new int[1];
+
+    private FloatBuffer mTexVertices;
+    private FloatBuffer mPosVertices;
+
+    private static final String VERTEX_SHADER =
+        "attribute vec4 a_position;\n" +
+        "attribute vec2 a_texcoord;\n" +
+        "varying vec2 v_texcoord;\n" +
+        "void main() {\n" +
+        "  gl_Position = a_position;\n" +
+        "  v_texcoord = a_texcoord;\n" +
+        "}\n";
+
+    // The lookup table is a 256x1 texture, sampled at the center of each texel
+    private static final String FRAGMENT_SHADER =
+        "precision mediump float;\n" +
+        "uniform sampler2D tex_sampler;\n" +
+        "uniform sampler2D lut_sampler;\n" +
+        "varying vec2 v_texcoord;\n" +
+        "const float lut_scale = 255.0 / 256.0;\n" +
+        "const float lut_offset = 0.5 / 256.0;\n" +
+        "void main() {\n" +
+        "  vec4 color = texture2D(tex_sampler, v_texcoord);\n" +
+        "  vec3 index = color.rgb * lut_scale + lut_offset;\n" +
+        "  gl_FragColor = vec4(texture2D(lut_sampler, vec2(index.r, 0.5)).r,\n" +
+        "                      texture2D(lut_sampler, vec2(index.g, 0.5)).r,\n" +
+        "                      texture2D(lut_sampler, vec2(index.b, 0.5)).r,\n" +
+        "                      color.a);\n" +
+        "}\n";
+
+    private static final float[] TEX_VERTICES = {
+        0.0f, 1.0f, 1.0f, 1.0f, 0.0f, 0.0f, 1.0f, 0.0f
+    };
+
+    private static final float[] POS_VERTICES = {
+        -1.0f, -1.0f, 1.0f, -1.0f, -1.0f, 1.0f, 1.0f, 1.0f
+    };
+
+    private static final int FLOAT_SIZE_BYTES = 4;
+
+    public void init() {
+        // Create program
+        mProgram = GLToolbox.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+
+        // Bind attributes and uniforms
+        mTexSamplerHandle = GLES20.glGetUniformLocation(mProgram, "tex_sampler");
+        mLutSamplerHandle = GLES20.glGetUniformLocation(mProgram, "lut_sampler");
+        mTexCoordHandle = GLES20.glGetAttribLocation(mProgram, "a_texcoord");
+        mPosCoordHandle = GLES20.glGetAttribLocation(mProgram, "a_position");
+
+        // Setup coordinate buffers
+        mTexVertices = ByteBuffer.allocateDirect(
+                TEX_VERTICES.length * FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mTexVertices.put(TEX_VERTICES).position(0);
+        mPosVertices = ByteBuffer.allocateDirect(
+                POS_VERTICES.length * FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mPosVertices.put(POS_VERTICES).position(0);
+
+        GLES20.glGenTextures(1, mLutTexture, 0);
+    }
+
+    public void tearDown() {
+        GLES20.glDeleteTextures(1, mLutTexture, 0);
+        GLES20.glDeleteProgram(mProgram);
+    }
+
+    /**
+     * Uploads the lookup table of the curve to apply
+     */
+    public void setCurve(ToneCurve curve) {
+        int[] lut = curve.getLut();
+        ByteBuffer data = ByteBuffer.allocateDirect(256);
+        for (int i = 0; i < 256; i++) {
+            data.put((byte) lut[i]);
+        }
+        data.position(0);
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLutTexture[0]);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, 256, 1, 0,
+                GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, data);
+        initNearestTexParams();
+        GLToolbox.checkGlError("LUT upload");
+    }
+
+    /**
+     * Renders the texture over a viewport of the provided size
+     */
+    public void renderTexture(int texId, int viewWidth, int viewHeight) {
+        // Bind default FBO
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        // Use our shader program
+        GLES20.glUseProgram(mProgram);
+        GLToolbox.checkGlError("glUseProgram");
+
+        GLES20.glViewport(0, 0, viewWidth, viewHeight);
+        GLES20.glDisable(GLES20.GL_BLEND);
+
+        // Set the vertex attributes
+        GLES20.glVertexAttribPointer(mTexCoordHandle, 2, GLES20.GL_FLOAT, false,
+                0, mTexVertices);
+        GLES20.glEnableVertexAttribArray(mTexCoordHandle);
+        GLES20.glVertexAttribPointer(mPosCoordHandle, 2, GLES20.GL_FLOAT, false,
+                0, mPosVertices);
+        GLES20.glEnableVertexAttribArray(mPosCoordHandle);
+        GLToolbox.checkGlError("vertex attribute setup");
+
+        // Set the input textures
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texId);
+        GLES20.glUniform1i(mTexSamplerHandle, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLutTexture[0]);
+        GLES20.glUniform1i(mLutSamplerHandle, 1);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLToolbox.checkGlError("texture setup");
+
+        // Draw
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    /**
+     * Sets up the bound texture to be sampled without filtering, as the tiles are drawn
+     * pixel for pixel
+     */
+    public static void initNearestTexParams() {
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.feats;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.util.Log;
+
+import org.cyanogenmod.focal.CameraActivity;
+import org.cyanogenmod.focal.R;
+import org.cyanogenmod.focal.SharpnessScorer;
+import org.cyanogenmod.focal.SnapshotManager;
+import org.cyanogenmod.focal.Storage;
+import org.cyanogenmod.focal.Util;
+import org.cyanogenmod.focal.ZslRing;
+import org.cyanogenmod.focal.ui.ShutterButton;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Software zero shutter lag: the picture is made out of the preview frame shown when the
+ * shutter was pressed, kept in a ring of the latest frames, and saved right away. A full
+ * resolution picture can still be taken, which then replaces the preview one.
+ */
+public class ZslCapture extends CaptureTransformer {
+    public final static String TAG = "ZslCapture";
+    public final static String KEY_ENABLED = "SoftwareZslEnabled";
+
+    private final static int JPEG_QUALITY = 95;
+    // Frames further than this from the press are too late, a regular shot is taken instead
+    private final static long MAX_FRAME_AGE_NS = 300000000L;
+    // How far from the press the sharpest frame may be picked
+    private final static long SHARPEST_WINDOW_NS = 100000000L;
+
+    private CameraActivity mActivity;
+    private ZslRing mRing;
+    private SharpnessScorer mScorer;
+    private boolean mPickSharpest;
+    private boolean mFullResUpgrade;
+    // Preview pictures waiting to be replaced by their full resolution version
+    private final List<SnapshotManager.SnapshotInfo> mAwaitingUpgrade =
+            new ArrayList<SnapshotManager.SnapshotInfo>();
+    private final List<SnapshotManager.SnapshotInfo> mSuperseded =
+            new ArrayList<SnapshotManager.SnapshotInfo>();
+
+    public ZslCapture(CameraActivity activity) {
+        super(activity.getCamManager(), activity.getSnapManager());
+        mActivity = activity;
+        mRing = new ZslRing(activity.getResources().getInteger(R.integer.config_zslFrames));
+        mFullResUpgrade = activity.getResources().getBoolean(R.bool.config_zslFullResUpgrade);
+        mPickSharpest = activity.getResources().getBoolean(R.bool.config_zslPickSharpest);
+    }
+
+    @Override
+    public void onAttach() {
+        if (mPickSharpest && mScorer == null) {
+            mScorer = new SharpnessScorer();
+        }
+        mCamManager.setPreviewFrameListener(mRing);
+    }
+
+    @Override
+    public void onDetach() {
+        mCamManager.setPreviewFrameListener(null);
+        mRing.clear();
+
+        if (mScorer != null) {
+            mScorer.release();
+            mScorer = null;
+        }
+    }
+
+    @Override
+    public void onShutterButtonClicked(ShutterButton button) {
+        final long pressTime = System.nanoTime();
+        final SharpnessScorer scorer = mScorer;
+        final List<ZslRing.Frame> frames = mRing.acquire(pressTime, MAX_FRAME_AGE_NS,
+                scorer != null ? SHARPEST_WINDOW_NS : 0);
+
+        if (frames.isEmpty()) {
+            Log.v(TAG, "No recent preview frame, taking a regular shot");
+            mSnapManager.queueSnapshot(true, 0);
+            return;
+        }
+
+        final String title = Util.createJpegName(System.currentTimeMillis()) + "_ZSL";
+        final int rotation = mCamManager.getPictureRotation();
+        final SnapshotManager.SnapshotInfo info = mSnapManager.createSnapshotInfo();
+        if (mFullResUpgrade) {
+            // Known before it's saved, so that it isn't taken for the full resolution picture
+            synchronized (mAwaitingUpgrade) {
+                mAwaitingUpgrade.add(info);
+            }
+        }
+
+        new Thread() {
+            public void run() {
+                final ZslRing.Frame frame = pickFrame(frames, scorer);
+                Log.v(TAG, "Using the frame " + (frame.timestamp - pressTime) / 1000000
+                        + "ms from the press");
+
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                YuvImage image = new YuvImage(frame.data, ImageFormat.NV21, frame.width,
+                        frame.height, null);
+                boolean encoded = image.compressToJpeg(new Rect(0, 0, frame.width,
+                        frame.height), JPEG_QUALITY, baos);
+                mRing.release(frame);
+
+                if (!encoded) {
+                    Log.e(TAG, "Couldn't encode the preview frame");
+                    synchronized (mAwaitingUpgrade) {
+                        mAwaitingUpgrade.remove(info);
+                    }
+                    return;
+                }
+
+                mSnapManager.saveFrame(baos.toByteArray(), title, frame.width, frame.height,
+                        rotation, info);
+            }
+        }.start();
+
+        if (mFullResUpgrade) {
+            mSnapManager.queueSnapshot(true, 0);
+        }
+    }
+
+    /**
+     * Picks the sharpest of the locked frames, or the closest one without a scorer, and
+     * releases the others
+     */
+    private ZslRing.Frame pickFrame(List<ZslRing.Frame> frames, SharpnessScorer scorer) {
+        ZslRing.Frame best = frames.get(0);
+        if (scorer != null && frames.size() > 1) {
+            float bestScore = -1;
+            try {
+                for (ZslRing.Frame frame : frames) {
+                    final float score = scorer.score(frame.data, frame.width, frame.height);
+                    if (score > bestScore) {
+                        bestScore = score;
+                        best = frame;
+                    }
+                }
+            } catch (IllegalStateException e) {
+                // Detached meanwhile, which released the scorer
+                Log.w(TAG, "Scorer released, using the best frame so far");
+            }
+        }
+
+        for (ZslRing.Frame frame : frames) {
+            if (frame != best) {
+                mRing.release(frame);
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void onSnapshotShutter(SnapshotManager.SnapshotInfo info) {
+
+    }
+
+    @Override
+    public void onSnapshotPreview(SnapshotManager.SnapshotInfo info) {
+
+    }
+
+    @Override
+    public void onSnapshotProcessing(SnapshotManager.SnapshotInfo info) {
+
+    }
+
+    @Override
+    public void onSnapshotSaved(SnapshotManager.SnapshotInfo info) {
+        if (!mFullResUpgrade) return;
+
+        SnapshotManager.SnapshotInfo replaced = null;
+        synchronized (mAwaitingUpgrade) {
+            if (mAwaitingUpgrade.contains(info)) {
+                // The full resolution picture may have made it first
+                if (mSuperseded.remove(info)) {
+                    mAwaitingUpgrade.remove(info);
+                    replaced = info;
+                }
+            } else {
+                // A full resolution picture, which replaces the oldest preview picture
+                for (SnapshotManager.SnapshotInfo preview : mAwaitingUpgrade) {
+                    if (!mSuperseded.contains(preview)) {
+                        if (preview.mUri != null) {
+                            mAwaitingUpgrade.remove(preview);
+                            replaced = preview;
+                        } else {
+                            mSuperseded.add(preview);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (replaced != null && replaced.mUri != null) {
+            final ContentResolver resolver = mActivity.getContentResolver();
+            final SnapshotManager.SnapshotInfo preview = replaced;
+            new Thread() {
+                public void run() {
+                    Storage.getStorage().deleteImage(resolver, preview.mUri);
+                    // It was added to the review drawer once saved
+                    mActivity.getReviewDrawer().removeImageFromList(
+                            (int) ContentUris.parseId(preview.mUri));
+                }
+            }.start();
+        }
+    }
+
+    @Override
+    public void onMediaSavingStart() {
+
+    }
+
+    @Override
+    public void onMediaSavingDone() {
+
+    }
+
+    @Override
+    public void onVideoRecordingStart() {
+
+    }
+
+    @Override
+    public void onVideoRecordingStop() {
+
+    }
+}
@@ -21,10 +21,21 @@ import android.util.Log;
 
 /**
  * Class to handle the processing of each frame by Mosaicer.
+ *
+ * Frames are rendered and downsampled by MosaicPreviewRenderer on its EGL thread at preview
+ * rate, while their registration runs on a dedicated alignment thread at its own pace. The
+ * native library has a single staging buffer for the frames copied back from the GPU, so it
+ * acts as a one-frame mailbox: a staged frame that the alignment thread didn't pick up yet is
+ * replaced by the next one (oldest dropped), and no frame is staged while the previous one is
+ * being aligned.
+ *
+ * Frames are only staged when they bring enough new content: the translation since the last
+ * aligned frame is estimated from the moving average of the measured translations, and frames
+ * below KEYFRAME_MIN_TRANSLATION are skipped. Slow pans thus use fewer of the
+ * MAX_NUMBER_OF_FRAMES frames the mosaicer accepts, while fast ones still get every frame.
  */
 public class MosaicFrameProcessor {
     private static final String TAG = "MosaicFrameProcessor";
-    private static final int NUM_FRAMES_IN_BUFFER = 2;
     private static final int MAX_NUMBER_OF_FRAMES = 200;
     private static final int MOSAIC_RET_CODE_INDEX = 10;
     private static final int FRAME_COUNT_INDEX = 9;
@@ -32,16 +43,17 @@ public class MosaicFrameProcessor {
     private static final int Y_COORD_INDEX = 5;
     private static final int HR_TO_LR_DOWNSAMPLE_FACTOR = 4;
     private static final int WINDOW_SIZE = 3;
+    // Minimum estimated translation of a frame, in fraction of the frame size, to align it
+    private static final float KEYFRAME_MIN_TRANSLATION = 0.03f;
+    // Maximum number of preview frames skipped in a row, so that the estimate doesn't drift
+    private static final int KEYFRAME_MAX_SKIPPED = 5;
 
     private Mosaic mMosaicer;
     private boolean mIsMosaicMemoryAllocated = false;
     private float mTranslationLastX;
     private float mTranslationLastY;
 
-    private int mFillIn = 0;
     private int mTotalFrameCount = 0;
-    private int mLastProcessFrameIdx = -1;
-    private int mCurrProcessFrameIdx = -1;
     private boolean mFirstRun;
 
     // Panning rate is in unit of percentage of image content translation per
@@ -55,15 +67,39 @@ public class MosaicFrameProcessor {
     private float mTotalTranslationX = 0f;
     private float mTotalTranslationY = 0f;
 
-    private ProgressListener mProgressListener;
+    private volatile ProgressListener mProgressListener;
 
     private int mPreviewWidth;
     private int mPreviewHeight;
     private int mPreviewBufferSize;
 
+    // Staging slot state, guarded by this
+    private boolean mStagingFrame;
+    private boolean mFrameStaged;
+    private boolean mAligningFrame;
+    private long mPreviewFrameIndex;
+    private long mStagedFrameIndex;
+    private long mLastAlignedFrameIndex;
+    private int mDroppedFrames;
+    private int mAlignedFrames;
+    private int mSkippedFrames;
+    // Average translation per preview frame over the mDeltaX/mDeltaY window, in pixels
+    private float mEstimatedRateX;
+    private float mEstimatedRateY;
+
+    private Thread mAlignmentThread;
+    private boolean mAlignmentRunning;
+
+    // Set while the final mosaic is rendered in the background, guarded by this
+    private boolean mRendering;
+    private boolean mClearPending;
+
     private static MosaicFrameProcessor sMosaicFrameProcessor; // singleton
 
     public interface ProgressListener {
+        /**
+         * Called from the alignment thread after each aligned frame
+         */
         public void onProgress(boolean isFinished, float panningRateX, float panningRateY,
                                float progressX, float progressY);
     }
@@ -94,9 +130,21 @@ public class MosaicFrameProcessor {
         setupMosaicer(mPreviewWidth, mPreviewHeight, mPreviewBufferSize);
         setStripType(Mosaic.STRIPTYPE_WIDE);
         reset();
+        startAlignmentThread();
     }
 
     public void clear() {
+        // The alignment thread must be done with the native buffers before they are freed
+        stopAlignmentThread();
+
+        synchronized (this) {
+            if (mRendering) {
+                // The mosaic is still needed, endRender() will free it
+                mClearPending = true;
+                return;
+            }
+        }
+
         if (mIsMosaicMemoryAllocated) {
             mMosaicer.freeMosaicMemory();
             mIsMosaicMemoryAllocated = false;
@@ -106,6 +154,37 @@ public class MosaicFrameProcessor {
         }
     }
 
+    /**
+     * Marks the captured mosaic as being rendered in the background. It is kept alive, even
+     * if the capture UI calls clear() meanwhile, until endRender() is called.
+     */
+    public synchronized void beginRender() {
+        mRendering = true;
+        mClearPending = false;
+    }
+
+    /**
+     * Releases the mosaic once the background rendering is done, freeing it if clear()
+     * was called meanwhile
+     */
+    public void endRender() {
+        synchronized (this) {
+            mRendering = false;
+            if (!mClearPending) return;
+            mClearPending = false;
+        }
+
+        clear();
+    }
+
+    /**
+     * Returns whether the mosaic is currently being rendered in the background, in which
+     * case it can neither be reset nor initialized again
+     */
+    public synchronized boolean isRendering() {
+        return mRendering;
+    }
+
     public boolean isMosaicMemoryAllocated() {
         return mIsMosaicMemoryAllocated;
     }
@@ -125,25 +204,36 @@ public class MosaicFrameProcessor {
     public void reset() {
         // reset() can be called even if MosaicFrameProcessor is not initialized.
         // Only counters will be changed.
-        mFirstRun = true;
-        mTotalFrameCount = 0;
-        mFillIn = 0;
-        mTotalTranslationX = 0;
-        mTranslationLastX = 0;
-        mTotalTranslationY = 0;
-        mTranslationLastY = 0;
-        mPanningRateX = 0;
-        mPanningRateY = 0;
-        mLastProcessFrameIdx = -1;
-        mCurrProcessFrameIdx = -1;
-        for (int i = 0; i < WINDOW_SIZE; ++i) {
-            mDeltaX[i] = 0f;
-            mDeltaY[i] = 0f;
-        }
-        mMosaicer.reset();
+        synchronized (this) {
+            waitForAlignment();
+
+            mFirstRun = true;
+            mTotalFrameCount = 0;
+            mTotalTranslationX = 0;
+            mTranslationLastX = 0;
+            mTotalTranslationY = 0;
+            mTranslationLastY = 0;
+            mPanningRateX = 0;
+            mPanningRateY = 0;
+            mPreviewFrameIndex = 0;
+            mLastAlignedFrameIndex = 0;
+            mDroppedFrames = 0;
+            mAlignedFrames = 0;
+            mSkippedFrames = 0;
+            mEstimatedRateX = 0;
+            mEstimatedRateY = 0;
+            for (int i = 0; i < WINDOW_SIZE; ++i) {
+                mDeltaX[i] = 0f;
+                mDeltaY[i] = 0f;
+            }
+            mMosaicer.reset();
+        }
     }
 
     public int createMosaic(boolean highRes) {
+        waitForAlignment();
+        Log.v(TAG, "Creating mosaic: " + getAlignedFrameCount() + " frames aligned, "
+                + getDroppedFrameCount() + " dropped, " + getSkippedFrameCount() + " skipped");
         return mMosaicer.createMosaic(highRes);
     }
 
@@ -151,70 +241,240 @@ public class MosaicFrameProcessor {
         return mMosaicer.getFinalMosaicNV21();
     }
 
-    // Processes the last filled image frame through the mosaicer and
+    /**
+     * Returns the number of preview frames that were not aligned because the alignment
+     * thread was busy
+     */
+    public synchronized int getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Returns the number of preview frames that were not aligned because they didn't
+     * move enough since the last aligned frame
+     */
+    public synchronized int getSkippedFrameCount() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * Returns the number of frames registered by the mosaicer since the last reset
+     */
+    public synchronized int getAlignedFrameCount() {
+        return mAlignedFrames;
+    }
+
+    /**
+     * Called from the EGL thread for each preview frame of the capture, before copying it
+     * from the GPU. A frame staged earlier and not picked up yet by the alignment thread is
+     * replaced.
+     *
+     * @return true if the frame can be transferred to the staging buffer, in which case
+     *         endStaging() must be called once it is done
+     */
+    public synchronized boolean beginStaging() {
+        mPreviewFrameIndex++;
+
+        if (!mAlignmentRunning || !mIsMosaicMemoryAllocated) {
+            return false;
+        }
+
+        if (mAligningFrame) {
+            // The staging buffer is being read
+            mDroppedFrames++;
+            return false;
+        }
+
+        // Once the mosaicer is full, frames still go through so that processFrame()
+        // reports the capture as finished
+        if (mTotalFrameCount < MAX_NUMBER_OF_FRAMES && !isKeyFrame()) {
+            mSkippedFrames++;
+            return false;
+        }
+
+        if (mFrameStaged) {
+            mFrameStaged = false;
+            mDroppedFrames++;
+        }
+
+        mStagingFrame = true;
+        return true;
+    }
+
+    /**
+     * Estimates whether the current preview frame moved enough since the last aligned one
+     * to be worth aligning. Must be called with the lock held.
+     */
+    private boolean isKeyFrame() {
+        // Wait for the moving average to be filled, and after that for the first alignment
+        // of a new capture
+        if (mAlignedFrames <= WINDOW_SIZE) {
+            return true;
+        }
+
+        long elapsedFrames = mPreviewFrameIndex - mLastAlignedFrameIndex;
+        if (elapsedFrames > KEYFRAME_MAX_SKIPPED) {
+            return true;
+        }
+
+        float lowResWidth = mPreviewWidth / HR_TO_LR_DOWNSAMPLE_FACTOR;
+        float lowResHeight = mPreviewHeight / HR_TO_LR_DOWNSAMPLE_FACTOR;
+        return (mEstimatedRateX * elapsedFrames >= KEYFRAME_MIN_TRANSLATION * lowResWidth)
+                || (mEstimatedRateY * elapsedFrames >= KEYFRAME_MIN_TRANSLATION * lowResHeight);
+    }
+
+    /**
+     * Hands the frame transferred to the staging buffer to the alignment thread
+     */
+    public synchronized void endStaging() {
+        mStagingFrame = false;
+        mFrameStaged = true;
+        mStagedFrameIndex = mPreviewFrameIndex;
+        notifyAll();
+    }
+
+    /**
+     * Discards the staged frame and blocks until the frame being aligned, if any, is done
+     */
+    private synchronized void waitForAlignment() {
+        mFrameStaged = false;
+
+        while (mAligningFrame || mStagingFrame) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void startAlignmentThread() {
+        synchronized (this) {
+            if (mAlignmentThread != null) return;
+            mAlignmentRunning = true;
+        }
+
+        mAlignmentThread = new Thread("MosaicAlignment") {
+            public void run() {
+                alignFrames();
+            }
+        };
+        mAlignmentThread.start();
+    }
+
+    private void stopAlignmentThread() {
+        Thread thread = mAlignmentThread;
+        if (thread == null) return;
+
+        synchronized (this) {
+            mAlignmentRunning = false;
+            mFrameStaged = false;
+            notifyAll();
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            // ignore
+        }
+        mAlignmentThread = null;
+    }
+
+    private void alignFrames() {
+        while (true) {
+            long frameIndex;
+            synchronized (this) {
+                while (mAlignmentRunning && !mFrameStaged) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+
+                if (!mAlignmentRunning) return;
+
+                mFrameStaged = false;
+                mAligningFrame = true;
+                frameIndex = mStagedFrameIndex;
+            }
+
+            try {
+                processFrame(frameIndex);
+            } finally {
+                synchronized (this) {
+                    mAligningFrame = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    // Processes the last staged image frame through the mosaicer and
     // updates the UI to show progress.
-    // When done, processes and displays the final mosaic.
-    public void processFrame() {
+    private void processFrame(long frameIndex) {
         if (!mIsMosaicMemoryAllocated) {
             // clear() is called and buffers are cleared, stop computation.
-            // This can happen when the onPause() is called in the activity, but still some frames
-            // are not processed yet and thus the callback may be invoked.
             return;
         }
 
-        mCurrProcessFrameIdx = mFillIn;
-        mFillIn = ((mFillIn + 1) % NUM_FRAMES_IN_BUFFER);
+        ProgressListener listener = mProgressListener;
 
-        // Check that we are trying to process a frame different from the
-        // last one processed (useful if this class was running asynchronously)
-        if (mCurrProcessFrameIdx != mLastProcessFrameIdx) {
-            mLastProcessFrameIdx = mCurrProcessFrameIdx;
+        // TODO: make the termination condition regarding reaching
+        // MAX_NUMBER_OF_FRAMES solely determined in the library.
+        if (mTotalFrameCount < MAX_NUMBER_OF_FRAMES) {
+            // If we are still collecting new frames for the current mosaic,
+            // process the new frame.
+            calculateTranslationRate(frameIndex);
 
-            // TODO: make the termination condition regarding reaching
-            // MAX_NUMBER_OF_FRAMES solely determined in the library.
-            if (mTotalFrameCount < MAX_NUMBER_OF_FRAMES) {
-                // If we are still collecting new frames for the current mosaic,
-                // process the new frame.
-                calculateTranslationRate();
-
-                // Publish progress of the ongoing processing
-                if (mProgressListener != null) {
-                    mProgressListener.onProgress(false, mPanningRateX, mPanningRateY,
-                            mTranslationLastX * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewWidth,
-                            mTranslationLastY * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewHeight);
-                }
-            } else {
-                if (mProgressListener != null) {
-                    mProgressListener.onProgress(true, mPanningRateX, mPanningRateY,
-                            mTranslationLastX * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewWidth,
-                            mTranslationLastY * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewHeight);
-                }
+            // Publish progress of the ongoing processing
+            if (listener != null) {
+                listener.onProgress(false, mPanningRateX, mPanningRateY,
+                        mTranslationLastX * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewWidth,
+                        mTranslationLastY * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewHeight);
+            }
+        } else {
+            if (listener != null) {
+                listener.onProgress(true, mPanningRateX, mPanningRateY,
+                        mTranslationLastX * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewWidth,
+                        mTranslationLastY * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewHeight);
             }
         }
     }
 
-    public void calculateTranslationRate() {
+    private void calculateTranslationRate(long frameIndex) {
         float[] frameData = mMosaicer.setSourceImageFromGPU();
         int ret_code = (int) frameData[MOSAIC_RET_CODE_INDEX];
-        mTotalFrameCount  = (int) frameData[FRAME_COUNT_INDEX];
         float translationCurrX = frameData[X_COORD_INDEX];
         float translationCurrY = frameData[Y_COORD_INDEX];
 
+        synchronized (this) {
+            mTotalFrameCount = (int) frameData[FRAME_COUNT_INDEX];
+            mAlignedFrames++;
+        }
+
         if (mFirstRun) {
             // First time: no need to update delta values.
             mTranslationLastX = translationCurrX;
             mTranslationLastY = translationCurrY;
+            synchronized (this) {
+                mLastAlignedFrameIndex = frameIndex;
+            }
             mFirstRun = false;
             return;
         }
 
+        // Frames may have been skipped since the last aligned one: spread the translation
+        // over all the preview frames, so that the rate stays per preview frame
+        long elapsedFrames = Math.max(1, frameIndex - mLastAlignedFrameIndex);
+
         // Moving average: remove the oldest translation/deltaTime and
         // add the newest translation/deltaTime in
         int idx = mOldestIdx;
         mTotalTranslationX -= mDeltaX[idx];
         mTotalTranslationY -= mDeltaY[idx];
-        mDeltaX[idx] = Math.abs(translationCurrX - mTranslationLastX);
-        mDeltaY[idx] = Math.abs(translationCurrY - mTranslationLastY);
+        mDeltaX[idx] = Math.abs(translationCurrX - mTranslationLastX) / elapsedFrames;
+        mDeltaY[idx] = Math.abs(translationCurrY - mTranslationLastY) / elapsedFrames;
         mTotalTranslationX += mDeltaX[idx];
         mTotalTranslationY += mDeltaY[idx];
 
@@ -233,5 +493,12 @@ public class MosaicFrameProcessor {
         mTranslationLastX = translationCurrX;
         mTranslationLastY = translationCurrY;
         mOldestIdx = (mOldestIdx + 1) % WINDOW_SIZE;
+
+        // Publish the estimate used to select the next frames to align
+        synchronized (this) {
+            mLastAlignedFrameIndex = frameIndex;
+            mEstimatedRateX = mTotalTranslationX / WINDOW_SIZE;
+            mEstimatedRateY = mTotalTranslationY / WINDOW_SIZE;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.focal.pano;
+
+import android.content.Context;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import org.cyanogenmod.focal.JpegStreamEncoder;
+import org.cyanogenmod.focal.R;
+import org.cyanogenmod.focal.Storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Final mosaic in NV21, as returned by the mosaicer (the trailing 8 bytes hold the size)
+ */
+class MosaicImage {
+    private static final String TAG = "MosaicImage";
+
+    public final byte[] data;
+    public final int width;
+    public final int height;
+    public final boolean isValid;
+
+    public MosaicImage(byte[] data, int width, int height) {
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.isValid = true;
+    }
+
+    public MosaicImage() {
+        this.data = null;
+        this.width = 0;
+        this.height = 0;
+        this.isValid = false;
+    }
+
+    /**
+     * Generate the final mosaic image.
+     *
+     * @param processor The frame processor holding the captured mosaic
+     * @param highRes flag to indicate whether we want to get a high-res version.
+     * @return a MosaicImage with its isValid flag set to true if successful; null if the generation
+     *         process is cancelled; and a MosaicImage with its isValid flag set to false if there
+     *         is an error in generating the final mosaic.
+     */
+    public static MosaicImage generate(MosaicFrameProcessor processor, boolean highRes) {
+        int mosaicReturnCode = processor.createMosaic(highRes);
+        if (mosaicReturnCode == Mosaic.MOSAIC_RET_CANCELLED) {
+            return null;
+        } else if (mosaicReturnCode == Mosaic.MOSAIC_RET_ERROR) {
+            return new MosaicImage();
+        }
+
+        byte[] imageData = processor.getFinalMosaicNV21();
+        if (imageData == null) {
+            Log.e(TAG, "getFinalMosaicNV21() returned null.");
+            return new MosaicImage();
+        }
+
+        int len = imageData.length - 8;
+        int width = (imageData[len + 0] << 24) + ((imageData[len + 1] & 0xFF) << 16)
+                + ((imageData[len + 2] & 0xFF) << 8) + (imageData[len + 3] & 0xFF);
+        int height = (imageData[len + 4] << 24) + ((imageData[len + 5] & 0xFF) << 16)
+                + ((imageData[len + 6] & 0xFF) << 8) + (imageData[len + 7] & 0xFF);
+        Log.v(TAG, "ImLength = " + (len) + ", W = " + width + ", H = " + height);
+
+        if (width <= 0 || height <= 0) {
+            Log.e(TAG, "width|height <= 0!!, len = " + (len) + ", W = " + width + ", H = " +
+                    height);
+            return new MosaicImage();
+        }
+
+        return new MosaicImage(imageData, width, height);
+    }
+
+    /**
+     * Encodes the mosaic straight to its file, strip by strip, so that neither the whole
+     * JPEG nor a copy of it has to be held in memory. An existing picture with the same
+     * title is replaced atomically.
+     *
+     * @return The path of the written file, or null if it failed
+     */
+    public String writeJpeg(Context context, String title, int orientation) {
+        final int quality = context.getResources().getInteger(
+                R.integer.config_panoramaJpegQuality);
+        String filePath = Storage.getStorage().writeFile(title, new Storage.StreamWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                JpegStreamEncoder encoder = new JpegStreamEncoder(out, width, height, quality);
+                encoder.writeNV21(data);
+                encoder.finish();
+            }
+        });
+
+        if (filePath == null) {
+            return null;
+        }
+
+        // Add Exif tags.
+        try {
+            ExifInterface exif = new ExifInterface(filePath);
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, getExifOrientation(orientation));
+            exif.saveAttributes();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot set EXIF for " + filePath, e);
+        }
+
+        return filePath;
+    }
+
+    private static String getExifOrientation(int orientation) {
+        orientation = (orientation + 360) % 360;
+
+        switch (orientation) {
+            case 0:
+                return String.valueOf(ExifInterface.ORIENTATION_NORMAL);
+            case 90:
+                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_90);
+            case 180:
+                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_180);
+            case 270:
+                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_270);
+            default:
+                throw new AssertionError("invalid: " + orientation);
+        }
+    }
+}
@@ -53,6 +53,7 @@ public class MosaicPreviewRenderer {
     private EGLSurface mEglSurface;
     private SurfaceTexture mMosaicOutputSurfaceTexture;
     private SurfaceTexture mInputSurfaceTexture;
+    private MosaicFrameProcessor mFrameProcessor;
     private EGL10 mEgl;
     private GL10 mGl;
 
@@ -60,7 +61,7 @@ public class MosaicPreviewRenderer {
         public static final int MSG_INIT_EGL_SYNC = 0;
         public static final int MSG_SHOW_PREVIEW_FRAME_SYNC = 1;
         public static final int MSG_SHOW_PREVIEW_FRAME = 2;
-        public static final int MSG_ALIGN_FRAME_SYNC = 3;
+        public static final int MSG_ALIGN_FRAME = 3;
         public static final int MSG_RELEASE = 4;
 
         public EGLHandler(Looper looper) {
@@ -81,9 +82,8 @@ public class MosaicPreviewRenderer {
                 case MSG_SHOW_PREVIEW_FRAME:
                     doShowPreviewFrame();
                     break;
-                case MSG_ALIGN_FRAME_SYNC:
+                case MSG_ALIGN_FRAME:
                     doAlignFrame();
-                    mEglThreadBlockVar.open();
                     break;
                 case MSG_RELEASE:
                     doRelease();
@@ -98,8 +98,12 @@ public class MosaicPreviewRenderer {
             MosaicRenderer.setWarping(true);
             // Call preprocess to render it to low-res and high-res RGB textures.
             MosaicRenderer.preprocess(mTransformMatrix);
-            // Now, transfer the textures from GPU to CPU memory for processing
-            MosaicRenderer.transferGPUtoCPU();
+            // Now, transfer the textures from GPU to CPU memory for processing, unless the
+            // alignment thread is still reading the previous frame
+            if (mFrameProcessor.beginStaging()) {
+                MosaicRenderer.transferGPUtoCPU();
+                mFrameProcessor.endStaging();
+            }
             MosaicRenderer.updateMatrix();
             draw();
             mEgl.eglSwapBuffers(mEglDisplay, mEglSurface);
@@ -186,6 +190,7 @@ public class MosaicPreviewRenderer {
         mWidth = w;
         mHeight = h;
         mIsLandscape = isLandscape;
+        mFrameProcessor = MosaicFrameProcessor.getInstance();
 
         mEglThread = new HandlerThread("PanoramaRealtimeRenderer");
         mEglThread.start();
@@ -213,8 +218,12 @@ public class MosaicPreviewRenderer {
         mEglHandler.sendEmptyMessage(EGLHandler.MSG_SHOW_PREVIEW_FRAME);
     }
 
-    public void alignFrameSync() {
-        mEglHandler.sendMessageSync(EGLHandler.MSG_ALIGN_FRAME_SYNC);
+    /**
+     * Renders the last preview frame with the mosaic warping, and stages it for alignment
+     * if the alignment thread is ready for a new frame. This doesn't wait for the alignment.
+     */
+    public void alignFrame() {
+        mEglHandler.sendEmptyMessage(EGLHandler.MSG_ALIGN_FRAME);
     }
 
     public SurfaceTexture getInputSurfaceTexture() {
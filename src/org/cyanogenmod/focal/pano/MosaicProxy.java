@@ -18,22 +18,23 @@
 
 package org.cyanogenmod.focal.pano;
 
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.PixelFormat;
 import android.graphics.Point;
-import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
-import android.graphics.YuvImage;
 import android.hardware.Camera;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.TextureView;
 import android.view.View;
@@ -49,9 +50,7 @@ import org.cyanogenmod.focal.feats.CaptureTransformer;
 import org.cyanogenmod.focal.ui.PanoProgressBar;
 import org.cyanogenmod.focal.ui.ShutterButton;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.IOException;
 
 /**
  * Nemesis interface to interact with Google's mosaic interface
@@ -64,11 +63,14 @@ public class MosaicProxy extends CaptureTransformer
     public static final int DEFAULT_SWEEP_ANGLE = 360;
     // The unit of speed is degrees per frame.
     private static final float PANNING_SPEED_THRESHOLD = 2.5f;
+    // Minimum delay between two samples of the rendering progress
+    private static final long PROGRESS_INTERVAL_MS = 100;
 
     private static final int MSG_LOW_RES_FINAL_MOSAIC_READY = 1;
     private static final int MSG_GENERATE_FINAL_MOSAIC_ERROR = 2;
     private static final int MSG_RESET_TO_PREVIEW = 3;
     private static final int MSG_CLEAR_SCREEN_DELAY = 4;
+    private static final int MSG_HIGH_RES_FINAL_MOSAIC_DONE = 5;
 
     private static final int CAPTURE_STATE_VIEWFINDER = 0;
     private static final int CAPTURE_STATE_MOSAIC = 1;
@@ -98,29 +100,38 @@ public class MosaicProxy extends CaptureTransformer
     private int mPreviewWidth;
     private int mPreviewHeight;
     private boolean mThreadRunning;
-    final private Object mWaitObject = new Object();
+    private boolean mReportingProgress;
+    private int mReportedProgress;
     private int mCurrentOrientation;
-
-    private class MosaicJpeg {
-        public MosaicJpeg(byte[] data, int width, int height) {
-            this.data = data;
-            this.width = width;
-            this.height = height;
-            this.isValid = true;
+    private Uri mPlaceholderUri;
+    private MosaicRenderingService mBoundService;
+    private boolean mIsBound;
+    private boolean mTornDown;
+
+    private ServiceConnection mServiceConnection = new ServiceConnection() {
+        public void onServiceConnected(ComponentName className, IBinder service) {
+            mBoundService = ((MosaicRenderingService.LocalBinder)service).getService();
+
+            // A panorama taken earlier may still be rendering
+            if (mBoundService.isRendering()) {
+                mBoundService.setRenderListener(mRenderListener);
+            }
         }
 
-        public MosaicJpeg() {
-            this.data = null;
-            this.width = 0;
-            this.height = 0;
-            this.isValid = false;
+        public void onServiceDisconnected(ComponentName className) {
+            mBoundService = null;
         }
-
-        public final byte[] data;
-        public final int width;
-        public final int height;
-        public final boolean isValid;
-    }
+    };
+
+    private MosaicRenderingService.RenderListener mRenderListener =
+            new MosaicRenderingService.RenderListener() {
+        @Override
+        public void onRenderDone(Uri uri, boolean success) {
+            // Called from the rendering thread
+            mMainHandler.sendMessage(mMainHandler.obtainMessage(
+                    MSG_HIGH_RES_FINAL_MOSAIC_DONE, uri));
+        }
+    };
 
     public MosaicProxy(CameraActivity activity) {
         super(activity.getCamManager(), activity.getSnapManager());
@@ -167,8 +178,8 @@ public class MosaicProxy extends CaptureTransformer
                     if (mCaptureState == CAPTURE_STATE_VIEWFINDER) {
                         mMosaicPreviewRenderer.showPreviewFrame();
                     } else {
-                        mMosaicPreviewRenderer.alignFrameSync();
-                        mMosaicFrameProcessor.processFrame();
+                        // Alignment runs on its own thread, don't wait for it
+                        mMosaicPreviewRenderer.alignFrame();
                     }
                 }
             }
@@ -177,20 +188,36 @@ public class MosaicProxy extends CaptureTransformer
         mMainHandler = new Handler() {
             @Override
             public void handleMessage(Message msg) {
+                if (mTornDown) {
+                    if (msg.what == MSG_LOW_RES_FINAL_MOSAIC_READY) {
+                        // The low-res panorama is saved, but nothing is left to render the
+                        // high-res one
+                        mMosaicFrameProcessor.endRender();
+                    }
+                    return;
+                }
+
                 switch (msg.what) {
                     case MSG_LOW_RES_FINAL_MOSAIC_READY:
                         //onBackgroundThreadFinished();
                         //showFinalMosaic((Bitmap) msg.obj);
                         Util.fadeOut(mGLRootView);
                         mActivity.displayOverlayBitmap((Bitmap) msg.obj);
+                        if (mPlaceholderUri != null) {
+                            mActivity.getReviewDrawer().updateFromGallery(true);
+                        }
                         saveHighResMosaic();
                         break;
+                    case MSG_HIGH_RES_FINAL_MOSAIC_DONE:
+                        onHighResMosaicDone((Uri) msg.obj);
+                        break;
                     case MSG_GENERATE_FINAL_MOSAIC_ERROR:
                         CameraActivity.notify(
                                 mActivity.getString(R.string.pano_panorama_rendering_failed), 2000);
                         resetToPreview();
                         break;
                     case MSG_RESET_TO_PREVIEW:
+                        stopReportingProgress();
                         resetToPreview();
                         mThreadRunning = false;
                         break;
@@ -226,6 +253,18 @@ public class MosaicProxy extends CaptureTransformer
         layoutParams.gravity = Gravity.CENTER;
         mGLSurfaceView.setLayoutParams(layoutParams);
 
+        doBindService();
+    }
+
+    void doBindService() {
+        // Establish a connection with the service.  We use an explicit
+        // class name because we want a specific service implementation that
+        // we know will be running in our own process (and thus won't be
+        // supporting component replacement by other applications).
+        Log.v(TAG, "Binding panorama rendering service");
+        mActivity.bindService(new Intent(mActivity, MosaicRenderingService.class),
+                mServiceConnection, Context.BIND_AUTO_CREATE);
+        mIsBound = true;
     }
 
     // This function will be called upon the first camera frame is available.
@@ -253,6 +292,20 @@ public class MosaicProxy extends CaptureTransformer
      */
     public void tearDown() {
         mGLRootView.removeView(mGLSurfaceView);
+        mTornDown = true;
+        mThreadRunning = false;
+        stopReportingProgress();
+
+        if (mBoundService != null) {
+            mBoundService.setRenderListener(null);
+        }
+        if (mIsBound) {
+            // A high-res rendering in progress carries on in the service
+            mActivity.unbindService(mServiceConnection);
+            mIsBound = false;
+        }
+
+        // If the mosaic is still rendering, it is freed once done
         mMosaicFrameProcessor.clear();
     }
 
@@ -294,6 +347,9 @@ public class MosaicProxy extends CaptureTransformer
             stopCapture(false);
             Util.fadeOut(button);
 
+        } else if (mMosaicFrameProcessor.isRendering() || !mMosaicFrameProcessorInitialized) {
+            // The previous panorama still holds the mosaicer
+            CameraActivity.notify(mActivity.getString(R.string.pano_panorama_rendering), 2000);
         } else {
             startCapture();
             button.setImageResource(R.drawable.btn_shutter_stop);
@@ -392,21 +448,20 @@ public class MosaicProxy extends CaptureTransformer
 
         mMosaicFrameProcessor.setProgressListener(new MosaicFrameProcessor.ProgressListener() {
             @Override
-            public void onProgress(boolean isFinished, float panningRateX, float panningRateY,
-                                   float progressX, float progressY) {
-                float accumulatedHorizontalAngle = progressX * mHorizontalViewAngle;
-                float accumulatedVerticalAngle = progressY * mVerticalViewAngle;
-                if (isFinished
-                        || (Math.abs(accumulatedHorizontalAngle) >= DEFAULT_SWEEP_ANGLE)
-                        || (Math.abs(accumulatedVerticalAngle) >= DEFAULT_SWEEP_ANGLE)) {
-                    Util.fadeOut(mShutterButton);
-                    stopCapture(false);
-                } else {
-                    float panningRateXInDegree = panningRateX * mHorizontalViewAngle;
-                    float panningRateYInDegree = panningRateY * mVerticalViewAngle;
-                    updateProgress(panningRateXInDegree, panningRateYInDegree,
-                            accumulatedHorizontalAngle, accumulatedVerticalAngle);
-                }
+            public void onProgress(final boolean isFinished, final float panningRateX,
+                                   final float panningRateY, final float progressX,
+                                   final float progressY) {
+                // Called from the alignment thread
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Late results of a capture that was stopped meanwhile
+                        if (mCaptureState != CAPTURE_STATE_MOSAIC) return;
+
+                        onAlignmentProgress(isFinished, panningRateX, panningRateY,
+                                progressX, progressY);
+                    }
+                });
             }
         });
 
@@ -423,6 +478,23 @@ public class MosaicProxy extends CaptureTransformer
         setupProgressDirectionMatrix();
     }
 
+    private void onAlignmentProgress(boolean isFinished, float panningRateX,
+                                     float panningRateY, float progressX, float progressY) {
+        float accumulatedHorizontalAngle = progressX * mHorizontalViewAngle;
+        float accumulatedVerticalAngle = progressY * mVerticalViewAngle;
+        if (isFinished
+                || (Math.abs(accumulatedHorizontalAngle) >= DEFAULT_SWEEP_ANGLE)
+                || (Math.abs(accumulatedVerticalAngle) >= DEFAULT_SWEEP_ANGLE)) {
+            Util.fadeOut(mShutterButton);
+            stopCapture(false);
+        } else {
+            float panningRateXInDegree = panningRateX * mHorizontalViewAngle;
+            float panningRateYInDegree = panningRateY * mVerticalViewAngle;
+            updateProgress(panningRateXInDegree, panningRateYInDegree,
+                    accumulatedHorizontalAngle, accumulatedVerticalAngle);
+        }
+    }
+
     private void stopCapture(boolean aborted) {
         mCaptureState = CAPTURE_STATE_VIEWFINDER;
         //mCaptureIndicator.setVisibility(View.GONE);
@@ -442,17 +514,31 @@ public class MosaicProxy extends CaptureTransformer
             // Hide shutter button, shutter icon, etc when waiting for
             // panorama to stitch
             //mActivity.hideUI();
+            // Keep the mosaic alive until the high-res version is rendered, even if the
+            // capture UI goes away meanwhile
+            mMosaicFrameProcessor.beginRender();
+            mPlaceholderUri = null;
+
             runInBackground(new Thread() {
                 @Override
                 public void run() {
-                    MosaicJpeg jpeg = generateFinalMosaic(false);
+                    MosaicImage image = MosaicImage.generate(mMosaicFrameProcessor, false);
+
+                    if (image != null && image.isValid) {
+                        Bitmap bitmap = Util.decodeYUV420SP(mActivity, image.data,
+                                image.width, image.height);
+
+                        // Save the low-res mosaic right away, the high-res one replaces it
+                        // once rendered
+                        mPlaceholderUri = savePanorama(image, mCurrentOrientation);
+                        if (mPlaceholderUri != null) {
+                            Util.broadcastNewPicture(mActivity, mPlaceholderUri);
+                        }
 
-                    if (jpeg != null && jpeg.isValid) {
-                        Bitmap bitmap = null;
-                        bitmap = BitmapFactory.decodeByteArray(jpeg.data, 0, jpeg.data.length);
                         mMainHandler.sendMessage(mMainHandler.obtainMessage(
                                 MSG_LOW_RES_FINAL_MOSAIC_READY, bitmap));
                     } else {
+                        mMosaicFrameProcessor.endRender();
                         CameraActivity.notify(
                                 mActivity.getString(R.string.pano_panorama_rendering_failed), 2000);
                         mMainHandler.sendMessage(mMainHandler.obtainMessage(
@@ -464,57 +550,6 @@ public class MosaicProxy extends CaptureTransformer
         //keepScreenOnAwhile();
     }
 
-    /**
-     * Generate the final mosaic image.
-     *
-     * @param highRes flag to indicate whether we want to get a high-res version.
-     * @return a MosaicJpeg with its isValid flag set to true if successful; null if the generation
-     *         process is cancelled; and a MosaicJpeg with its isValid flag set to false if there
-     *         is an error in generating the final mosaic.
-     */
-    public MosaicJpeg generateFinalMosaic(boolean highRes) {
-        int mosaicReturnCode = mMosaicFrameProcessor.createMosaic(highRes);
-        if (mosaicReturnCode == Mosaic.MOSAIC_RET_CANCELLED) {
-            return null;
-        } else if (mosaicReturnCode == Mosaic.MOSAIC_RET_ERROR) {
-            return new MosaicJpeg();
-        }
-
-        byte[] imageData = mMosaicFrameProcessor.getFinalMosaicNV21();
-        if (imageData == null) {
-            Log.e(TAG, "getFinalMosaicNV21() returned null.");
-            return new MosaicJpeg();
-        }
-
-        int len = imageData.length - 8;
-        int width = (imageData[len + 0] << 24) + ((imageData[len + 1] & 0xFF) << 16)
-                + ((imageData[len + 2] & 0xFF) << 8) + (imageData[len + 3] & 0xFF);
-        int height = (imageData[len + 4] << 24) + ((imageData[len + 5] & 0xFF) << 16)
-                + ((imageData[len + 6] & 0xFF) << 8) + (imageData[len + 7] & 0xFF);
-        Log.v(TAG, "ImLength = " + (len) + ", W = " + width + ", H = " + height);
-
-        if (width <= 0 || height <= 0) {
-            CameraActivity.notify(
-                    mActivity.getString(R.string.pano_panorama_rendering_failed), 2000);
-            Log.e(TAG, "width|height <= 0!!, len = " + (len) + ", W = " + width + ", H = " +
-                    height);
-            return new MosaicJpeg();
-        }
-
-        YuvImage yuvimage = new YuvImage(imageData, ImageFormat.NV21, width, height, null);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuvimage.compressToJpeg(new Rect(0, 0, width, height), 100, out);
-        try {
-            out.close();
-        } catch (Exception e) {
-            Log.e(TAG, "Exception in storing final mosaic", e);
-            CameraActivity.notify(
-                    mActivity.getString(R.string.pano_panorama_rendering_failed), 2000);
-            return new MosaicJpeg();
-        }
-        return new MosaicJpeg(out.toByteArray(), width, height);
-    }
-
     void setupProgressDirectionMatrix() {
         int degrees = Util.getDisplayRotation(mActivity);
         int cameraId = 0; //CameraHolder.instance().getBackCameraId();
@@ -523,86 +558,80 @@ public class MosaicProxy extends CaptureTransformer
         mProgressDirectionMatrix.postRotate(orientation);
     }
 
+    /**
+     * Hands the high-res rendering of the captured mosaic to the rendering service
+     */
     public void saveHighResMosaic() {
-        CameraActivity.notify(mActivity.getString(R.string.pano_panorama_rendering), 3000);
-        runInBackground(new Thread() {
-            @Override
-            public void run() {
-                //mPartialWakeLock.acquire();
-                MosaicJpeg jpeg;
-                try {
-                    jpeg = generateFinalMosaic(true);
-                } finally {
-                    //mPartialWakeLock.release();
-                }
-
-                if (jpeg == null) {  // Cancelled by user.
-                    mMainHandler.sendEmptyMessage(MSG_RESET_TO_PREVIEW);
-                } else if (!jpeg.isValid) {  // Error when generating mosaic.
-                    mMainHandler.sendEmptyMessage(MSG_GENERATE_FINAL_MOSAIC_ERROR);
-                } else {
-                    Uri uri = savePanorama(jpeg.data, jpeg.width, jpeg.height, mCurrentOrientation);
-                    if (uri != null) {
-                        Util.broadcastNewPicture(mActivity, uri);
-                        mActivity.getReviewDrawer().updateFromGallery(true);
-                    }
+        if (mTornDown) {
+            mMosaicFrameProcessor.endRender();
+            return;
+        }
 
-                    mMainHandler.sendMessage(
-                            mMainHandler.obtainMessage(MSG_RESET_TO_PREVIEW));
-                }
+        if (mBoundService == null) {
+            // Wait for the service connection
+            if (!mIsBound) {
+                doBindService();
             }
-        });
+            mMainHandler.postDelayed(new Runnable() {
+                public void run() {
+                    saveHighResMosaic();
+                }
+            }, 500);
+            return;
+        }
+
+        CameraActivity.notify(mActivity.getString(R.string.pano_panorama_rendering), 3000);
+        mBoundService.setRenderListener(mRenderListener);
+        mBoundService.render(mPlaceholderUri, PanoUtil.createName(
+                mActivity.getResources().getString(R.string.pano_file_name_format), mTimeTaken),
+                mTimeTaken, mCurrentOrientation);
         reportProgress();
     }
 
-    private Uri savePanorama(byte[] jpegData, int width, int height, int orientation) {
-        if (jpegData != null) {
-            String filename = PanoUtil.createName(
-                    mActivity.getResources().getString(R.string.pano_file_name_format), mTimeTaken);
-            String filePath = Storage.getStorage().writeFile(filename, jpegData);
-
-            // Add Exif tags.
-            try {
-                ExifInterface exif = new ExifInterface(filePath);
-                /*exif.setAttribute(ExifInterface.TAG_GPS_DATESTAMP,
-                        mGPSDateStampFormat.format(mTimeTaken));
-                exif.setAttribute(ExifInterface.TAG_GPS_TIMESTAMP,
-                        mGPSTimeStampFormat.format(mTimeTaken));
-                exif.setAttribute(ExifInterface.TAG_DATETIME,
-                        mDateTimeStampFormat.format(mTimeTaken));*/
-                exif.setAttribute(ExifInterface.TAG_ORIENTATION,
-                        getExifOrientation(orientation));
-                exif.saveAttributes();
-            } catch (IOException e) {
-                Log.e(TAG, "Cannot set EXIF for " + filePath, e);
-            }
+    private void onHighResMosaicDone(Uri uri) {
+        if (uri != null) {
+            mActivity.getReviewDrawer().updateFromGallery(true);
+        }
 
-            int jpegLength = (int) (new File(filePath).length());
-            return Storage.getStorage().addImage(mActivity.getContentResolver(), filename, mTimeTaken,
-                    null, orientation, jpegLength, filePath, width, height);
+        if (!mMosaicFrameProcessorInitialized) {
+            // We started while an earlier panorama was rendering
+            if (mMosaicTexture != null) {
+                initMosaicFrameProcessorIfNeeded();
+            }
+            return;
         }
-        return null;
-    }
-
-    private static String getExifOrientation(int orientation) {
-        orientation = (orientation + 360) % 360;
-
-        switch (orientation) {
-            case 0:
-                return String.valueOf(ExifInterface.ORIENTATION_NORMAL);
-            case 90:
-                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_90);
-            case 180:
-                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_180);
-            case 270:
-                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_270);
-            default:
-                throw new AssertionError("invalid: " + orientation);
+
+        stopReportingProgress();
+        resetToPreview();
+        mThreadRunning = false;
+    }
+
+    /**
+     * Saves a mosaic and adds it to the media store
+     *
+     * @return The URI of the saved picture, or null if it failed
+     */
+    private Uri savePanorama(MosaicImage image, int orientation) {
+        String filename = PanoUtil.createName(
+                mActivity.getResources().getString(R.string.pano_file_name_format), mTimeTaken);
+        String filePath = image.writeJpeg(mActivity, filename, orientation);
+        if (filePath == null) {
+            return null;
         }
+
+        int jpegLength = (int) (new File(filePath).length());
+        return Storage.getStorage().addImage(mActivity.getContentResolver(), filename, mTimeTaken,
+                null, orientation, jpegLength, filePath, image.width, image.height);
     }
 
     private void initMosaicFrameProcessorIfNeeded() {
         //if (mPaused || mThreadRunning) return;
+        if (mMosaicFrameProcessor.isRendering()) {
+            // The rendering service still uses the previous mosaic, this will be done once
+            // it is complete
+            return;
+        }
+
         if (!mMosaicFrameProcessorInitialized) {
             mMosaicFrameProcessor.initialize(
                     mPreviewWidth, mPreviewHeight, getPreviewBufSize());
@@ -635,39 +664,44 @@ public class MosaicProxy extends CaptureTransformer
     }
 
     /**
-     * Report saving progress
+     * Report saving progress. The native progress is sampled on the UI thread in sync with
+     * the display, at most every PROGRESS_INTERVAL_MS, and the progress bar is only updated
+     * when the value changes. It stops when the rendering is done or cancelled.
      */
     public void reportProgress() {
         mPanoProgressBar.reset();
         mPanoProgressBar.setRightIncreasing(true);
         mPanoProgressBar.setMaxProgress(100);
-        Thread t = new Thread() {
-            @Override
-            public void run() {
-                while (mThreadRunning) {
-                    final int progress = mMosaicFrameProcessor.reportProgress(
-                            true, mCancelComputation);
 
-                    try {
-                        synchronized (mWaitObject) {
-                            mWaitObject.wait(50);
-                        }
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException("Panorama reportProgress failed", e);
-                    }
-                    // Update the progress bar
-                    mActivity.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            mPanoProgressBar.setProgress(progress);
-                        }
-                    });
-                }
-            }
-        };
-        t.start();
+        mReportedProgress = -1;
+        if (!mReportingProgress) {
+            mReportingProgress = true;
+            Choreographer.getInstance().postFrameCallback(mProgressCallback);
+        }
+    }
+
+    private void stopReportingProgress() {
+        if (mReportingProgress) {
+            mReportingProgress = false;
+            Choreographer.getInstance().removeFrameCallback(mProgressCallback);
+        }
     }
 
+    private Choreographer.FrameCallback mProgressCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mReportingProgress) return;
+
+            int progress = mMosaicFrameProcessor.reportProgress(true, mCancelComputation);
+            if (progress != mReportedProgress) {
+                mReportedProgress = progress;
+                mPanoProgressBar.setProgress(progress);
+            }
+
+            Choreographer.getInstance().postFrameCallbackDelayed(this, PROGRESS_INTERVAL_MS);
+        }
+    };
+
     private void runInBackground(Thread t) {
         mThreadRunning = true;
         t.start();
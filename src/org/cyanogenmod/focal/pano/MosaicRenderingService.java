@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.pano;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.IBinder;
+import android.util.Log;
+
+import org.cyanogenmod.focal.R;
+import org.cyanogenmod.focal.Storage;
+import org.cyanogenmod.focal.Util;
+
+import java.io.File;
+
+/**
+ * Service that renders the high-resolution version of a panorama outside of the capture
+ * UI lifecycle. The low-resolution mosaic is saved beforehand as a placeholder, which is
+ * replaced once the final picture is written.
+ */
+public class MosaicRenderingService extends Service {
+    public final static String TAG = "MosaicRenderingService";
+
+    private NotificationManager mNM;
+
+    // Unique Identification Number for the Notification.
+    // We use it on Notification start, and to cancel it.
+    private int NOTIFICATION = 2323;
+
+    private boolean mRendering = false;
+    private volatile RenderListener mListener;
+
+    public interface RenderListener {
+        /**
+         * Called from the rendering thread once the high-res panorama is done
+         *
+         * @param uri The URI of the panorama, or null if nothing could be saved
+         * @param success Whether the high-res version replaced the placeholder
+         */
+        public void onRenderDone(Uri uri, boolean success);
+    }
+
+    /**
+     * Class for clients to access.  Because we know this service always
+     * runs in the same process as its clients, we don't need to deal with
+     * IPC.
+     */
+    public class LocalBinder extends Binder {
+        MosaicRenderingService getService() {
+            return MosaicRenderingService.this;
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        mNM = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        Log.i("LocalService", "Received start id " + startId + ": " + intent);
+        // We want this service to continue running until it is explicitly
+        // stopped, so return sticky.
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        // Cancel the persistent notification.
+        mNM.cancel(NOTIFICATION);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    // This is the object that receives interactions from clients.  See
+    // RemoteService for a more complete example.
+    private final IBinder mBinder = new LocalBinder();
+
+    public void setRenderListener(RenderListener listener) {
+        mListener = listener;
+    }
+
+    public synchronized boolean isRendering() {
+        return mRendering;
+    }
+
+    /**
+     * Renders the high-res version of the mosaic held by the MosaicFrameProcessor. The
+     * caller must have called MosaicFrameProcessor.beginRender(), the service ends the
+     * rendering once done.
+     *
+     * @param placeholderUri The low-res picture saved under the same title, or null
+     * @param title The title of the panorama
+     * @param dateTaken The time the panorama was taken
+     * @param orientation The orientation of the panorama, in degrees
+     */
+    public void render(final Uri placeholderUri, final String title, final long dateTaken,
+                       final int orientation) {
+        synchronized (this) {
+            mRendering = true;
+        }
+
+        // Keep running even once the activity unbinds
+        startService(new Intent(this, MosaicRenderingService.class));
+        mNM.notify(NOTIFICATION, buildProgressNotification());
+
+        new Thread() {
+            public void run() {
+                final MosaicFrameProcessor processor = MosaicFrameProcessor.getInstance();
+                Uri uri = placeholderUri;
+                boolean success = false;
+
+                try {
+                    MosaicImage image = MosaicImage.generate(processor, true);
+                    if (image == null) {
+                        Log.d(TAG, "High-res rendering cancelled");
+                    } else if (image.isValid) {
+                        uri = saveHighRes(image, placeholderUri, title, dateTaken, orientation);
+                        success = (uri != null);
+                    }
+                } finally {
+                    processor.endRender();
+                    synchronized (MosaicRenderingService.this) {
+                        mRendering = false;
+                    }
+                }
+
+                if (success) {
+                    mNM.cancel(NOTIFICATION);
+                    Util.broadcastNewPicture(MosaicRenderingService.this, uri);
+                } else {
+                    mNM.notify(NOTIFICATION,
+                            buildFailureNotification(getString(R.string.pano_failed),
+                                    getString(placeholderUri != null
+                                            ? R.string.pano_failed_details_placeholder
+                                            : R.string.pano_panorama_rendering_failed)));
+                }
+
+                RenderListener listener = mListener;
+                if (listener != null) {
+                    listener.onRenderDone(uri, success);
+                }
+
+                MosaicRenderingService.this.stopSelf();
+            }
+        }.start();
+    }
+
+    private Uri saveHighRes(MosaicImage image, Uri placeholderUri, String title,
+                            long dateTaken, int orientation) {
+        // The high-res file is renamed over the placeholder once complete
+        String path = image.writeJpeg(this, title, orientation);
+        if (path == null) {
+            return null;
+        }
+
+        long jpegLength = new File(path).length();
+        Storage storage = Storage.getStorage();
+
+        if (placeholderUri != null) {
+            if (storage.updateImage(getContentResolver(), placeholderUri, title, null,
+                    orientation, jpegLength, image.width, image.height)) {
+                return placeholderUri;
+            }
+            return null;
+        } else {
+            return storage.addImage(getContentResolver(), title, dateTaken, null, orientation,
+                    (int) jpegLength, path, image.width, image.height);
+        }
+    }
+
+    private Notification buildProgressNotification() {
+        Notification.Builder mBuilder =
+                new Notification.Builder(this)
+                        .setSmallIcon(R.drawable.ic_launcher)
+                        .setContentTitle(getString(R.string.pano_panorama_rendering))
+                        .setContentText(getString(R.string.please_wait))
+                        .setOngoing(true);
+
+        return mBuilder.build();
+    }
+
+    private Notification buildFailureNotification(String title, String text) {
+        Notification.Builder mBuilder =
+                new Notification.Builder(this)
+                        .setSmallIcon(R.drawable.ic_launcher)
+                        .setContentTitle(title)
+                        .setContentText(text)
+                        .setOngoing(false);
+
+        return mBuilder.build();
+    }
+}
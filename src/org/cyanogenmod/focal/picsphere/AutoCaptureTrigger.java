@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.picsphere;
+
+/**
+ * Decides when to take a PicSphere snapshot without the user pressing the shutter: the
+ * camera has to be pointed at an uncaptured dot, and held still, for a short while.
+ *
+ * The dot is marked as pending when the trigger fires, so that it isn't triggered again
+ * while its snapshot is taken and saved. It stays pending until the snapshot marks it as
+ * captured, the capture is cancelled, or PENDING_TIMEOUT_NS passes.
+ *
+ * Doesn't depend on Android, so it can be driven by recorded sensor traces.
+ */
+public class AutoCaptureTrigger {
+    // How close to a dot the center of the view has to be
+    public final static float TOLERANCE_DEGREES = 3.0f;
+    // How long the camera has to stay on the dot
+    public final static long STABLE_WINDOW_NS = 400000000L;
+    // How fast the camera may rotate while on the dot, in radians per second
+    public final static float MAX_ANGULAR_SPEED = 0.1f;
+    // Time left for the snapshot to be taken before triggering again, on another dot
+    public final static long COOLDOWN_NS = 1500000000L;
+    // How long a dot stays pending if its snapshot never makes it
+    public final static long PENDING_TIMEOUT_NS = 10000000000L;
+
+    private final DotGrid mDots;
+    private int mTarget = -1;
+    private long mTargetSince;
+    private long mCooldownEnd;
+    private int mPending = -1;
+    private long mPendingSince;
+    private volatile boolean mCancelRequested;
+    private volatile boolean mResetRequested;
+
+    public AutoCaptureTrigger(DotGrid dots) {
+        mDots = dots;
+    }
+
+    /**
+     * Forgets the dot being aimed at, the pending one and any pending cooldown. Can be
+     * called from any thread, it is handled on the next update.
+     */
+    public void reset() {
+        mResetRequested = true;
+    }
+
+    /**
+     * Reports that the last triggered snapshot won't be taken, so that its dot can trigger
+     * again. Can be called from any thread, it is handled on the next update.
+     */
+    public void cancel() {
+        mCancelRequested = true;
+    }
+
+    /**
+     * Updates the trigger with the current direction of the camera. Doesn't allocate, so it
+     * can be called for every frame.
+     *
+     * @param time The current time, in nanoseconds
+     * @param x, y, z The direction the camera is pointing at
+     * @param angularSpeed How fast the camera rotates, in radians per second
+     * @return true if a snapshot should be taken now
+     */
+    public boolean update(long time, float x, float y, float z, float angularSpeed) {
+        if (mResetRequested) {
+            mResetRequested = false;
+            mCancelRequested = false;
+            mTarget = -1;
+            mCooldownEnd = 0;
+            clearPending();
+        }
+        if (mCancelRequested) {
+            mCancelRequested = false;
+            clearPending();
+        }
+        if (mPending >= 0 && (mDots.isCaptured(mPending)
+                || time - mPendingSince > PENDING_TIMEOUT_NS)) {
+            clearPending();
+        }
+
+        if (time < mCooldownEnd) {
+            return false;
+        }
+
+        final int dot = mDots.findNearest(x, y, z, TOLERANCE_DEGREES);
+        if (dot < 0 || dot != mTarget || angularSpeed > MAX_ANGULAR_SPEED) {
+            // Start over, moving too fast counts as leaving the dot
+            mTarget = (angularSpeed > MAX_ANGULAR_SPEED) ? -1 : dot;
+            mTargetSince = time;
+            return false;
+        }
+
+        if (time - mTargetSince < STABLE_WINDOW_NS) {
+            return false;
+        }
+
+        // Only one snapshot is expected at a time
+        clearPending();
+        mDots.setPending(dot, true);
+        mPending = dot;
+        mPendingSince = time;
+
+        mTarget = -1;
+        mCooldownEnd = time + COOLDOWN_NS;
+        return true;
+    }
+
+    private void clearPending() {
+        if (mPending >= 0) {
+            mDots.setPending(mPending, false);
+            mPending = -1;
+        }
+    }
+
+    /**
+     * @return The dot being aimed at, or -1 if there is none
+     */
+    public int getTarget() {
+        return mTarget;
+    }
+}
@@ -35,10 +35,10 @@ import org.cyanogenmod.focal.R;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantLock;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -54,13 +54,17 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
 
     private final CameraManager mCamManager;
 
-    private List<Snapshot> mSnapshots;
+    // Copied on write, so that drawing never waits for the capture thread
+    private volatile Snapshot[] mSnapshots = new Snapshot[0];
+    private final Object mSnapshotsLock = new Object();
     private List<Snapshot> mDots;
-    private ReentrantLock mListBusy;
+    private DotBatch mDotBatch;
     private SensorFusion mSensorFusion;
+    private SensorFusion.Reader mOrientationReader;
+    private float[] mOrientation = new float[3];
     private Quaternion mCameraQuat;
     private Skybox mSkyBox;
-    private float[] mViewMatrix = new float[16];
+    private final float[] mViewMatrix = new float[16];
     private float[] mProjectionMatrix = new float[16];
 
     private FloatBuffer mVertexBuffer;
@@ -69,6 +73,14 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
     private final static float SNAPSHOT_SCALE = 65.5f;
     private final static float RATIO = 4.0f/3.0f;
     private final static float DISTANCE = 135.0f;
+    private final static float HFOV = 90.0f;
+    private final static long TEXTURE_BUDGET_BYTES = 24 * 1024 * 1024;
+    // Snapshots textures are kept uploaded while the snapshots are within this many times
+    // their size of the view, so that they are ready before they show up
+    private final static float IN_VIEW_MARGIN = 2.0f;
+    // The dots within this distance of a snapshot center are considered captured
+    private final static float COVERAGE_DEGREES = 20.0f;
+    private final static float DOT_GRID_CELL_DEGREES = 10.0f;
 
     // x, y,
     private final float mVertexData[] =
@@ -111,6 +123,25 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
     private Context mContext;
     private Quaternion mTempQuaternion;
     private float[] mMVPMatrix = new float[16];
+    private float[] mViewProjMatrix = new float[16];
+    private SnapshotTextureManager mTextureManager;
+    private ViewFrustum mFrustum = new ViewFrustum();
+    private DrawList mDrawList = new DrawList(32);
+    private final DotGrid mDotGrid = new DotGrid(DOT_GRID_CELL_DEGREES);
+    private final AutoCaptureTrigger mAutoCapture = new AutoCaptureTrigger(mDotGrid);
+    private volatile AutoCaptureListener mAutoCaptureListener;
+    private float[] mForward = new float[3];
+
+    /**
+     * Interface notified when the camera has been held on an uncaptured dot long enough
+     * for a snapshot to be taken automatically
+     */
+    public interface AutoCaptureListener {
+        /**
+         * Called from the GL thread
+         */
+        public void onAutoCapture();
+    }
 
     private class Skybox {
         private float DIST = SNAPSHOT_SCALE;
@@ -167,10 +198,13 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
     private class Snapshot {
         private float[]mModelMatrix;
         private int mTextureData;
+        private SnapshotTextureManager.Texture mTexture;
+        private float mBoundingRadius;
         private Bitmap mBitmapToLoad;
         private boolean mIsFourToThree;
         private int mMode;
         private boolean mIsVisible = true;
+        private int[] mCoveredDots;
         private float mAlpha = 1.0f;
         private float mAutoAlphaX;
         private float mAutoAlphaY;
@@ -222,6 +256,13 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
             return mAutoAlphaY;
         }
 
+        /**
+         * @return The texture to draw the snapshot with, or 0 if it isn't uploaded
+         */
+        public int getTextureId() {
+            return (mTexture != null) ? mTexture.getId() : mTextureData;
+        }
+
         private void loadTexture() {
             // Load the snapshot bitmap as a texture to bind to our GLES20 program
             int texture[] = new int[1];
@@ -252,6 +293,18 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
                 loadTexture();
             }
 
+            bindProgram();
+
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, getTextureId());
+
+            drawQuad();
+        }
+
+        /**
+         * Sets up the program and vertex attributes of this snapshot. Snapshots sharing the
+         * same mode and shape can be drawn without setting them up again.
+         */
+        public void bindProgram() {
             GLES20.glUseProgram(mProgram[mMode]);
             if (mIsFourToThree) {
                 m43VertexBuffer.position(0);
@@ -271,25 +324,224 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
             }
             GLES20.glVertexAttribPointer(mTexCoordHandler[mMode], 2, GLES20.GL_FLOAT, false, 8, mTexCoordBuffer);
 
-            // This multiplies the view matrix by the model matrix, and stores the result in the MVP matrix
-            // (which currently contains model * view).
-            Matrix.multiplyMM(mMVPMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glUniform1i(mTextureHandler[mMode], 0);
+        }
 
-            // This multiplies the modelview matrix by the projection matrix, and stores the result in the MVP matrix
-            // (which now contains model * view * projection).
-            Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mMVPMatrix, 0);
+        /**
+         * Draws the quad of this snapshot, with the program set up and the texture bound
+         */
+        public void drawQuad() {
+            // This multiplies the view-projection matrix by the model matrix, and stores the
+            // result in the MVP matrix (which now contains model * view * projection).
+            Matrix.multiplyMM(mMVPMatrix, 0, mViewProjMatrix, 0, mModelMatrix, 0);
 
             // Pass in the combined matrix.
             GLES20.glUniformMatrix4fv(mMVPMatrixHandler[mMode], 1, false, mMVPMatrix, 0);
 
             GLES20.glUniform1f(mAlphaHandler[mMode], mAlpha);
 
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_FAN, 0, 4);
+        }
+    }
+
+    /**
+     * Draws all the marker dots in a single call, from one vertex buffer. The dots never
+     * move, only their alpha is updated for every frame, and the dots that are out of view
+     * or transparent are left out of the index list.
+     */
+    private class DotBatch {
+        private final static int VERTICES_PER_DOT = 4;
+        private final static int INDICES_PER_DOT = 6;
+        // x, y, z, u, v
+        private final static int FLOATS_PER_VERTEX = 5;
+
+        private int mDotProgram;
+        private int mDotPositionHandler;
+        private int mDotTexCoordHandler;
+        private int mDotAlphaHandler;
+        private int mDotMVPMatrixHandler;
+        private int mDotTextureHandler;
+        private int mVertexVbo;
+        private int mAlphaVbo;
+        private int mDotTexture;
+        private float[] mCenters;
+        private float mRadius;
+        private float[] mAlphas;
+        private boolean[] mCaptured;
+        private FloatBuffer mAlphaBuffer;
+        private ShortBuffer mIndexBuffer;
+
+        public DotBatch() {
+            final String vertexShader =
+                    "uniform mat4 u_MVPMatrix;        \n"
+                            + "attribute vec4 a_Position;     \n"
+                            + "attribute vec2 a_TexCoordinate;\n"
+                            + "attribute float a_Alpha;       \n"
+                            + "varying vec2 v_TexCoordinate;  \n"
+                            + "varying float v_Alpha;         \n"
+                            + "void main()                    \n"
+                            + "{                              \n"
+                            + "   v_TexCoordinate = a_TexCoordinate;\n"
+                            + "   v_Alpha = a_Alpha;          \n"
+                            + "   gl_Position = u_MVPMatrix * a_Position;   \n"
+                            + "}                              \n";
+
+            final String fragmentShader =
+                    "precision mediump float;       \n"
+                            + "uniform sampler2D u_Texture;   \n"
+                            + "varying vec2 v_TexCoordinate;  \n"
+                            + "varying float v_Alpha;         \n"
+                            + "void main()                    \n"
+                            + "{                              \n"
+                            + "   gl_FragColor = texture2D(u_Texture, v_TexCoordinate);\n"
+                            + "   gl_FragColor.a = gl_FragColor.a * v_Alpha;"
+                            + "}                              \n";
+
+            mDotProgram = linkProgram(compileShader(GLES20.GL_VERTEX_SHADER, vertexShader),
+                    compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader));
+            mDotPositionHandler = GLES20.glGetAttribLocation(mDotProgram, "a_Position");
+            mDotTexCoordHandler = GLES20.glGetAttribLocation(mDotProgram, "a_TexCoordinate");
+            mDotAlphaHandler = GLES20.glGetAttribLocation(mDotProgram, "a_Alpha");
+            mDotMVPMatrixHandler = GLES20.glGetUniformLocation(mDotProgram, "u_MVPMatrix");
+            mDotTextureHandler = GLES20.glGetUniformLocation(mDotProgram, "u_Texture");
+
+            final int count = mDots.size();
+            final int vertices = count * VERTICES_PER_DOT;
+
+            // Transform the quads of the dots once and for all
+            FloatBuffer vertexBuffer = ByteBuffer.allocateDirect(vertices * FLOATS_PER_VERTEX * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            float[] in = new float[4];
+            float[] out = new float[4];
+            mCenters = new float[count * 3];
+            for (int i = 0; i < count; i++) {
+                float[] model = mDots.get(i).mModelMatrix;
+                for (int v = 0; v < VERTICES_PER_DOT; v++) {
+                    in[0] = mVertexData[v * 2];
+                    in[1] = mVertexData[v * 2 + 1];
+                    in[2] = 0.0f;
+                    in[3] = 1.0f;
+                    Matrix.multiplyMV(out, 0, model, 0, in, 0);
+                    vertexBuffer.put(out, 0, 3);
+                    vertexBuffer.put(mTexCoordData, v * 2, 2);
+                }
+                mCenters[i * 3] = model[12];
+                mCenters[i * 3 + 1] = model[13];
+                mCenters[i * 3 + 2] = model[14];
+            }
+            vertexBuffer.position(0);
+
+            if (count > 0) {
+                mRadius = ViewFrustum.getBoundingRadius(mDots.get(0).mModelMatrix,
+                        SNAPSHOT_SCALE, SNAPSHOT_SCALE);
+            }
+
+            mAlphas = new float[vertices];
+            mCaptured = new boolean[count];
+            mAlphaBuffer = ByteBuffer.allocateDirect(vertices * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            mIndexBuffer = ByteBuffer.allocateDirect(count * INDICES_PER_DOT * 2)
+                    .order(ByteOrder.nativeOrder()).asShortBuffer();
+
+            int[] buffers = new int[2];
+            GLES20.glGenBuffers(2, buffers, 0);
+            mVertexVbo = buffers[0];
+            mAlphaVbo = buffers[1];
+
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexVbo);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices * FLOATS_PER_VERTEX * 4,
+                    vertexBuffer, GLES20.GL_STATIC_DRAW);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mAlphaVbo);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices * 4, mAlphaBuffer,
+                    GLES20.GL_DYNAMIC_DRAW);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+            // All the dots share the same marker texture
+            int[] texture = new int[1];
+            GLES20.glGenTextures(1, texture, 0);
+            mDotTexture = texture[0];
+            Bitmap marker = BitmapFactory.decodeResource(mContext.getResources(),
+                    R.drawable.ic_picsphere_marker);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mDotTexture);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, marker, 0);
+            marker.recycle();
+        }
+
+        /**
+         * Draws the dots
+         *
+         * @param rX The yaw of the camera, in degrees
+         */
+        public void draw(float rX) {
+            final int count = mDots.size();
+            int visible = 0;
+
+            mIndexBuffer.clear();
+            mDotGrid.getCaptured(mCaptured);
+            for (int i = 0; i < count; i++) {
+                // Set alpha based on camera distance to the point
+                float dX = mDots.get(i).getAutoAlphaX() - (rX + 180.0f);
+                dX = (dX + 180.0f) % 360.0f - 180.0f;
+                float alpha = 1.0f - Math.abs(dX)/180.0f * 8.0f;
+
+                final int first = i * VERTICES_PER_DOT;
+                for (int v = 0; v < VERTICES_PER_DOT; v++) {
+                    mAlphas[first + v] = alpha;
+                }
+
+                // Captured dots are done with, they'd only clutter the view
+                if (alpha > 0.0f && !mCaptured[i] && mFrustum.intersectsSphere(mCenters[i * 3],
+                        mCenters[i * 3 + 1], mCenters[i * 3 + 2], mRadius)) {
+                    mIndexBuffer.put((short) first);
+                    mIndexBuffer.put((short) (first + 1));
+                    mIndexBuffer.put((short) (first + 2));
+                    mIndexBuffer.put((short) first);
+                    mIndexBuffer.put((short) (first + 2));
+                    mIndexBuffer.put((short) (first + 3));
+                    visible++;
+                }
+            }
+
+            if (visible == 0) return;
+
+            mIndexBuffer.position(0);
+            mAlphaBuffer.position(0);
+            mAlphaBuffer.put(mAlphas);
+            mAlphaBuffer.position(0);
+
+            GLES20.glUseProgram(mDotProgram);
+
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexVbo);
+            GLES20.glEnableVertexAttribArray(mDotPositionHandler);
+            GLES20.glVertexAttribPointer(mDotPositionHandler, 3, GLES20.GL_FLOAT, false,
+                    FLOATS_PER_VERTEX * 4, 0);
+            GLES20.glEnableVertexAttribArray(mDotTexCoordHandler);
+            GLES20.glVertexAttribPointer(mDotTexCoordHandler, 2, GLES20.GL_FLOAT, false,
+                    FLOATS_PER_VERTEX * 4, 3 * 4);
+
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mAlphaVbo);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, mAlphas.length * 4, mAlphaBuffer);
+            GLES20.glEnableVertexAttribArray(mDotAlphaHandler);
+            GLES20.glVertexAttribPointer(mDotAlphaHandler, 1, GLES20.GL_FLOAT, false, 4, 0);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+            // The dots are static, the view-projection matrix is all they need
+            GLES20.glUniformMatrix4fv(mDotMVPMatrixHandler, 1, false, mViewProjMatrix, 0);
+
             GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureData);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mDotTexture);
+            GLES20.glUniform1i(mDotTextureHandler, 0);
 
-            GLES20.glUniform1i(mTextureHandler[mMode], 0);
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, visible * INDICES_PER_DOT,
+                    GLES20.GL_UNSIGNED_SHORT, mIndexBuffer);
 
-            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_FAN, 0, 4);
+            // The other programs use client-side arrays and don't have an alpha attribute
+            GLES20.glDisableVertexAttribArray(mDotAlphaHandler);
         }
     }
 
@@ -297,14 +549,14 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
      * Initialize the model data.
      */
     public Capture3DRenderer(Context context, CameraManager cameraManager) {
-        mSnapshots = new ArrayList<Snapshot>();
         mDots = new ArrayList<Snapshot>();
         mCamManager = cameraManager;
-        mListBusy = new ReentrantLock();
         mSensorFusion = new SensorFusion(context);
+        mOrientationReader = mSensorFusion.createReader();
         mCameraQuat = new Quaternion();
         mContext = context;
         mTempQuaternion = new Quaternion();
+        mTextureManager = new SnapshotTextureManager(TEXTURE_BUDGET_BYTES);
 
         // Position the dots every 40°
         for (int x = 0; x < 360; x += 360/12) {
@@ -316,12 +568,15 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
     }
 
     private void createDot(float rx, float ry) {
+        // Dots are drawn by the dot batch, which holds their texture
         Snapshot dot = new Snapshot(false);
-        dot.setTexture(BitmapFactory.decodeResource(mContext.getResources(), R.drawable.ic_picsphere_marker));
         dot.mModelMatrix = matrixFromEuler(rx, 0, ry, 0, 0, 100);
         Matrix.scaleM(dot.mModelMatrix, 0, 0.1f, 0.1f, 0.1f);
         dot.setAutoAlphaAngle(rx, ry);
         mDots.add(dot);
+
+        // Ids are given in sequence, so they match the index in the dots list
+        mDotGrid.add(dot.mModelMatrix[12], dot.mModelMatrix[13], dot.mModelMatrix[14]);
     }
 
     private float[] matrixFromEuler(float rx, float ry, float rz, float tx, float ty, float tz) {
@@ -422,6 +677,10 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
         }
 
         mSkyBox = new Skybox();
+        mDotBatch = new DotBatch();
+
+        // The snapshots textures died with the previous context
+        mTextureManager.invalidate();
 
         initCameraBillboard();
     }
@@ -452,12 +711,14 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
         mCameraSurfaceTex.setDefaultBufferSize(640, 480);
 
         mCameraBillboard = new Snapshot();
+        mCameraBillboard.mModelMatrix = new float[16];
         mCameraBillboard.setTextureId(mCameraTextureId);
         mCameraBillboard.setMode(CAMERA);
         mCamManager.setRenderToTexture(mCameraSurfaceTex);
 
         // Setup viewfinder billboard
         mViewfinderBillboard = new Snapshot(false);
+        mViewfinderBillboard.mModelMatrix = new float[16];
         mViewfinderBillboard.setTexture(BitmapFactory.decodeResource(mContext.getResources(),
                 R.drawable.ic_picsphere_viewfinder));
     }
@@ -468,7 +729,12 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
         GLES20.glViewport(0, 0, width, height);
 
         // We use here a field of view of 40, which is mostly fine for a camera app representation
-        final float hfov = 90f;
+        final float hfov = HFOV;
+
+        // Snapshots textures don't need more pixels than the snapshots take on screen
+        final float viewWidth = 2.0f * (float) Math.tan(hfov * Math.PI / 360.0f) * DISTANCE;
+        mTextureManager.setTargetSize((int) Math.ceil(Math.max(width, height)
+                * 2.0f * SNAPSHOT_SCALE * RATIO / viewWidth));
 
         // Create a new perspective projection matrix. The height will stay the same
         // while the width will vary as per aspect ratio.
@@ -486,6 +752,7 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
     @Override
     public void onDrawFrame(GL10 glUnused) {
         mCameraSurfaceTex.updateTexImage();
+        mTextureManager.update();
 
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
@@ -493,7 +760,9 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
         GLES20.glEnable(GLES20.GL_BLEND);
 
         // Update camera view matrix
-        float[] orientation = mSensorFusion.getFusedOrientation();
+        // Render the orientation the device will have when the frame gets on screen
+        float[] orientation = mOrientation;
+        mOrientationReader.getOrientation(mSensorFusion.getPresentationTime(), orientation);
 
         // Convert angles to degrees
         float rX = (float) (orientation[1] * 180.0f/Math.PI);
@@ -501,20 +770,37 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
         float rZ = (float) (orientation[2] * 180.0f/Math.PI);
 
         // Update quaternion from euler angles out of orientation
+        // Nothing is allocated from here on, this runs for every frame
         mCameraQuat.fromEuler( rX, 180.0f-rZ, rY);
-        mCameraQuat = mCameraQuat.getConjugate();
+        mCameraQuat.conjugateInto(mCameraQuat);
         mCameraQuat.normalise();
-        mViewMatrix = mCameraQuat.getMatrix();
+        synchronized (mViewMatrix) {
+            mCameraQuat.toMatrix(mViewMatrix, 0);
+
+            // The camera looks down -Z, which is the third row of the view rotation
+            mForward[0] = -mViewMatrix[2];
+            mForward[1] = -mViewMatrix[6];
+            mForward[2] = -mViewMatrix[10];
+        }
+        Matrix.multiplyMM(mViewProjMatrix, 0, mProjectionMatrix, 0, mViewMatrix, 0);
+        mFrustum.setFromMatrix(mViewProjMatrix);
+
+        final AutoCaptureListener autoCaptureListener = mAutoCaptureListener;
+        if (autoCaptureListener != null && mAutoCapture.update(System.nanoTime(),
+                mForward[0], mForward[1], mForward[2], mSensorFusion.getAngularSpeed())) {
+            autoCaptureListener.onAutoCapture();
+        }
 
         // Update camera billboard
-        mCameraBillboard.mModelMatrix = mCameraQuat.getMatrix();
+        final float[] billboardMatrix = mCameraBillboard.mModelMatrix;
+        mCameraQuat.toMatrix(billboardMatrix, 0);
 
-        Matrix.invertM(mCameraBillboard.mModelMatrix, 0, mCameraBillboard.mModelMatrix, 0);
-        Matrix.translateM(mCameraBillboard.mModelMatrix, 0, 0.0f, 0.0f, -DISTANCE);
-        Matrix.rotateM(mCameraBillboard.mModelMatrix, 0, -90, 0, 0, 1);
+        Matrix.invertM(billboardMatrix, 0, billboardMatrix, 0);
+        Matrix.translateM(billboardMatrix, 0, 0.0f, 0.0f, -DISTANCE);
+        Matrix.rotateM(billboardMatrix, 0, -90, 0, 0, 1);
 
-        mViewfinderBillboard.mModelMatrix = Arrays.copyOf(mCameraBillboard.mModelMatrix,
-                mCameraBillboard.mModelMatrix.length);
+        System.arraycopy(billboardMatrix, 0, mViewfinderBillboard.mModelMatrix, 0,
+                billboardMatrix.length);
         Matrix.scaleM(mViewfinderBillboard.mModelMatrix, 0, 0.25f, 0.25f, 0.25f);
 
         // Draw all teh things
@@ -523,23 +809,57 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
 
         mCameraBillboard.draw();
 
-        mListBusy.lock();
-        for (Snapshot snap : mSnapshots) {
-            snap.draw();
-        }
-        mListBusy.unlock();
+        drawSnapshots();
+
+        mDotBatch.draw(rX);
 
-        for (Snapshot dot : mDots) {
-            // Set alpha based on camera distance to the point
-            float dX = dot.getAutoAlphaX() - (rX + 180.0f);
-            float dY = dot.getAutoAlphaY() - rY;
-            dX = (dX + 180.0f) % 360.0f - 180.0f;
-            dot.setAlpha(1.0f - Math.abs(dX)/180.0f * 8.0f);
+        mViewfinderBillboard.draw();
+    }
 
-            dot.draw();
+    /**
+     * Draws the snapshots that are in view, sorted by program and texture
+     */
+    private void drawSnapshots() {
+        final Snapshot[] snapshots = mSnapshots;
+
+        mDrawList.clear();
+        for (int i = 0; i < snapshots.length; i++) {
+            final Snapshot snap = snapshots[i];
+            final float[] m = snap.mModelMatrix;
+            final boolean inFrustum = mFrustum.intersectsSphere(m[12], m[13], m[14],
+                    snap.mBoundingRadius);
+
+            if (snap.mTexture != null) {
+                snap.mTexture.setInView(inFrustum || mFrustum.intersectsSphere(m[12], m[13],
+                        m[14], snap.mBoundingRadius * IN_VIEW_MARGIN));
+            }
+
+            // Textures evicted or not uploaded yet are skipped as well
+            final int textureId = snap.getTextureId();
+            if (inFrustum && snap.mIsVisible && textureId != 0) {
+                mDrawList.add(i, mProgram[snap.mMode], textureId);
+            }
         }
+        mDrawList.sort();
 
-        mViewfinderBillboard.draw();
+        int program = 0;
+        int texture = 0;
+        for (int i = 0; i < mDrawList.size(); i++) {
+            final Snapshot snap = snapshots[mDrawList.getIndex(i)];
+
+            if (mDrawList.getProgram(i) != program) {
+                program = mDrawList.getProgram(i);
+                snap.bindProgram();
+                texture = 0;
+            }
+
+            if (mDrawList.getTexture(i) != texture) {
+                texture = mDrawList.getTexture(i);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            }
+
+            snap.drawQuad();
+        }
     }
 
     public void setCamPreviewVisible(boolean visible) {
@@ -565,7 +885,9 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
 
         // Update quaternion from euler angles out of orientation and set it as view matrix
         mCameraQuat.fromEuler(rY, 0.0f, rX);
-        mViewMatrix = mCameraQuat.getConjugate().getMatrix();
+        synchronized (mViewMatrix) {
+            mCameraQuat.conjugateInto(mTempQuaternion).toMatrix(mViewMatrix, 0);
+        }
     }
 
     /**
@@ -604,41 +926,125 @@ public class Capture3DRenderer implements GLSurfaceView.Renderer {
         return shaderHandle;
     }
 
+    /**
+     * Returns the orientation tracking of the renderer
+     */
+    public SensorFusion getSensorFusion() {
+        return mSensorFusion;
+    }
+
+    /**
+     * Sets the listener notified when a snapshot should be taken automatically
+     *
+     * @param listener The listener, or null to disable auto-capture
+     */
+    public void setAutoCaptureListener(AutoCaptureListener listener) {
+        mAutoCapture.reset();
+        mAutoCaptureListener = listener;
+    }
+
+    /**
+     * Reports that the snapshot asked by the auto-capture listener won't be taken, so that
+     * its dot can trigger again
+     */
+    public void cancelAutoCapture() {
+        mAutoCapture.cancel();
+    }
+
+    /**
+     * Returns the manager of the snapshots textures, which exposes their memory usage
+     */
+    public SnapshotTextureManager getTextureManager() {
+        return mTextureManager;
+    }
+
+    /**
+     * Helper function to link a program
+     *
+     * @param vertexShader The handle of the compiled vertex shader
+     * @param fragmentShader The handle of the compiled fragment shader
+     * @return An OpenGL handle to the program
+     */
+    private static int linkProgram(final int vertexShader, final int fragmentShader) {
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glLinkProgram(program);
+
+        final int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+
+        if (linkStatus[0] == 0) {
+            throw new RuntimeException("Error linking shaders");
+        }
+
+        return program;
+    }
+
+    /**
+     * Returns the current fused orientation of the camera
+     * @return The orientation, or null if no sensor data has been received yet
+     */
+    public PictureOrientation getCameraOrientation() {
+        float[] rotationMatrix = mSensorFusion.getRotationMatrix();
+        if (rotationMatrix == null) {
+            return null;
+        }
+
+        return PictureOrientation.fromRotationMatrix(rotationMatrix);
+    }
+
     /**
      * Adds a snapshot to the sphere
      */
     public void addSnapshot(final Bitmap image) {
         Snapshot snap = new Snapshot();
-        snap.mModelMatrix = Arrays.copyOf(mViewMatrix, mViewMatrix.length);
+        synchronized (mViewMatrix) {
+            snap.mModelMatrix = Arrays.copyOf(mViewMatrix, mViewMatrix.length);
+        }
 
         Matrix.invertM(snap.mModelMatrix, 0, snap.mModelMatrix, 0);
         Matrix.translateM(snap.mModelMatrix, 0, 0.0f, 0.0f, -DISTANCE);
         Matrix.rotateM(snap.mModelMatrix, 0, -90, 0, 0, 1);
 
-        snap.setTexture(image);
+        snap.mBoundingRadius = ViewFrustum.getBoundingRadius(snap.mModelMatrix,
+                SNAPSHOT_SCALE * RATIO, SNAPSHOT_SCALE);
+        snap.mTexture = mTextureManager.create(image);
 
-        mListBusy.lock();
-        mSnapshots.add(snap);
-        mListBusy.unlock();
+        synchronized (mSnapshotsLock) {
+            snap.mCoveredDots = mDotGrid.markCaptured(snap.mModelMatrix[12],
+                    snap.mModelMatrix[13], snap.mModelMatrix[14], COVERAGE_DEGREES);
+
+            Snapshot[] snapshots = Arrays.copyOf(mSnapshots, mSnapshots.length + 1);
+            snapshots[snapshots.length - 1] = snap;
+            mSnapshots = snapshots;
+        }
     }
 
     /**
      * Removes the last taken snapshot
      */
     public void removeLastPicture() {
-        mListBusy.lock();
-        if (mSnapshots.size() > 0) {
-            mSnapshots.remove(mSnapshots.size()-1);
+        synchronized (mSnapshotsLock) {
+            if (mSnapshots.length > 0) {
+                final Snapshot snap = mSnapshots[mSnapshots.length - 1];
+                mTextureManager.release(snap.mTexture);
+                mDotGrid.unmarkCaptured(snap.mCoveredDots);
+                mSnapshots = Arrays.copyOf(mSnapshots, mSnapshots.length - 1);
+            }
         }
-        mListBusy.unlock();
     }
 
     /**
      * Clear sphere's snapshots
      */
     public void clearSnapshots() {
-        mListBusy.lock();
-        mSnapshots.clear();
-        mListBusy.unlock();
+        synchronized (mSnapshotsLock) {
+            for (Snapshot snap : mSnapshots) {
+                mTextureManager.release(snap.mTexture);
+            }
+            mSnapshots = new Snapshot[0];
+            mDotGrid.clearCaptured();
+        }
     }
 }
\ No newline at end of file
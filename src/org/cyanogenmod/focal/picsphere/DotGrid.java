@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.picsphere;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index of the PicSphere target dots, bucketed on a yaw/pitch grid so that the dot
+ * nearest to a direction is found by looking at a few cells instead of every dot.
+ *
+ * Dots can be marked as captured, in which case they are ignored by the lookups, or as
+ * pending while a snapshot of them is being taken. Doesn't depend on GL.
+ */
+public class DotGrid {
+    private final float mCellDegrees;
+    private final int mYawCells;
+    private final int mPitchCells;
+    private int[][] mCells;
+    private int[] mCellSizes;
+
+    // x, y, z of each dot's unit direction
+    private float[] mDirections = new float[16 * 3];
+    private boolean[] mCaptured = new boolean[16];
+    private boolean[] mPending = new boolean[16];
+    private int mCount;
+
+    /**
+     * @param cellDegrees The size of the grid cells, which should be about the distance
+     *                    lookups are done within
+     */
+    public DotGrid(float cellDegrees) {
+        mCellDegrees = cellDegrees;
+        mYawCells = (int) Math.ceil(360.0f / cellDegrees);
+        mPitchCells = (int) Math.ceil(180.0f / cellDegrees);
+        mCells = new int[mYawCells * mPitchCells][];
+        mCellSizes = new int[mYawCells * mPitchCells];
+    }
+
+    /**
+     * Adds a dot
+     *
+     * @return The id of the dot, which are given in sequence from 0
+     */
+    public synchronized int add(float x, float y, float z) {
+        final float length = (float) Math.sqrt(x * x + y * y + z * z);
+        if (mCount * 3 == mDirections.length) {
+            mDirections = Arrays.copyOf(mDirections, mDirections.length * 2);
+            mCaptured = Arrays.copyOf(mCaptured, mCaptured.length * 2);
+            mPending = Arrays.copyOf(mPending, mPending.length * 2);
+        }
+
+        final int id = mCount++;
+        mDirections[id * 3] = x / length;
+        mDirections[id * 3 + 1] = y / length;
+        mDirections[id * 3 + 2] = z / length;
+
+        final int cell = getPitchCell(mDirections[id * 3 + 1]) * mYawCells
+                + getYawCell(mDirections[id * 3], mDirections[id * 3 + 2]);
+        if (mCells[cell] == null) {
+            mCells[cell] = new int[4];
+        } else if (mCellSizes[cell] == mCells[cell].length) {
+            mCells[cell] = Arrays.copyOf(mCells[cell], mCellSizes[cell] * 2);
+        }
+        mCells[cell][mCellSizes[cell]++] = id;
+
+        return id;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Finds the uncaptured and not pending dot closest to a direction
+     *
+     * @param x, y, z The direction, which doesn't need to be normalized
+     * @param maxDegrees How far from the direction to look
+     * @return The id of the dot, or -1 if there is none close enough
+     */
+    public synchronized int findNearest(float x, float y, float z, float maxDegrees) {
+        final float length = (float) Math.sqrt(x * x + y * y + z * z);
+        if (length == 0) return -1;
+        x /= length;
+        y /= length;
+        z /= length;
+
+        final float minCos = (float) Math.cos(Math.toRadians(maxDegrees));
+        final int pitchRange = (int) Math.ceil(maxDegrees / mCellDegrees);
+        final int centerPitch = getPitchCell(y);
+        final int centerYaw = getYawCell(x, z);
+
+        int best = -1;
+        float bestCos = minCos;
+        for (int p = Math.max(0, centerPitch - pitchRange);
+                p <= Math.min(mPitchCells - 1, centerPitch + pitchRange); p++) {
+            // Yaw cells get narrower towards the poles, look at as many as it takes to
+            // cover the distance, up to the whole row
+            final int yawRange = getYawRange(p, maxDegrees);
+            final int first = centerYaw - yawRange;
+            final int cells = Math.min(mYawCells, yawRange * 2 + 1);
+
+            for (int c = 0; c < cells; c++) {
+                final int cell = p * mYawCells + ((first + c) % mYawCells + mYawCells)
+                        % mYawCells;
+                final int[] ids = mCells[cell];
+                for (int i = 0; i < mCellSizes[cell]; i++) {
+                    final int id = ids[i];
+                    if (mCaptured[id] || mPending[id]) continue;
+
+                    final float cos = x * mDirections[id * 3] + y * mDirections[id * 3 + 1]
+                            + z * mDirections[id * 3 + 2];
+                    if (cos >= bestCos) {
+                        bestCos = cos;
+                        best = id;
+                    }
+                }
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Marks the uncaptured dots within a distance of a direction as captured
+     *
+     * @return The ids of the dots that were marked
+     */
+    public synchronized int[] markCaptured(float x, float y, float z, float maxDegrees) {
+        final float length = (float) Math.sqrt(x * x + y * y + z * z);
+        final float minCos = (float) Math.cos(Math.toRadians(maxDegrees));
+        int[] marked = new int[0];
+
+        if (length == 0) return marked;
+        for (int id = 0; id < mCount; id++) {
+            if (mCaptured[id]) continue;
+
+            final float cos = (x * mDirections[id * 3] + y * mDirections[id * 3 + 1]
+                    + z * mDirections[id * 3 + 2]) / length;
+            if (cos >= minCos) {
+                mCaptured[id] = true;
+                mPending[id] = false;
+                marked = Arrays.copyOf(marked, marked.length + 1);
+                marked[marked.length - 1] = id;
+            }
+        }
+
+        return marked;
+    }
+
+    /**
+     * Marks dots as not captured anymore
+     */
+    public synchronized void unmarkCaptured(int[] ids) {
+        for (int id : ids) {
+            mCaptured[id] = false;
+        }
+    }
+
+    public synchronized void clearCaptured() {
+        Arrays.fill(mCaptured, false);
+        Arrays.fill(mPending, false);
+    }
+
+    /**
+     * Marks a dot as pending, or not anymore. Pending dots are ignored by findNearest until
+     * they are captured or unmarked.
+     */
+    public synchronized void setPending(int id, boolean pending) {
+        mPending[id] = pending;
+    }
+
+    public synchronized boolean isCaptured(int id) {
+        return mCaptured[id];
+    }
+
+    /**
+     * Copies the captured state of all the dots at once
+     *
+     * @param out The array to write into, at least as long as the number of dots
+     */
+    public synchronized void getCaptured(boolean[] out) {
+        System.arraycopy(mCaptured, 0, out, 0, mCount);
+    }
+
+    private int getPitchCell(float y) {
+        final float pitch = (float) Math.toDegrees(Math.asin(Math.max(-1.0f, Math.min(1.0f, y))));
+        return Math.min(mPitchCells - 1, (int) ((pitch + 90.0f) / mCellDegrees));
+    }
+
+    private int getYawCell(float x, float z) {
+        final float yaw = (float) Math.toDegrees(Math.atan2(x, z)) + 180.0f;
+        return Math.min(mYawCells - 1, (int) (yaw / mCellDegrees));
+    }
+
+    /**
+     * Returns how many yaw cells on each side of a cell to look at in a pitch row
+     */
+    private int getYawRange(int pitchCell, float maxDegrees) {
+        // The edge of the row closest to the pole, where cells are the narrowest
+        final float lower = pitchCell * mCellDegrees - 90.0f;
+        final float upper = lower + mCellDegrees;
+        final float edge = Math.min(90.0f, Math.max(Math.abs(lower), Math.abs(upper)));
+        final float cos = (float) Math.cos(Math.toRadians(edge));
+
+        if (cos * mCellDegrees < 1e-3f) {
+            return mYawCells;
+        }
+        return Math.min(mYawCells, (int) Math.ceil(maxDegrees / (mCellDegrees * cos)));
+    }
+}
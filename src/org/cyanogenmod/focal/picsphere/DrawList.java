@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.picsphere;
+
+import java.util.Arrays;
+
+/**
+ * List of draw calls sorted by program, then texture, so that state changes are minimized
+ * when drawing them in order. Items keep their insertion order within the same state.
+ * Doesn't depend on GL, and doesn't allocate unless it has to grow.
+ */
+public class DrawList {
+    private final static int INDEX_BITS = 21;
+    private final static long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    private long[] mKeys;
+    private int mSize;
+
+    public DrawList(int capacity) {
+        mKeys = new long[Math.max(1, capacity)];
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Adds a draw call
+     *
+     * @param index The index of the object to draw, in the caller's list
+     * @param program The program to draw it with
+     * @param texture The texture to draw it with
+     */
+    public void add(int index, int program, int texture) {
+        if (mSize == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mKeys.length * 2);
+        }
+
+        mKeys[mSize++] = ((program & INDEX_MASK) << (2 * INDEX_BITS))
+                | ((texture & INDEX_MASK) << INDEX_BITS) | (index & INDEX_MASK);
+    }
+
+    public void sort() {
+        Arrays.sort(mKeys, 0, mSize);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getIndex(int i) {
+        return (int) (mKeys[i] & INDEX_MASK);
+    }
+
+    public int getTexture(int i) {
+        return (int) ((mKeys[i] >>> INDEX_BITS) & INDEX_MASK);
+    }
+
+    public int getProgram(int i) {
+        return (int) ((mKeys[i] >>> (2 * INDEX_BITS)) & INDEX_MASK);
+    }
+}
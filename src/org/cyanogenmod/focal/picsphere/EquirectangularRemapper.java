@@ -0,0 +1,424 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.picsphere;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * In-process replacement for Hugin's nona: projects rectilinear pictures onto an
+ * equirectangular canvas, with bilinear sampling.
+ *
+ * The canvas covers 360° horizontally and 180° vertically, longitude increasing to the right
+ * and latitude increasing upwards. Orientations follow PictureOrientation: yaw is positive to
+ * the right, pitch is positive upwards and roll is positive when the camera is rolled
+ * clockwise.
+ *
+ * This class doesn't depend on Android, pixels are plain ARGB int arrays.
+ */
+public class EquirectangularRemapper {
+    public final static String TAG = "EquirectangularRemapper";
+
+    // Number of canvas rows processed by a single task
+    private final static int TILE_ROWS = 32;
+
+    // Number of samples per image edge used to find the footprint of an image
+    private final static int FOOTPRINT_SAMPLES = 32;
+
+    /**
+     * A source picture with its camera parameters
+     */
+    public static class Source {
+        public final int[] pixels;
+        public final int width;
+        public final int height;
+        public final float hfov;
+        public final float yaw;
+        public final float pitch;
+        public final float roll;
+
+        public Source(int[] pixels, int width, int height, float hfov,
+                      float yaw, float pitch, float roll) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.hfov = hfov;
+            this.yaw = yaw;
+            this.pitch = pitch;
+            this.roll = roll;
+        }
+    }
+
+    /**
+     * A remapped region of the canvas. Pixels that the source doesn't cover are fully
+     * transparent. The region may wrap around the right edge of the canvas: its columns are
+     * canvas columns (left + i) modulo the canvas width.
+     */
+    public static class Layer {
+        public final int left;
+        public final int top;
+        public final int width;
+        public final int height;
+        public final int[] pixels;
+
+        public Layer(int left, int top, int width, int height) {
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+            this.pixels = new int[width * height];
+        }
+    }
+
+    /**
+     * Camera intrinsics, shared by all the pictures of the same size and field of view
+     */
+    private static class Intrinsics {
+        final float focal;
+        final float centerX;
+        final float centerY;
+        final float maxX;
+        final float maxY;
+
+        Intrinsics(int width, int height, float hfov) {
+            focal = (float) (width / 2.0 / Math.tan(Math.toRadians(hfov) / 2.0));
+            // Pixel centers are at integer coordinates
+            centerX = width / 2.0f - 0.5f;
+            centerY = height / 2.0f - 0.5f;
+            maxX = width - 1;
+            maxY = height - 1;
+        }
+    }
+
+    private final int mCanvasWidth;
+    private final int mCanvasHeight;
+
+    // Direction lookup tables of the canvas columns (longitude) and rows (latitude)
+    private final float[] mSinLon;
+    private final float[] mCosLon;
+    private final float[] mSinLat;
+    private final float[] mCosLat;
+
+    private final Map<String, Intrinsics> mIntrinsics;
+    private final ExecutorService mExecutor;
+
+    public EquirectangularRemapper(int canvasWidth, int canvasHeight) {
+        mCanvasWidth = canvasWidth;
+        mCanvasHeight = canvasHeight;
+        mSinLon = new float[canvasWidth];
+        mCosLon = new float[canvasWidth];
+        mSinLat = new float[canvasHeight];
+        mCosLat = new float[canvasHeight];
+        mIntrinsics = new HashMap<String, Intrinsics>();
+        mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        for (int x = 0; x < canvasWidth; x++) {
+            double lon = (x + 0.5) / canvasWidth * 2.0 * Math.PI - Math.PI;
+            mSinLon[x] = (float) Math.sin(lon);
+            mCosLon[x] = (float) Math.cos(lon);
+        }
+
+        for (int y = 0; y < canvasHeight; y++) {
+            double lat = Math.PI / 2.0 - (y + 0.5) / canvasHeight * Math.PI;
+            mSinLat[y] = (float) Math.sin(lat);
+            mCosLat[y] = (float) Math.cos(lat);
+        }
+    }
+
+    public int getCanvasWidth() {
+        return mCanvasWidth;
+    }
+
+    public int getCanvasHeight() {
+        return mCanvasHeight;
+    }
+
+    /**
+     * Stops the worker threads. The remapper can't be used afterwards.
+     */
+    public void release() {
+        mExecutor.shutdown();
+    }
+
+    private synchronized Intrinsics getIntrinsics(Source src) {
+        String key = src.width + "x" + src.height + "@" + src.hfov;
+        Intrinsics intrinsics = mIntrinsics.get(key);
+
+        if (intrinsics == null) {
+            intrinsics = new Intrinsics(src.width, src.height, src.hfov);
+            mIntrinsics.put(key, intrinsics);
+        }
+
+        return intrinsics;
+    }
+
+    /**
+     * Returns the camera-to-world rotation of a source, as right, up and forward vectors
+     * (column-major 3x3)
+     */
+    private static float[] getRotation(Source src) {
+        double y = Math.toRadians(src.yaw);
+        double p = Math.toRadians(src.pitch);
+        double r = Math.toRadians(src.roll);
+        double sy = Math.sin(y), cy = Math.cos(y);
+        double sp = Math.sin(p), cp = Math.cos(p);
+        double sr = Math.sin(r), cr = Math.cos(r);
+
+        // Basis of a camera without roll
+        double[] right0 = {cy, 0, -sy};
+        double[] up0 = {-sp * sy, cp, -sp * cy};
+        double[] fwd = {cp * sy, sp, cp * cy};
+
+        float[] m = new float[9];
+        for (int i = 0; i < 3; i++) {
+            m[i] = (float) (cr * right0[i] - sr * up0[i]);
+            m[3 + i] = (float) (cr * up0[i] + sr * right0[i]);
+            m[6 + i] = (float) fwd[i];
+        }
+        return m;
+    }
+
+    /**
+     * Computes the canvas region covered by a source.
+     *
+     * @return {left, top, width, height}, where left + width may go past the canvas width
+     *         when the footprint wraps around
+     */
+    public int[] getFootprint(Source src) {
+        Intrinsics in = getIntrinsics(src);
+        float[] m = getRotation(src);
+
+        // Image center longitude, used to unwrap the longitudes of the borders
+        double centerLon = Math.atan2(m[6], m[8]);
+        double minLon = 0, maxLon = 0;
+        double minLat = Math.PI / 2, maxLat = -Math.PI / 2;
+
+        for (int i = 0; i <= FOOTPRINT_SAMPLES * 4; i++) {
+            // Walk along the image border
+            int edge = Math.min(i / FOOTPRINT_SAMPLES, 3);
+            float t = (i - edge * FOOTPRINT_SAMPLES) / (float) FOOTPRINT_SAMPLES;
+            float px, py;
+            switch (edge) {
+                case 0: px = t * in.maxX; py = 0; break;
+                case 1: px = in.maxX; py = t * in.maxY; break;
+                case 2: px = (1 - t) * in.maxX; py = in.maxY; break;
+                default: px = 0; py = (1 - t) * in.maxY; break;
+            }
+
+            double cx = (px - in.centerX) / in.focal;
+            double cy = -(py - in.centerY) / in.focal;
+            double dx = m[0] * cx + m[3] * cy + m[6];
+            double dy = m[1] * cx + m[4] * cy + m[7];
+            double dz = m[2] * cx + m[5] * cy + m[8];
+            double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+            double lat = Math.asin(dy / len);
+            double lon = Math.atan2(dx, dz) - centerLon;
+            while (lon > Math.PI) lon -= 2 * Math.PI;
+            while (lon < -Math.PI) lon += 2 * Math.PI;
+
+            minLon = Math.min(minLon, lon);
+            maxLon = Math.max(maxLon, lon);
+            minLat = Math.min(minLat, lat);
+            maxLat = Math.max(maxLat, lat);
+        }
+
+        int top = (int) Math.floor((Math.PI / 2 - maxLat) / Math.PI * mCanvasHeight) - 1;
+        int bottom = (int) Math.ceil((Math.PI / 2 - minLat) / Math.PI * mCanvasHeight) + 1;
+        int left = (int) Math.floor((centerLon + minLon + Math.PI) / (2 * Math.PI)
+                * mCanvasWidth) - 1;
+        int right = (int) Math.ceil((centerLon + maxLon + Math.PI) / (2 * Math.PI)
+                * mCanvasWidth) + 1;
+
+        // If a pole is visible in the picture, the footprint spans all the longitudes
+        boolean north = projects(in, m, 0, 1, 0);
+        boolean south = projects(in, m, 0, -1, 0);
+        if (north) top = 0;
+        if (south) bottom = mCanvasHeight;
+        if (north || south || right - left >= mCanvasWidth) {
+            left = 0;
+            right = mCanvasWidth;
+        }
+
+        top = Math.max(0, top);
+        bottom = Math.min(mCanvasHeight, bottom);
+        int width = Math.min(right - left, mCanvasWidth);
+        left = ((left % mCanvasWidth) + mCanvasWidth) % mCanvasWidth;
+
+        return new int[]{left, top, width, bottom - top};
+    }
+
+    private static boolean projects(Intrinsics in, float[] m, float dx, float dy, float dz) {
+        float cx = dx * m[0] + dy * m[1] + dz * m[2];
+        float cy = dx * m[3] + dy * m[4] + dz * m[5];
+        float cz = dx * m[6] + dy * m[7] + dz * m[8];
+        if (cz <= 0) return false;
+
+        float u = in.centerX + in.focal * cx / cz;
+        float v = in.centerY - in.focal * cy / cz;
+        return u >= 0 && u <= in.maxX && v >= 0 && v <= in.maxY;
+    }
+
+    /**
+     * Computes which canvas pixels a source covers, without sampling it. The source pixels
+     * may be null. This is meant for low-resolution canvases, such as the seam masks.
+     *
+     * @return A mask of canvas width * canvas height entries
+     */
+    public boolean[] getCoverage(Source src) {
+        boolean[] mask = new boolean[mCanvasWidth * mCanvasHeight];
+        Intrinsics in = getIntrinsics(src);
+        float[] m = getRotation(src);
+        int[] footprint = getFootprint(src);
+
+        for (int y = footprint[1]; y < footprint[1] + footprint[3]; y++) {
+            for (int col = 0; col < footprint[2]; col++) {
+                int x = (footprint[0] + col) % mCanvasWidth;
+                float dx = mCosLat[y] * mSinLon[x];
+                float dy = mSinLat[y];
+                float dz = mCosLat[y] * mCosLon[x];
+                mask[y * mCanvasWidth + x] = projects(in, m, dx, dy, dz);
+            }
+        }
+
+        return mask;
+    }
+
+    /**
+     * Remaps the whole footprint of a source
+     */
+    public Layer remap(Source src) {
+        int[] footprint = getFootprint(src);
+        return remap(src, footprint[0], footprint[1], footprint[2], footprint[3]);
+    }
+
+    /**
+     * Remaps a source onto a region of the canvas only, which lets the blender request just
+     * the strips it is working on. Rows are processed in parallel tiles.
+     *
+     * @param left The first canvas column, the region wraps around the canvas right edge
+     * @param top The first canvas row
+     * @param width The number of columns
+     * @param height The number of rows
+     * @return The remapped region
+     */
+    public Layer remap(final Source src, final int left, final int top,
+                       final int width, final int height) {
+        final Layer layer = new Layer(left, top, width, height);
+        final Intrinsics in = getIntrinsics(src);
+        final float[] m = getRotation(src);
+
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (int row = 0; row < height; row += TILE_ROWS) {
+            final int firstRow = row;
+            final int lastRow = Math.min(height, row + TILE_ROWS);
+
+            tasks.add(mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    remapRows(src, in, m, layer, firstRow, lastRow);
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Remapping failed", e.getCause());
+        }
+
+        return layer;
+    }
+
+    private void remapRows(Source src, Intrinsics in, float[] m, Layer layer,
+                           int firstRow, int lastRow) {
+        final int[] srcPixels = src.pixels;
+        final int srcWidth = src.width;
+
+        for (int row = firstRow; row < lastRow; row++) {
+            final int y = layer.top + row;
+            final float sinLat = mSinLat[y];
+            final float cosLat = mCosLat[y];
+            int out = row * layer.width;
+
+            for (int col = 0; col < layer.width; col++, out++) {
+                final int x = (layer.left + col) % mCanvasWidth;
+
+                // World direction of this canvas pixel
+                final float dx = cosLat * mSinLon[x];
+                final float dy = sinLat;
+                final float dz = cosLat * mCosLon[x];
+
+                // Into camera space (transpose of the camera-to-world rotation)
+                final float cz = dx * m[6] + dy * m[7] + dz * m[8];
+                if (cz <= 0) continue;
+
+                final float cx = dx * m[0] + dy * m[1] + dz * m[2];
+                final float cy = dx * m[3] + dy * m[4] + dz * m[5];
+                final float u = in.centerX + in.focal * cx / cz;
+                final float v = in.centerY - in.focal * cy / cz;
+
+                if (u < 0 || v < 0 || u > in.maxX || v > in.maxY) continue;
+
+                layer.pixels[out] = sampleBilinear(srcPixels, srcWidth, u, v);
+            }
+        }
+    }
+
+    /**
+     * Samples an ARGB image at a sub-pixel position, which must be within the image
+     */
+    static int sampleBilinear(int[] pixels, int width, float u, float v) {
+        final int height = pixels.length / width;
+        final int x0 = (int) u;
+        final int y0 = (int) v;
+        final int x1 = Math.min(x0 + 1, width - 1);
+        final int y1 = Math.min(y0 + 1, height - 1);
+        final int fx = (int) ((u - x0) * 256);
+        final int fy = (int) ((v - y0) * 256);
+
+        final int p00 = pixels[y0 * width + x0];
+        final int p10 = pixels[y0 * width + x1];
+        final int p01 = pixels[y1 * width + x0];
+        final int p11 = pixels[y1 * width + x1];
+
+        int result = 0xFF000000;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int c00 = (p00 >> shift) & 0xFF;
+            int c10 = (p10 >> shift) & 0xFF;
+            int c01 = (p01 >> shift) & 0xFF;
+            int c11 = (p11 >> shift) & 0xFF;
+            int top = c00 * (256 - fx) + c10 * fx;
+            int bottom = c01 * (256 - fx) + c11 * fx;
+            int c = (top * (256 - fy) + bottom * fy) >> 16;
+            result |= c << shift;
+        }
+        return result;
+    }
+}
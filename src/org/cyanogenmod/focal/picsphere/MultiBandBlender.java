@@ -0,0 +1,591 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.picsphere;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-process replacement for nona + enblend: remaps the pictures of a sphere and blends them
+ * with Laplacian pyramids along distance-transform seams.
+ *
+ * Seams are computed once on a downsampled canvas. The full resolution canvas is then
+ * processed in bands of rows: each band only remaps the pictures crossing it (plus a margin
+ * for the pyramid filters), blends them and hands its rows to a RowSink, typically a
+ * JpegStreamEncoder. Pictures are loaded when the first band needs them and dropped after
+ * the last one, so the memory use doesn't depend on the canvas height.
+ *
+ * This class doesn't depend on Android.
+ */
+public class MultiBandBlender {
+    public final static String TAG = "MultiBandBlender";
+
+    // Downsampling factor of the seam masks
+    private final static int SEAM_SCALE = 8;
+
+    // Maximum number of pyramid levels
+    private final static int MAX_LEVELS = 5;
+
+    // Number of output rows per band
+    private final static int BAND_ROWS = 64;
+
+    // Weight of a picture outside of its seams, so that no covered pixel ends up without
+    // any weight because of the low resolution of the seam masks
+    private final static float OFF_SEAM_WEIGHT = 0.001f;
+
+    // Chamfer distance steps
+    private final static int DIST_STRAIGHT = 3;
+    private final static int DIST_DIAGONAL = 4;
+
+    /**
+     * Provides the pixels of the pictures, when the blender needs them
+     */
+    public interface SourceLoader {
+        /**
+         * Loads a picture. The returned source may be downsampled, but must keep the angles
+         * and the aspect ratio of the descriptor passed to the blender.
+         *
+         * @param index The index of the picture
+         * @return The source, with its pixels
+         */
+        public EquirectangularRemapper.Source load(int index) throws IOException;
+    }
+
+    /**
+     * Receives the blended rows, from top to bottom
+     */
+    public interface RowSink {
+        public void writeRows(int[] argb, int offset, int stride, int rows) throws IOException;
+    }
+
+    private final EquirectangularRemapper mRemapper;
+    private final List<EquirectangularRemapper.Source> mSources;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mLevels;
+    private final int mMargin;
+    private final int mWindowRows;
+    private final int[][] mFootprints;
+
+    // Index of the picture owning each cell of the seam mask, -1 if none
+    private short[] mLabels;
+    private int mLabelWidth;
+    private int mLabelHeight;
+
+    /**
+     * @param remapper The remapper of the output canvas
+     * @param sources The pictures, with their final angles. Pixels may be null.
+     */
+    public MultiBandBlender(EquirectangularRemapper remapper,
+                            List<EquirectangularRemapper.Source> sources) {
+        mRemapper = remapper;
+        mSources = sources;
+        mWidth = remapper.getCanvasWidth();
+        mHeight = remapper.getCanvasHeight();
+
+        // Every level must halve the canvas width exactly, as it wraps around
+        int levels = 1;
+        while (levels < MAX_LEVELS && (mWidth % (1 << levels)) == 0) {
+            levels++;
+        }
+        mLevels = levels;
+
+        // Margin covering the reach of the pyramid filters, aligned on the coarsest level
+        mMargin = 1 << (mLevels + 1);
+        mWindowRows = BAND_ROWS + 2 * mMargin;
+
+        mFootprints = new int[sources.size()][];
+        for (int i = 0; i < sources.size(); i++) {
+            mFootprints[i] = remapper.getFootprint(sources.get(i));
+        }
+    }
+
+    /**
+     * Assigns each cell of the low resolution canvas to the covering picture whose border is
+     * the farthest, which puts the seams in the middle of the overlaps.
+     */
+    public void computeSeams() {
+        mLabelWidth = (mWidth + SEAM_SCALE - 1) / SEAM_SCALE;
+        mLabelHeight = (mHeight + SEAM_SCALE - 1) / SEAM_SCALE;
+        mLabels = new short[mLabelWidth * mLabelHeight];
+        int[] best = new int[mLabels.length];
+        int[] dist = new int[mLabels.length];
+
+        Arrays.fill(mLabels, (short) -1);
+
+        EquirectangularRemapper lowRes = new EquirectangularRemapper(mLabelWidth, mLabelHeight);
+        try {
+            for (int i = 0; i < mSources.size(); i++) {
+                boolean[] coverage = lowRes.getCoverage(mSources.get(i));
+                distanceTransform(coverage, dist, mLabelWidth, mLabelHeight);
+
+                for (int j = 0; j < dist.length; j++) {
+                    if (dist[j] > best[j]) {
+                        best[j] = dist[j];
+                        mLabels[j] = (short) i;
+                    }
+                }
+            }
+        } finally {
+            lowRes.release();
+        }
+    }
+
+    /**
+     * Two-pass chamfer distance of every covered cell to the closest uncovered cell
+     */
+    private static void distanceTransform(boolean[] coverage, int[] dist, int w, int h) {
+        final int far = Integer.MAX_VALUE / 2;
+
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int i = y * w + x;
+                if (!coverage[i]) {
+                    dist[i] = 0;
+                    continue;
+                }
+
+                int d = far;
+                if (x > 0) d = Math.min(d, dist[i - 1] + DIST_STRAIGHT);
+                if (y > 0) {
+                    d = Math.min(d, dist[i - w] + DIST_STRAIGHT);
+                    if (x > 0) d = Math.min(d, dist[i - w - 1] + DIST_DIAGONAL);
+                    if (x < w - 1) d = Math.min(d, dist[i - w + 1] + DIST_DIAGONAL);
+                }
+                dist[i] = d;
+            }
+        }
+
+        for (int y = h - 1; y >= 0; y--) {
+            for (int x = w - 1; x >= 0; x--) {
+                int i = y * w + x;
+                int d = dist[i];
+                if (d == 0) continue;
+
+                if (x < w - 1) d = Math.min(d, dist[i + 1] + DIST_STRAIGHT);
+                if (y < h - 1) {
+                    d = Math.min(d, dist[i + w] + DIST_STRAIGHT);
+                    if (x < w - 1) d = Math.min(d, dist[i + w + 1] + DIST_DIAGONAL);
+                    if (x > 0) d = Math.min(d, dist[i + w - 1] + DIST_DIAGONAL);
+                }
+                dist[i] = d;
+            }
+        }
+
+        // Cells that never met an uncovered cell (a picture covering the whole canvas)
+        for (int i = 0; i < dist.length; i++) {
+            if (dist[i] >= far) dist[i] = 1;
+        }
+    }
+
+    private int getLabel(int x, int y) {
+        int lx = Math.min(x / SEAM_SCALE, mLabelWidth - 1);
+        int ly = Math.min(y / SEAM_SCALE, mLabelHeight - 1);
+        return mLabels[ly * mLabelWidth + lx];
+    }
+
+    /**
+     * Blends the pictures and streams the canvas rows to the sink. computeSeams() must have
+     * been called first.
+     *
+     * @param loader The provider of the pictures pixels
+     * @param sink The receiver of the rows
+     * @throws IOException
+     */
+    public void blend(SourceLoader loader, RowSink sink) throws IOException {
+        final int count = mSources.size();
+        EquirectangularRemapper.Source[] loaded = new EquirectangularRemapper.Source[count];
+
+        // Last band needing each picture, after which it can be dropped
+        int[] lastBand = new int[count];
+        for (int i = 0; i < count; i++) {
+            int bottom = mFootprints[i][1] + mFootprints[i][3] + mMargin;
+            lastBand[i] = Math.min((bottom - 1) / BAND_ROWS, (mHeight - 1) / BAND_ROWS);
+        }
+
+        // The blended pyramid spans the whole canvas width, which wraps around
+        Pyramid blended = new Pyramid(mWidth, mWindowRows, mLevels);
+        blended.wrap = true;
+        int[] output = new int[mWidth * BAND_ROWS];
+
+        for (int band = 0; band * BAND_ROWS < mHeight; band++) {
+            final int bandTop = band * BAND_ROWS;
+            final int windowTop = bandTop - mMargin;
+            blended.clear();
+
+            for (int i = 0; i < count; i++) {
+                int[] fp = mFootprints[i];
+                int top = Math.max(Math.max(0, windowTop), fp[1]);
+                int bottom = Math.min(Math.min(mHeight, windowTop + mWindowRows), fp[1] + fp[3]);
+                if (top >= bottom) continue;
+
+                if (loaded[i] == null) {
+                    loaded[i] = loader.load(i);
+                }
+                accumulate(i, loaded[i], windowTop, top, bottom, blended);
+            }
+
+            for (int i = 0; i < count; i++) {
+                if (lastBand[i] == band) {
+                    loaded[i] = null;
+                }
+            }
+
+            int rows = Math.min(BAND_ROWS, mHeight - bandTop);
+            collapse(blended, output, rows);
+            sink.writeRows(output, 0, mWidth, rows);
+        }
+    }
+
+    /**
+     * Remaps a picture on the current window, builds its pyramids and adds them, weighted by
+     * its seam mask, to the blended pyramid
+     */
+    private void accumulate(int index, EquirectangularRemapper.Source src, int windowTop,
+                            int top, int bottom, Pyramid blended) {
+        final int align = 1 << (mLevels - 1);
+        int[] fp = mFootprints[index];
+
+        // Columns of the footprint plus the filters margin, aligned on the coarsest level
+        int left = (int) Math.floor((fp[0] - mMargin) / (double) align) * align;
+        int right = (int) Math.ceil((fp[0] + fp[2] + mMargin) / (double) align) * align;
+        boolean wrap = false;
+        if (right - left >= mWidth) {
+            left = 0;
+            right = mWidth;
+            wrap = true;
+        }
+        int width = right - left;
+        left = ((left % mWidth) + mWidth) % mWidth;
+
+        EquirectangularRemapper.Layer layer = mRemapper.remap(src, left, top, width,
+                bottom - top);
+
+        // Level 0 of the color, coverage and seam mask pyramids
+        Pyramid pyramid = new Pyramid(layer.width, mWindowRows, mLevels);
+        float[] r = pyramid.r[0], g = pyramid.g[0], b = pyramid.b[0];
+        float[] alpha = pyramid.alpha[0], mask = pyramid.weight[0];
+
+        for (int row = 0; row < mWindowRows; row++) {
+            // Rows past the poles replicate the edge rows
+            int y = Math.max(0, Math.min(mHeight - 1, windowTop + row));
+            if (y < top || y >= bottom) continue;
+
+            int in = (y - top) * layer.width;
+            int out = row * layer.width;
+            for (int col = 0; col < layer.width; col++, in++, out++) {
+                int color = layer.pixels[in];
+                if ((color >>> 24) == 0) continue;
+
+                r[out] = (color >> 16) & 0xFF;
+                g[out] = (color >> 8) & 0xFF;
+                b[out] = color & 0xFF;
+                alpha[out] = 1.0f;
+
+                int x = (left + col) % mWidth;
+                mask[out] = (getLabel(x, y) == index) ? 1.0f : OFF_SEAM_WEIGHT;
+            }
+        }
+
+        pyramid.build(wrap);
+        blended.add(pyramid, left);
+    }
+
+    /**
+     * Normalizes the blended pyramid, collapses it and converts the output rows of the
+     * window to ARGB
+     */
+    private void collapse(Pyramid blended, int[] output, int rows) {
+        blended.normalize();
+
+        for (int level = mLevels - 2; level >= 0; level--) {
+            blended.addExpanded(level);
+        }
+
+        float[] r = blended.r[0], g = blended.g[0], b = blended.b[0];
+        float[] weight = blended.weight[0];
+        for (int row = 0; row < rows; row++) {
+            int in = (mMargin + row) * mWidth;
+            int out = row * mWidth;
+            for (int x = 0; x < mWidth; x++, in++, out++) {
+                if (weight[in] <= 0) {
+                    output[out] = 0xFF000000;
+                    continue;
+                }
+                output[out] = 0xFF000000 | (clamp(r[in]) << 16) | (clamp(g[in]) << 8)
+                        | clamp(b[in]);
+            }
+        }
+    }
+
+    private static int clamp(float value) {
+        int v = Math.round(value);
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    /**
+     * Color, coverage and weight pyramids of a window of the canvas. Levels are built with
+     * the 5-tap binomial filter; horizontal borders either wrap around or are clamped.
+     */
+    private static class Pyramid {
+        // Binomial filter taps
+        private final static float[] KERNEL = {1 / 16.0f, 4 / 16.0f, 6 / 16.0f, 4 / 16.0f,
+                1 / 16.0f};
+
+        final int levels;
+        final int[] widths;
+        final int[] heights;
+        final float[][] r, g, b, alpha, weight;
+        boolean wrap;
+
+        Pyramid(int width, int height, int levels) {
+            this.levels = levels;
+            widths = new int[levels];
+            heights = new int[levels];
+            r = new float[levels][];
+            g = new float[levels][];
+            b = new float[levels][];
+            alpha = new float[levels][];
+            weight = new float[levels][];
+
+            for (int i = 0; i < levels; i++) {
+                widths[i] = width >> i;
+                heights[i] = height >> i;
+                int size = widths[i] * heights[i];
+                r[i] = new float[size];
+                g[i] = new float[size];
+                b[i] = new float[size];
+                alpha[i] = new float[size];
+                weight[i] = new float[size];
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < levels; i++) {
+                Arrays.fill(r[i], 0);
+                Arrays.fill(g[i], 0);
+                Arrays.fill(b[i], 0);
+                Arrays.fill(weight[i], 0);
+            }
+        }
+
+        /**
+         * Turns level 0 into Gaussian then Laplacian pyramids. Colors are reduced with
+         * normalized convolution, so that the pixels a picture doesn't cover get the colors
+         * of its closest covered pixels instead of black, which would bleed across the seams.
+         */
+        void build(boolean wrap) {
+            this.wrap = wrap;
+
+            for (int i = 1; i < levels; i++) {
+                int w = widths[i - 1], h = heights[i - 1];
+                premultiply(i - 1);
+                reduce(r[i - 1], w, h, r[i]);
+                reduce(g[i - 1], w, h, g[i]);
+                reduce(b[i - 1], w, h, b[i]);
+                reduce(alpha[i - 1], w, h, alpha[i]);
+                reduce(weight[i - 1], w, h, weight[i]);
+                unpremultiply(i - 1);
+                unpremultiply(i);
+            }
+
+            // Laplacian levels, from the finest, using the same normalized expansion
+            for (int i = 0; i < levels - 1; i++) {
+                int size = widths[i] * heights[i];
+                float[] expandedAlpha = new float[size];
+                float[] expanded = new float[size];
+                float[] premultiplied = new float[widths[i + 1] * heights[i + 1]];
+                expand(alpha[i + 1], widths[i + 1], heights[i + 1], expandedAlpha);
+
+                float[][] channels = {r[i], g[i], b[i]};
+                float[][] coarse = {r[i + 1], g[i + 1], b[i + 1]};
+                for (int c = 0; c < 3; c++) {
+                    for (int j = 0; j < premultiplied.length; j++) {
+                        premultiplied[j] = coarse[c][j] * alpha[i + 1][j];
+                    }
+                    expand(premultiplied, widths[i + 1], heights[i + 1], expanded);
+
+                    float[] channel = channels[c];
+                    for (int j = 0; j < size; j++) {
+                        float a = expandedAlpha[j];
+                        channel[j] -= (a > 1e-6f) ? expanded[j] / a : 0;
+                    }
+                }
+            }
+        }
+
+        private void premultiply(int level) {
+            float[] a = alpha[level];
+            for (int j = 0; j < a.length; j++) {
+                r[level][j] *= a[j];
+                g[level][j] *= a[j];
+                b[level][j] *= a[j];
+            }
+        }
+
+        private void unpremultiply(int level) {
+            float[] a = alpha[level];
+            for (int j = 0; j < a.length; j++) {
+                if (a[j] > 1e-6f) {
+                    float inv = 1.0f / a[j];
+                    r[level][j] *= inv;
+                    g[level][j] *= inv;
+                    b[level][j] *= inv;
+                } else {
+                    r[level][j] = g[level][j] = b[level][j] = 0;
+                }
+            }
+        }
+
+        /**
+         * Adds a picture pyramid, weighted by its mask pyramid. The picture columns start
+         * at the provided canvas column and wrap around.
+         */
+        void add(Pyramid other, int left) {
+            for (int i = 0; i < levels; i++) {
+                int w = widths[i], ow = other.widths[i];
+                int offset = left >> i;
+                float[] or = other.r[i], og = other.g[i], ob = other.b[i];
+                float[] otherWeight = other.weight[i];
+
+                for (int y = 0; y < other.heights[i]; y++) {
+                    int in = y * ow;
+                    int rowBase = y * w;
+                    int x = offset;
+                    for (int col = 0; col < ow; col++, in++) {
+                        float weight = otherWeight[in];
+                        if (weight > 0) {
+                            int out = rowBase + x;
+                            r[i][out] += or[in] * weight;
+                            g[i][out] += og[in] * weight;
+                            b[i][out] += ob[in] * weight;
+                            this.weight[i][out] += weight;
+                        }
+                        if (++x == w) x = 0;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Divides the accumulated levels by their weights
+         */
+        void normalize() {
+            for (int i = 0; i < levels; i++) {
+                float[] w = weight[i];
+                for (int j = 0; j < w.length; j++) {
+                    if (w[j] > 0) {
+                        float inv = 1.0f / w[j];
+                        r[i][j] *= inv;
+                        g[i][j] *= inv;
+                        b[i][j] *= inv;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Collapse step: adds the expansion of the coarser level to the given level
+         */
+        void addExpanded(int level) {
+            int size = widths[level] * heights[level];
+            float[] expanded = new float[size];
+            float[][] channels = {r[level], g[level], b[level]};
+            float[][] coarse = {r[level + 1], g[level + 1], b[level + 1]};
+
+            for (int c = 0; c < 3; c++) {
+                expand(coarse[c], widths[level + 1], heights[level + 1], expanded);
+                float[] channel = channels[c];
+                for (int j = 0; j < size; j++) {
+                    channel[j] += expanded[j];
+                }
+            }
+        }
+
+        private int column(int x, int w) {
+            if (wrap) {
+                return x < 0 ? x + w : (x >= w ? x - w : x);
+            }
+            return x < 0 ? 0 : (x >= w ? w - 1 : x);
+        }
+
+        private static int row(int y, int h) {
+            return y < 0 ? 0 : (y >= h ? h - 1 : y);
+        }
+
+        /**
+         * Filters and halves an image
+         */
+        private void reduce(float[] src, int w, int h, float[] dst) {
+            int dw = w >> 1, dh = h >> 1;
+            float[] tmp = new float[dw * h];
+
+            for (int y = 0; y < h; y++) {
+                int base = y * w;
+                for (int x = 0; x < dw; x++) {
+                    float sum = 0;
+                    for (int k = 0; k < 5; k++) {
+                        sum += KERNEL[k] * src[base + column(2 * x + k - 2, w)];
+                    }
+                    tmp[y * dw + x] = sum;
+                }
+            }
+
+            for (int y = 0; y < dh; y++) {
+                for (int x = 0; x < dw; x++) {
+                    float sum = 0;
+                    for (int k = 0; k < 5; k++) {
+                        sum += KERNEL[k] * tmp[row(2 * y + k - 2, h) * dw + x];
+                    }
+                    dst[y * dw + x] = sum;
+                }
+            }
+        }
+
+        /**
+         * Upsamples an image to twice its size, interpolating with the same filter
+         */
+        private void expand(float[] src, int w, int h, float[] dst) {
+            int dw = w << 1, dh = h << 1;
+            float[] tmp = new float[dw * h];
+
+            for (int y = 0; y < h; y++) {
+                int base = y * w;
+                for (int x = 0; x < w; x++) {
+                    float prev = src[base + column(x - 1, w)];
+                    float cur = src[base + x];
+                    float next = src[base + column(x + 1, w)];
+                    tmp[y * dw + 2 * x] = (prev + 6 * cur + next) / 8.0f;
+                    tmp[y * dw + 2 * x + 1] = (cur + next) / 2.0f;
+                }
+            }
+
+            for (int y = 0; y < h; y++) {
+                int prev = row(y - 1, h) * dw;
+                int cur = y * dw;
+                int next = row(y + 1, h) * dw;
+                for (int x = 0; x < dw; x++) {
+                    dst[2 * y * dw + x] = (tmp[prev + x] + 6 * tmp[cur + x] + tmp[next + x]) / 8.0f;
+                    dst[(2 * y + 1) * dw + x] = (tmp[cur + x] + tmp[next + x]) / 2.0f;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.picsphere;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring of timestamped orientation quaternions, written by a single thread (the sensor
+ * thread) and read by any number of threads without locking.
+ *
+ * Samples are immutable and published through an atomic array, so readers never see a
+ * partly written quaternion. The writer allocates one small object per sample, readers
+ * don't allocate. Doesn't depend on Android, so it can be fed recorded samples.
+ */
+public class OrientationRing {
+    private final static class Sample {
+        final long index;
+        final long timestamp;
+        final float[] quaternion;
+
+        Sample(long index, long timestamp, float x, float y, float z, float w) {
+            this.index = index;
+            this.timestamp = timestamp;
+            this.quaternion = new float[]{x, y, z, w};
+        }
+    }
+
+    private final AtomicReferenceArray<Sample> mSamples;
+    private final int mMask;
+    private volatile long mCount;
+
+    /**
+     * @param capacity The number of samples kept, rounded up to a power of two
+     */
+    public OrientationRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mSamples = new AtomicReferenceArray<Sample>(size);
+        mMask = size - 1;
+    }
+
+    /**
+     * Adds a sample. Must always be called from the same thread, with increasing timestamps.
+     *
+     * @param timestamp The time of the sample, in nanoseconds
+     */
+    public void add(long timestamp, float x, float y, float z, float w) {
+        final long index = mCount;
+        mSamples.set((int) (index & mMask), new Sample(index, timestamp, x, y, z, w));
+        mCount = index + 1;
+    }
+
+    /**
+     * Forgets all the samples. Must be called from the writer thread.
+     */
+    public void clear() {
+        for (int i = 0; i <= mMask; i++) {
+            mSamples.set(i, null);
+        }
+        mCount = 0;
+    }
+
+    /**
+     * Computes the orientation at a given time, interpolating between the samples around
+     * it, or extrapolating from the last two samples if it is past the latest one.
+     *
+     * @param time The time to compute the orientation at, in nanoseconds
+     * @param maxExtrapolation How far past the latest sample to extrapolate at most
+     * @param out The array to write the (x, y, z, w) quaternion into
+     * @return false if there is no sample yet
+     */
+    public boolean sample(long time, long maxExtrapolation, float[] out) {
+        final long count = mCount;
+        if (count == 0) return false;
+
+        Sample newest = get(count - 1);
+        Sample older = (count > 1) ? get(count - 2) : null;
+        if (newest == null) return false;
+
+        if (older == null || time >= newest.timestamp) {
+            time = Math.min(time, newest.timestamp + maxExtrapolation);
+            interpolate(older, newest, time, out);
+            return true;
+        }
+
+        // Walk back to the samples around the requested time, as far as the ring goes
+        final long oldest = Math.max(0, count - mMask);
+        for (long i = count - 2; i >= oldest; i--) {
+            Sample sample = get(i);
+            if (sample == null) break;
+
+            if (sample.timestamp <= time) {
+                interpolate(sample, newest, time, out);
+                return true;
+            }
+            newest = sample;
+        }
+
+        // Older than anything we have
+        System.arraycopy(newest.quaternion, 0, out, 0, 4);
+        return true;
+    }
+
+    /**
+     * @return The timestamp of the latest sample, or -1 if there is none
+     */
+    public long getLatestTimestamp() {
+        final long count = mCount;
+        Sample sample = (count > 0) ? get(count - 1) : null;
+        return (sample != null) ? sample.timestamp : -1;
+    }
+
+    /**
+     * @return The average rate of the samples in the ring, in Hz, or 0 if unknown
+     */
+    public float getSampleRate() {
+        final long count = mCount;
+        if (count < 2) return 0;
+
+        Sample newest = get(count - 1);
+        long first = Math.max(0, count - mMask);
+        Sample oldest = get(first);
+        if (newest == null || oldest == null || newest.timestamp <= oldest.timestamp) {
+            return 0;
+        }
+
+        return (count - 1 - first) * 1e9f / (newest.timestamp - oldest.timestamp);
+    }
+
+    /**
+     * Computes how fast the orientation is changing, from the latest sample and the first
+     * one at least a window older, which smooths out the sensor noise
+     *
+     * @param window The time span to measure over, in nanoseconds
+     * @return The angular speed in radians per second, or 0 if unknown
+     */
+    public float getAngularSpeed(long window) {
+        final long count = mCount;
+        if (count < 2) return 0;
+
+        Sample newest = get(count - 1);
+        if (newest == null) return 0;
+
+        Sample older = null;
+        final long oldest = Math.max(0, count - mMask);
+        for (long i = count - 2; i >= oldest; i--) {
+            Sample sample = get(i);
+            if (sample == null) break;
+
+            older = sample;
+            if (newest.timestamp - sample.timestamp >= window) break;
+        }
+
+        if (older == null || newest.timestamp <= older.timestamp) return 0;
+
+        float dot = 0;
+        for (int i = 0; i < 4; i++) {
+            dot += newest.quaternion[i] * older.quaternion[i];
+        }
+        float angle = 2.0f * (float) Math.acos(Math.min(1.0f, Math.abs(dot)));
+
+        return angle * 1e9f / (newest.timestamp - older.timestamp);
+    }
+
+    /**
+     * Returns the sample of the given index, or null if it has been overwritten
+     */
+    private Sample get(long index) {
+        Sample sample = mSamples.get((int) (index & mMask));
+        return (sample != null && sample.index == index) ? sample : null;
+    }
+
+    private static void interpolate(Sample a, Sample b, long time, float[] out) {
+        if (a == null || b.timestamp <= a.timestamp) {
+            System.arraycopy(b.quaternion, 0, out, 0, 4);
+            return;
+        }
+
+        float t = (float) (time - a.timestamp) / (b.timestamp - a.timestamp);
+        QuaternionMath.slerp(a.quaternion, 0, b.quaternion, 0, t, out, 0);
+    }
+}
@@ -19,18 +19,24 @@
 package org.cyanogenmod.focal.picsphere;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.util.Log;
 
+import org.cyanogenmod.focal.BinaryStager;
+import org.cyanogenmod.focal.JpegStreamEncoder;
 import org.cyanogenmod.focal.SnapshotManager;
 import org.cyanogenmod.focal.Util;
 import org.cyanogenmod.focal.XMPHelper;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
@@ -65,7 +71,11 @@ public class PicSphere {
     public final static int STEP_ENBLEND = 6;
     public final static int STEP_TOTAL = 6;
 
+    private final static int JPEG_QUALITY = 100;
+
     private float mHorizontalAngle;
+    private PicSphereMatcher mMatcher;
+    private boolean mSeeded;
 
     private Thread mOutputLogger = new Thread() {
         public void run() {
@@ -102,10 +112,20 @@ public class PicSphere {
     /**
      * Adds a picture to the sphere
      * @param pic The URI of the picture
+     * @param orientation The sensor orientation of the camera when the picture was shot,
+     *                    or null if unknown
      */
-    public void addPicture(Uri pic) {
-        mPictures.add(Uri.fromFile(new File(Util.getRealPathFromURI(mContext, pic))));
+    public void addPicture(Uri pic, PictureOrientation orientation) {
+        Uri file = Uri.fromFile(new File(Util.getRealPathFromURI(mContext, pic)));
+        mPictures.add(file);
         mPicturesUri.add(pic);
+
+        // Start matching the picture against the previous ones while the user keeps shooting
+        if (mMatcher == null) {
+            prepareTempPath();
+            mMatcher = new PicSphereMatcher(this, mTempPath, mHorizontalAngle);
+        }
+        mMatcher.addPicture(file.getPath(), orientation);
     }
 
     /**
@@ -114,6 +134,10 @@ public class PicSphere {
     public void removeLastPicture() {
         if (mPictures.size() > 0) {
             mPictures.remove(mPictures.size()-1);
+
+            if (mMatcher != null) {
+                mMatcher.removeLastPicture();
+            }
         }
     }
 
@@ -146,18 +170,19 @@ public class PicSphere {
             listener.onRenderStart(this);
         }
 
-        // Prepare a temporary directory
-        Log.d(TAG, "Preparing temp dir for PicSphere rendering...");
+        prepareTempPath();
 
-        File appFilesDir = mContext.getFilesDir();
-        mPathPrefix = appFilesDir.getAbsolutePath() + "/";
-        String tempPathStr = appFilesDir.getAbsolutePath() + "/" + System.currentTimeMillis();
-        mTempPath = new File(tempPathStr);
-        mTempPath.mkdir();
-        mProjectFile = mTempPath + "/project.pto";
+        // If the pictures were matched while shooting, we only have to wait for the last
+        // pairs and can skip the full autopano pass
+        boolean useMatches = false;
+        if (mMatcher != null) {
+            mMatcher.waitDone();
+            useMatches = mMatcher.isUsable(mPictures.size());
+        }
+        mSeeded = useMatches && mMatcher.isSeeded();
 
         // Wait till all images are saved and accessible
-        boolean allSaved = false;
+        boolean allSaved = useMatches;
         while (!allSaved) {
             allSaved = true;
             for (Uri pic : mPictures) {
@@ -180,12 +205,20 @@ public class PicSphere {
 
         // Process our images
         try {
-            if (!doAutopano()) return false;
+            if (useMatches) {
+                if (!doMergeMatches()) return false;
+            } else {
+                if (!doAutopano()) return false;
+            }
             //if (!doPtclean()) return false; ptclean seems to hang sometimes.. let's just skip it
             if (!doAutoOptimiser()) return false;
             if (!doPanoModify()) return false;
-            if (!doNona()) return false;
-            if (!doEnblend()) return false;
+            if (!doBlend()) {
+                // Fall back to the Hugin tools
+                if (!doNona()) return false;
+                if (!doEnblend()) return false;
+            }
+            if (!doSaveOutput()) return false;
         } catch (IOException ex) {
             Log.e(TAG, "Unable to process: ", ex);
             for (ProgressListener listener : mProgressListeners) {
@@ -205,6 +238,22 @@ public class PicSphere {
         return true;
     }
 
+    /**
+     * Prepares the temporary directory holding the project and intermediate files
+     */
+    private void prepareTempPath() {
+        if (mTempPath != null) return;
+
+        Log.d(TAG, "Preparing temp dir for PicSphere rendering...");
+
+        File appFilesDir = mContext.getFilesDir();
+        mPathPrefix = appFilesDir.getAbsolutePath() + "/";
+        String tempPathStr = appFilesDir.getAbsolutePath() + "/" + System.currentTimeMillis();
+        mTempPath = new File(tempPathStr);
+        mTempPath.mkdir();
+        mProjectFile = mTempPath + "/project.pto";
+    }
+
     private void removeTempFiles() {
         // Remove source pictures and temporary path
         for (Uri uri : mPicturesUri) {
@@ -216,6 +265,9 @@ public class PicSphere {
     }
 
     private void run(String command) throws IOException {
+        if (!BinaryStager.ensureStaged(mContext)) {
+            throw new IOException("Stitching binaries are unavailable");
+        }
         Log.v(TAG, "Running: " + command);
         Runtime rt = Runtime.getRuntime();
         Process proc = rt.exec(command, new String[]{"PATH="+mPathPrefix+":/system/bin",
@@ -232,7 +284,11 @@ public class PicSphere {
         }
     }
 
-    private void run(String[] commandWithArgs) throws IOException {
+    void run(String[] commandWithArgs) throws IOException {
+        if (!BinaryStager.ensureStaged(mContext)) {
+            throw new IOException("Stitching binaries are unavailable");
+        }
+        Log.v(TAG, "Running: " + commandWithArgs[0]);
         Runtime rt = Runtime.getRuntime();
         Process proc = rt.exec(commandWithArgs, new String[]{"PATH="+mPathPrefix+":/system/bin",
                 "LD_LIBRARY_PATH="+mPathPrefix+":/system/lib"});
@@ -300,6 +356,22 @@ public class PicSphere {
         return true;
     }
 
+    /**
+     * Writes the .pto project out of the control points matched while the user was shooting,
+     * which replaces the autopano pass over all the pictures.
+     *
+     * @return
+     * @throws IOException
+     */
+    private boolean doMergeMatches() throws IOException {
+        Log.d(TAG, "Merging incremental matches...");
+        notifyStep(STEP_AUTOPANO);
+        mMatcher.writeProject(new File(mProjectFile));
+
+        Log.d(TAG, "Merging incremental matches... done");
+        return true;
+    }
+
     /**
      * You could go ahead and optimise this project file straight away, but this can be a bit hit
      * and miss. First it is a good idea to clean up the control points. There are currently two
@@ -323,7 +395,8 @@ public class PicSphere {
     /**
      * Up to now, the project file simply contains an image list and control points, the images are
      * not yet aligned, you can do this by optimising geometric parameters with the autooptimiser
-     * tool
+     * tool. When the project was seeded with the sensor orientations, we only optimise from
+     * these positions instead of running the pairwise estimation from scratch.
      *
      * @return
      * @throws IOException
@@ -331,7 +404,8 @@ public class PicSphere {
     private boolean doAutoOptimiser() throws IOException {
         Log.d(TAG, "AutoOptimiser...");
         notifyStep(STEP_AUTOOPTIMISER);
-        run("autooptimiser -v " + mHorizontalAngle + " -p -o " + mProjectFile + " " + mProjectFile);
+        String mode = mSeeded ? " -n" : " -p";
+        run("autooptimiser -v " + mHorizontalAngle + mode + " -o " + mProjectFile + " " + mProjectFile);
         consumeProcLogs();
 
         Log.d(TAG, "AutoOptimiser... done");
@@ -395,9 +469,123 @@ public class PicSphere {
         }
 
         String jpegPath = mTempPath + "/final.jpg";
-        run("enblend --compression=100 -o " + jpegPath + " " + files);
+        run("enblend --compression=" + JPEG_QUALITY + " -o " + jpegPath + " " + files);
         consumeProcLogs();
 
+        Log.d(TAG, "Enblend... done");
+        return true;
+    }
+
+    /**
+     * Remaps and blends the pictures in-process, band by band, straight into the final JPEG.
+     * Unlike nona and enblend, the full size layers and canvas are never held in memory nor
+     * written to storage.
+     *
+     * @return false if the project can't be blended in-process, the Hugin tools should be
+     *         used instead
+     */
+    private boolean doBlend() {
+        Log.d(TAG, "Blending...");
+        notifyStep(STEP_NONA);
+
+        String jpegPath = mTempPath + "/final.jpg";
+        EquirectangularRemapper remapper = null;
+        OutputStream out = null;
+
+        try {
+            PtoProject project = PtoProject.read(new File(mProjectFile));
+            final List<PtoProject.Image> images = project.getImages();
+            final int width = project.getCanvasWidth();
+            final int height = project.getCanvasHeight();
+
+            List<EquirectangularRemapper.Source> sources =
+                    new ArrayList<EquirectangularRemapper.Source>();
+            for (PtoProject.Image image : images) {
+                sources.add(new EquirectangularRemapper.Source(null, image.width, image.height,
+                        image.hfov, image.yaw, image.pitch, image.roll));
+            }
+
+            remapper = new EquirectangularRemapper(width, height);
+            MultiBandBlender blender = new MultiBandBlender(remapper, sources);
+            blender.computeSeams();
+
+            notifyStep(STEP_ENBLEND);
+            out = new BufferedOutputStream(new FileOutputStream(jpegPath), 65536);
+            final JpegStreamEncoder encoder = new JpegStreamEncoder(out, width, height,
+                    JPEG_QUALITY);
+
+            blender.blend(new MultiBandBlender.SourceLoader() {
+                @Override
+                public EquirectangularRemapper.Source load(int index) throws IOException {
+                    return decodeSource(images.get(index), width);
+                }
+            }, new MultiBandBlender.RowSink() {
+                @Override
+                public void writeRows(int[] argb, int offset, int stride, int rows)
+                        throws IOException {
+                    encoder.writeRows(argb, offset, stride, rows);
+                }
+            });
+            encoder.finish();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to blend in-process", e);
+            return false;
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Not enough memory to blend in-process", e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            if (remapper != null) {
+                remapper.release();
+            }
+        }
+
+        Log.d(TAG, "Blending... done");
+        return true;
+    }
+
+    /**
+     * Decodes a picture, downsampled to about the resolution it will have on the canvas
+     */
+    private EquirectangularRemapper.Source decodeSource(PtoProject.Image image, int canvasWidth)
+            throws IOException {
+        float canvasPixelsPerDegree = canvasWidth / 360.0f;
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = 1;
+        while (image.width / (opts.inSampleSize * 2) / image.hfov >= canvasPixelsPerDegree) {
+            opts.inSampleSize *= 2;
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeFile(image.path, opts);
+        if (bitmap == null) {
+            throw new IOException("Unable to decode " + image.path);
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+
+        return new EquirectangularRemapper.Source(pixels, width, height, image.hfov,
+                image.yaw, image.pitch, image.roll);
+    }
+
+    /**
+     * Tags the final JPEG as a PhotoSphere and saves it to the gallery
+     *
+     * @return
+     * @throws IOException
+     */
+    private boolean doSaveOutput() throws IOException {
+        String jpegPath = mTempPath + "/final.jpg";
+
         // Apply PhotoSphere EXIF tags on the final jpeg
         BitmapFactory.Options opts = new BitmapFactory.Options();
         opts.inJustDecodeBounds = true;
@@ -438,8 +626,6 @@ public class PicSphere {
 
         Log.i(TAG, "PicSphere size: " + opts.outWidth + "x" + opts.outHeight);
         mSnapManager.saveImage(mOutputUri, mOutputTitle, 3000, 1500, 0, jpegData);
-
-        Log.d(TAG, "Enblend... done");
         return true;
     }
 
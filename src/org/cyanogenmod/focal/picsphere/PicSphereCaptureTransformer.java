@@ -26,20 +26,43 @@ import org.cyanogenmod.focal.SnapshotManager;
 import org.cyanogenmod.focal.feats.CaptureTransformer;
 import org.cyanogenmod.focal.ui.ShutterButton;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Capture Transformer for PicSphere that will store all shots to feed them to a new PicSphere
  * created by PicSphereManager
  */
-public class PicSphereCaptureTransformer extends CaptureTransformer {
+public class PicSphereCaptureTransformer extends CaptureTransformer
+        implements Capture3DRenderer.AutoCaptureListener {
     public final static String TAG = "PicSphereCaptureTransformer";
     private PicSphereManager mPicSphereManager;
     private PicSphere mPicSphere;
     private CameraActivity mContext;
+    private Map<SnapshotManager.SnapshotInfo, PictureOrientation> mShotOrientations;
 
     public PicSphereCaptureTransformer(CameraActivity context) {
         super(context.getCamManager(), context.getSnapManager());
         mContext = context;
         mPicSphereManager = context.getPicSphereManager();
+        mShotOrientations = new HashMap<SnapshotManager.SnapshotInfo, PictureOrientation>();
+        mPicSphereManager.getRenderer().setAutoCaptureListener(this);
+    }
+
+    @Override
+    public void onAutoCapture() {
+        mContext.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // The first shot is always up to the user, it starts the sphere
+                if (mPicSphere != null && mPicSphereManager.isAutoCaptureEnabled()) {
+                    Log.v(TAG, "Auto-capturing a snapshot");
+                    takeSnapshot();
+                } else {
+                    mPicSphereManager.getRenderer().cancelAutoCapture();
+                }
+            }
+        });
     }
 
     public void removeLastPicture() {
@@ -74,9 +97,7 @@ public class PicSphereCaptureTransformer extends CaptureTransformer {
             }
         }
 
-        mSnapManager.setBypassProcessing(true);
-        mSnapManager.queueSnapshot(true, 0);
-        mPicSphereManager.getRenderer().setCamPreviewVisible(false);
+        takeSnapshot();
 
         // Notify how to finish a sphere
         if (mPicSphere != null && mPicSphere.getPicturesCount() == 0) {
@@ -85,6 +106,12 @@ public class PicSphereCaptureTransformer extends CaptureTransformer {
 
     }
 
+    private void takeSnapshot() {
+        mSnapManager.setBypassProcessing(true);
+        mSnapManager.queueSnapshot(true, 0);
+        mPicSphereManager.getRenderer().setCamPreviewVisible(false);
+    }
+
     @Override
     public void onShutterButtonLongPressed(ShutterButton button) {
         if (mPicSphere != null) {
@@ -103,6 +130,8 @@ public class PicSphereCaptureTransformer extends CaptureTransformer {
 
     @Override
     public void onSnapshotShutter(SnapshotManager.SnapshotInfo info) {
+        // Remember where the camera was looking, to help the stitching of this shot
+        mShotOrientations.put(info, mPicSphereManager.getRenderer().getCameraOrientation());
         mPicSphereManager.getRenderer().addSnapshot(info.mThumbnail);
     }
 
@@ -118,8 +147,10 @@ public class PicSphereCaptureTransformer extends CaptureTransformer {
 
     @Override
     public void onSnapshotSaved(SnapshotManager.SnapshotInfo info) {
+        PictureOrientation orientation = mShotOrientations.remove(info);
+
         if (mPicSphere != null) {
-            mPicSphere.addPicture(info.mUri);
+            mPicSphere.addPicture(info.mUri, orientation);
             mContext.setPicSphereUndoVisible(true);
             mContext.setHelperText("");
         } else {
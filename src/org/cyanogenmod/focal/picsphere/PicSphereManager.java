@@ -22,21 +22,18 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.content.res.AssetManager;
 import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 import android.view.TextureView;
 import android.widget.FrameLayout;
 
+import org.cyanogenmod.focal.BinaryStager;
 import org.cyanogenmod.focal.CameraActivity;
 import org.cyanogenmod.focal.R;
+import org.cyanogenmod.focal.SettingsStorage;
 import org.cyanogenmod.focal.SnapshotManager;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -49,6 +46,7 @@ import java.util.List;
  */
 public class PicSphereManager implements PicSphere.ProgressListener {
     public final static String TAG = "PicSphereManager";
+    public final static String KEY_AUTO_CAPTURE = "PicSphereAutoCapture";
     private List<PicSphere> mPicSpheres;
     private CameraActivity mContext;
     private SnapshotManager mSnapManager;
@@ -58,6 +56,7 @@ public class PicSphereManager implements PicSphere.ProgressListener {
     private TextureView mGLSurfaceView;
     private Handler mHandler;
     private boolean mIsBound;
+    private boolean mAutoCapture;
 
     private ServiceConnection mServiceConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName className, IBinder service) {
@@ -84,10 +83,8 @@ public class PicSphereManager implements PicSphere.ProgressListener {
         mPicSpheres = new ArrayList<PicSphere>();
         mHandler = new Handler();
         mIsBound = false;
+        mAutoCapture = SettingsStorage.getAppSetting(context, KEY_AUTO_CAPTURE, "0").equals("1");
         doBindService();
-        new Thread() {
-            public void run() { copyBinaries(); }
-        }.start();
     }
 
     /**
@@ -95,6 +92,9 @@ public class PicSphereManager implements PicSphere.ProgressListener {
      * @return A PicSphere that is empty
      */
     public PicSphere createPicSphere() {
+        // Get the stitching binaries ready while the user is shooting
+        BinaryStager.ensureStagedAsync(mContext);
+
         PicSphere sphere = new PicSphere(mContext, mSnapManager);
         mPicSpheres.add(sphere);
         return sphere;
@@ -119,6 +119,29 @@ public class PicSphereManager implements PicSphere.ProgressListener {
         return mCapture3DRenderer;
     }
 
+    /**
+     * Returns the orientation tracking of the 3D renderer
+     * @return The sensor fusion, or null if the renderer hasn't been created
+     */
+    public SensorFusion getSensorFusion() {
+        if (mCapture3DRenderer == null) {
+            return null;
+        }
+
+        return mCapture3DRenderer.getSensorFusion();
+    }
+
+    /**
+     * Sets whether snapshots are taken automatically when the camera is held on a dot
+     */
+    public void setAutoCaptureEnabled(boolean enabled) {
+        mAutoCapture = enabled;
+    }
+
+    public boolean isAutoCaptureEnabled() {
+        return mAutoCapture;
+    }
+
     /**
      * Returns the progress of the currently rendering picsphere
      * @return The percentage of progress, or -1 if no picsphere is rendering
@@ -167,6 +190,8 @@ public class PicSphereManager implements PicSphere.ProgressListener {
 
     public void tearDown() {
         if (mCapture3DRenderer != null) {
+            // The renderer may still draw a few frames, don't let it trigger snapshots
+            mCapture3DRenderer.setAutoCaptureListener(null);
             mCapture3DRenderer.onPause();
             mCapture3DRenderer = null;
         }
@@ -198,57 +223,6 @@ public class PicSphereManager implements PicSphere.ProgressListener {
         return mPicSpheres.size();
     }
 
-    /**
-     * Copy the required binaries and libraries to the data folder
-     * @return
-     */
-    private boolean copyBinaries() {
-        try {
-            String files[] = {
-                    "autooptimiser", "autopano", "celeste", "enblend", "enfuse", "nona", "pano_modify",
-                    "ptclean", "tiffinfo", "align_image_stack",
-                    "libexiv2.so", "libglib-2.0.so", "libgmodule-2.0.so", "libgobject-2.0.so",
-                    "libgthread-2.0.so", "libjpeg.so", "libpano13.so", "libtiff.so", "libtiffdecoder.so",
-                    "libvigraimpex.so"
-            };
-
-            final AssetManager am = mContext.getAssets();
-
-            for (String file : files) {
-                InputStream is = am.open("picsphere/" + file);
-
-                // Create the output file
-                File dir = mContext.getFilesDir();
-                File outFile = new File(dir, file);
-
-                if (outFile.exists())
-                    outFile.delete();
-
-                OutputStream os = new FileOutputStream(outFile);
-
-                // Copy the file
-                byte[] buffer = new byte[1024];
-                int read;
-                while ((read = is.read(buffer)) != -1) {
-                    os.write(buffer, 0, read);
-                }
-
-                if (!outFile.getName().endsWith(".so") && !outFile.setExecutable(true)) {
-                    return false;
-                }
-
-                os.flush();
-                os.close();
-                is.close();
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error copying libraries and binaries", e);
-            return false;
-        }
-        return true;
-    }
-
-
     @Override
     public void onRenderStart(PicSphere sphere) {
 
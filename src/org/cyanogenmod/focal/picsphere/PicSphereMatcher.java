@@ -0,0 +1,351 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.picsphere;
+
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches the pictures of a PicSphere while the user is still shooting. Each new picture is
+ * matched against its predicted neighbours as soon as it is saved, and the pairwise control
+ * points are kept so that the final render only has to optimise and blend.
+ *
+ * When the sensor orientation of the pictures is known, only the pairs whose viewing
+ * directions are close enough to overlap are matched, and the orientations are used as the
+ * starting point of the optimiser.
+ */
+public class PicSphereMatcher {
+    public final static String TAG = "PicSphereMatcher";
+
+    // Number of previous shots a new picture is matched against
+    private final static int NEIGHBOURS_COUNT = 2;
+
+    // Maximum number of overlapping shots a new picture is matched against
+    private final static int MAX_OVERLAPPING_NEIGHBOURS = 4;
+
+    // Pictures are stored in the sensor orientation, which is rolled by 90° compared to the
+    // device (see the snapshot quads rotation in Capture3DRenderer)
+    private final static float IMAGE_ROLL = 90.0f;
+
+    private PicSphere mSphere;
+    private File mWorkDir;
+    private float mHorizontalAngle;
+    private List<PtoProject.Image> mImages;
+    private List<PictureOrientation> mOrientations;
+    private Map<String, List<PtoProject.ControlPoint>> mPairs;
+    private List<Runnable> mQueue;
+    private Thread mWorker;
+    private boolean mFailed;
+
+    public PicSphereMatcher(PicSphere sphere, File workDir, float horizontalAngle) {
+        mSphere = sphere;
+        mWorkDir = workDir;
+        mHorizontalAngle = horizontalAngle;
+        mImages = new ArrayList<PtoProject.Image>();
+        mOrientations = new ArrayList<PictureOrientation>();
+        mPairs = new HashMap<String, List<PtoProject.ControlPoint>>();
+        mQueue = new ArrayList<Runnable>();
+    }
+
+    /**
+     * Queues the matching of a new picture against its neighbours
+     * @param path The path of the picture, which must be already saved
+     * @param orientation The orientation of the camera when the picture was shot, or null
+     */
+    public void addPicture(final String path, final PictureOrientation orientation) {
+        queue(new Runnable() {
+            @Override
+            public void run() {
+                BitmapFactory.Options opts = new BitmapFactory.Options();
+                opts.inJustDecodeBounds = true;
+                BitmapFactory.decodeFile(path, opts);
+
+                int index;
+                synchronized (PicSphereMatcher.this) {
+                    index = mImages.size();
+                    mImages.add(new PtoProject.Image(path, opts.outWidth, opts.outHeight));
+                    mOrientations.add(orientation);
+                }
+
+                for (int neighbour : getNeighbours(index)) {
+                    matchPair(neighbour, index);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the removal of the last picture and of the matches involving it
+     */
+    public void removeLastPicture() {
+        queue(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PicSphereMatcher.this) {
+                    if (mImages.size() == 0) return;
+
+                    int index = mImages.size() - 1;
+                    mImages.remove(index);
+                    mOrientations.remove(index);
+
+                    List<String> stale = new ArrayList<String>();
+                    for (String key : mPairs.keySet()) {
+                        if (key.endsWith("-" + index)) {
+                            stale.add(key);
+                        }
+                    }
+                    for (String key : stale) {
+                        mPairs.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the indexes of the already matched pictures that are expected to overlap
+     * the provided picture. With sensor orientations, these are the closest pictures whose
+     * viewing direction is less than a field of view away, otherwise the previous shots.
+     */
+    private synchronized List<Integer> getNeighbours(int index) {
+        List<Integer> neighbours = new ArrayList<Integer>();
+        PictureOrientation orientation = mOrientations.get(index);
+
+        if (orientation == null) {
+            for (int i = Math.max(0, index - NEIGHBOURS_COUNT); i < index; i++) {
+                neighbours.add(i);
+            }
+            return neighbours;
+        }
+
+        List<Float> angles = new ArrayList<Float>();
+        int closest = -1;
+        float closestAngle = Float.MAX_VALUE;
+
+        for (int i = 0; i < index; i++) {
+            PictureOrientation other = mOrientations.get(i);
+            if (other == null) continue;
+
+            float angle = orientation.angleTo(other);
+            if (angle < closestAngle) {
+                closestAngle = angle;
+                closest = i;
+            }
+            if (angle > mHorizontalAngle) continue;
+
+            // Keep the list sorted by angle, closest first
+            int pos = 0;
+            while (pos < angles.size() && angles.get(pos) < angle) {
+                pos++;
+            }
+            angles.add(pos, angle);
+            neighbours.add(pos, i);
+        }
+
+        while (neighbours.size() > MAX_OVERLAPPING_NEIGHBOURS) {
+            neighbours.remove(neighbours.size() - 1);
+        }
+
+        // Always try to link the picture to the rest of the sphere
+        if (neighbours.isEmpty() && closest >= 0) {
+            neighbours.add(closest);
+        }
+
+        return neighbours;
+    }
+
+    /**
+     * Returns whether all the pictures have a sensor orientation that can seed the optimiser
+     */
+    public synchronized boolean isSeeded() {
+        if (mOrientations.isEmpty()) return false;
+
+        for (PictureOrientation orientation : mOrientations) {
+            if (orientation == null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs autopano on a single pair of pictures and stores the resulting control points
+     */
+    private void matchPair(int first, int second) {
+        String key = first + "-" + second;
+        PtoProject.Image image1, image2;
+
+        synchronized (this) {
+            if (mPairs.containsKey(key)) return;
+            image1 = mImages.get(first);
+            image2 = mImages.get(second);
+        }
+
+        File pairFile = new File(mWorkDir, "pair_" + key + ".pto");
+
+        try {
+            mSphere.run(new String[]{"autopano", "--ransac", "on", "--maxmatches", "30",
+                    "--keep-unrefinable", "off", "--projection", "2," + mHorizontalAngle,
+                    pairFile.getAbsolutePath(), image1.path, image2.path});
+
+            List<PtoProject.ControlPoint> points = new ArrayList<PtoProject.ControlPoint>();
+            if (pairFile.exists()) {
+                // Map the pair indexes (0 and 1) back to the sphere indexes
+                for (PtoProject.ControlPoint cp : PtoProject.readControlPoints(pairFile)) {
+                    cp.image1 = (cp.image1 == 0 ? first : second);
+                    cp.image2 = (cp.image2 == 0 ? first : second);
+                    points.add(cp);
+                }
+            }
+
+            Log.v(TAG, "Pair " + key + ": " + points.size() + " control points");
+
+            synchronized (this) {
+                mPairs.put(key, points);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to match pair " + key, e);
+            synchronized (this) {
+                mFailed = true;
+            }
+        } finally {
+            pairFile.delete();
+        }
+    }
+
+    private void queue(Runnable job) {
+        synchronized (this) {
+            mQueue.add(job);
+
+            if (mWorker == null) {
+                mWorker = new Thread() {
+                    public void run() {
+                        processQueue();
+                    }
+                };
+                mWorker.start();
+            }
+        }
+    }
+
+    private void processQueue() {
+        while (true) {
+            Runnable job;
+            synchronized (this) {
+                if (mQueue.isEmpty()) {
+                    // Nothing left to do, the worker is restarted on the next picture
+                    mWorker = null;
+                    notifyAll();
+                    return;
+                }
+                job = mQueue.remove(0);
+            }
+            job.run();
+        }
+    }
+
+    /**
+     * Blocks until every queued picture has been matched
+     */
+    public synchronized void waitDone() {
+        while (mWorker != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Returns whether the matches cover the provided number of pictures and can be used
+     * instead of a full autopano run. Every picture has to be linked to all the others
+     * through pairs with control points, or the optimizer can't place it.
+     */
+    public synchronized boolean isUsable(int picturesCount) {
+        if (mFailed || mImages.size() != picturesCount || picturesCount < 2) return false;
+
+        // Union-find over the pictures, joined by the pairs that have control points
+        int[] parents = new int[picturesCount];
+        for (int i = 0; i < picturesCount; i++) {
+            parents[i] = i;
+        }
+
+        int groups = picturesCount;
+        for (List<PtoProject.ControlPoint> points : mPairs.values()) {
+            if (points.size() == 0) continue;
+
+            PtoProject.ControlPoint cp = points.get(0);
+            int first = findRoot(parents, cp.image1);
+            int second = findRoot(parents, cp.image2);
+            if (first != second) {
+                parents[first] = second;
+                groups--;
+            }
+        }
+
+        if (groups > 1) {
+            Log.v(TAG, "Matches leave " + groups + " unlinked groups of pictures");
+        }
+        return groups == 1;
+    }
+
+    private static int findRoot(int[] parents, int index) {
+        while (parents[index] != index) {
+            parents[index] = parents[parents[index]];
+            index = parents[index];
+        }
+        return index;
+    }
+
+    /**
+     * Writes a project containing all the pictures and the pairwise control points gathered
+     * so far. Call waitDone() first.
+     *
+     * @param file The output .pto file
+     * @throws IOException
+     */
+    public synchronized void writeProject(File file) throws IOException {
+        PtoProject project = new PtoProject(mHorizontalAngle);
+        boolean seeded = isSeeded();
+
+        for (int i = 0; i < mImages.size(); i++) {
+            PtoProject.Image image = mImages.get(i);
+
+            // Initial position relative to the first picture, which is the optimiser anchor
+            if (seeded && i > 0) {
+                float[] angles = mOrientations.get(i).getRelativeAngles(mOrientations.get(0),
+                        IMAGE_ROLL);
+                image.yaw = angles[0];
+                image.pitch = angles[1];
+                image.roll = angles[2];
+            }
+            project.addImage(image);
+        }
+        for (List<PtoProject.ControlPoint> points : mPairs.values()) {
+            project.addControlPoints(points);
+        }
+        project.write(file);
+    }
+}
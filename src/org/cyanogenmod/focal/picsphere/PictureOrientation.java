@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.picsphere;
+
+/**
+ * The fused sensor orientation of the camera when a PicSphere picture was shot.
+ *
+ * It is stored as a camera-to-world rotation, where the camera looks along +Z with +Y up, and
+ * the world has +X east, +Y up and +Z north.
+ */
+public class PictureOrientation {
+    // Column-major 3x3: right, up and forward vectors of the camera in world space
+    private final float[] mMatrix = new float[9];
+
+    private PictureOrientation() {
+
+    }
+
+    /**
+     * Builds an orientation out of the rotation matrix of SensorFusion, which is remapped so
+     * that its X axis is the camera viewing direction and its Y axis the device X axis.
+     *
+     * @param rotationMatrix The 4x4 row-major remapped rotation matrix
+     * @return The camera orientation
+     */
+    public static PictureOrientation fromRotationMatrix(float[] rotationMatrix) {
+        PictureOrientation o = new PictureOrientation();
+        float[] r = rotationMatrix;
+        float[] m = o.mMatrix;
+
+        // Right: device X, which is the remapped Y axis (second column)
+        m[0] = r[1]; m[1] = r[9]; m[2] = r[5];
+        // Up: device Y, which is the opposite of the remapped Z axis (third column)
+        m[3] = -r[2]; m[4] = -r[10]; m[5] = -r[6];
+        // Forward: the remapped X axis (first column)
+        m[6] = r[0]; m[7] = r[8]; m[8] = r[4];
+
+        return o;
+    }
+
+    /**
+     * Returns the angle between the viewing directions of two pictures
+     *
+     * @param other The other picture orientation
+     * @return The angle, in degrees
+     */
+    public float angleTo(PictureOrientation other) {
+        float dot = mMatrix[6] * other.mMatrix[6] + mMatrix[7] * other.mMatrix[7]
+                + mMatrix[8] * other.mMatrix[8];
+        dot = Math.max(-1.0f, Math.min(1.0f, dot));
+        return (float) Math.toDegrees(Math.acos(dot));
+    }
+
+    /**
+     * Computes the Hugin yaw, pitch and roll of this picture relative to an anchor picture.
+     * Pictures are stored in the sensor orientation, which is rolled compared to the device
+     * frame, so the relative rotation is expressed in that rolled frame.
+     *
+     * @param anchor The orientation of the anchor (first) picture
+     * @param imageRoll The roll of the stored image relative to the device, in degrees
+     * @return {yaw, pitch, roll} in degrees: yaw is positive to the right, pitch is positive
+     *         upwards, and roll is positive when the camera is rolled clockwise
+     */
+    public float[] getRelativeAngles(PictureOrientation anchor, float imageRoll) {
+        double[] rel = new double[9];
+        double[] a = toDouble(anchor.mMatrix);
+        double[] b = toDouble(mMatrix);
+
+        // rel = anchor^T * this
+        for (int col = 0; col < 3; col++) {
+            for (int row = 0; row < 3; row++) {
+                rel[col * 3 + row] = a[row * 3] * b[col * 3] + a[row * 3 + 1] * b[col * 3 + 1]
+                        + a[row * 3 + 2] * b[col * 3 + 2];
+            }
+        }
+
+        // Express it in the image frame: rel' = C^T * rel * C, C rolling around the Z axis
+        double c = Math.cos(Math.toRadians(imageRoll));
+        double s = Math.sin(Math.toRadians(imageRoll));
+        double[] roll = {c, s, 0, -s, c, 0, 0, 0, 1};
+        double[] rollT = {c, -s, 0, s, c, 0, 0, 0, 1};
+        rel = multiply(rollT, multiply(rel, roll));
+
+        double fx = rel[6], fy = rel[7], fz = rel[8];
+        double ux = rel[3], uy = rel[4], uz = rel[5];
+
+        double yaw = Math.atan2(fx, fz);
+        double pitch = Math.asin(Math.max(-1.0, Math.min(1.0, fy)));
+
+        // Compare the up vector with the up and right vectors of a camera without any roll
+        double sy = Math.sin(yaw), cy = Math.cos(yaw);
+        double sp = Math.sin(pitch), cp = Math.cos(pitch);
+        double upDot = -ux * sp * sy + uy * cp - uz * sp * cy;
+        double rightDot = ux * cy - uz * sy;
+        double rollAngle = Math.atan2(rightDot, upDot);
+
+        return new float[]{(float) Math.toDegrees(yaw), (float) Math.toDegrees(pitch),
+                (float) Math.toDegrees(rollAngle)};
+    }
+
+    private static double[] toDouble(float[] m) {
+        double[] d = new double[m.length];
+        for (int i = 0; i < m.length; i++) {
+            d[i] = m[i];
+        }
+        return d;
+    }
+
+    /**
+     * Multiplies two column-major 3x3 matrices
+     */
+    private static double[] multiply(double[] l, double[] r) {
+        double[] out = new double[9];
+        for (int col = 0; col < 3; col++) {
+            for (int row = 0; row < 3; row++) {
+                out[col * 3 + row] = l[row] * r[col * 3] + l[3 + row] * r[col * 3 + 1]
+                        + l[6 + row] * r[col * 3 + 2];
+            }
+        }
+        return out;
+    }
+}
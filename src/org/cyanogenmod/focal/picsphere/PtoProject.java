@@ -0,0 +1,289 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.picsphere;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal reader/writer for Hugin's .pto project files. We only deal with the few lines
+ * the PicSphere pipeline needs: the panorama line, the image lines and the control points.
+ */
+public class PtoProject {
+    /**
+     * An input image of the project
+     */
+    public static class Image {
+        public String path;
+        public int width;
+        public int height;
+        public float yaw;
+        public float pitch;
+        public float roll;
+        public float hfov;
+
+        public Image(String path, int width, int height) {
+            this.path = path;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * A control point linking a pixel of image1 to a pixel of image2
+     */
+    public static class ControlPoint {
+        public int image1;
+        public int image2;
+        public float x1;
+        public float y1;
+        public float x2;
+        public float y2;
+
+        public ControlPoint(int image1, int image2, float x1, float y1, float x2, float y2) {
+            this.image1 = image1;
+            this.image2 = image2;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+        }
+    }
+
+    private List<Image> mImages;
+    private List<ControlPoint> mControlPoints;
+    private float mHorizontalAngle;
+    private int mCanvasWidth = 3000;
+    private int mCanvasHeight = 1500;
+
+    public PtoProject(float horizontalAngle) {
+        mImages = new ArrayList<Image>();
+        mControlPoints = new ArrayList<ControlPoint>();
+        mHorizontalAngle = horizontalAngle;
+    }
+
+    public void addImage(Image image) {
+        mImages.add(image);
+    }
+
+    public void addControlPoints(List<ControlPoint> points) {
+        mControlPoints.addAll(points);
+    }
+
+    public List<Image> getImages() {
+        return mImages;
+    }
+
+    public List<ControlPoint> getControlPoints() {
+        return mControlPoints;
+    }
+
+    public int getCanvasWidth() {
+        return mCanvasWidth;
+    }
+
+    public int getCanvasHeight() {
+        return mCanvasHeight;
+    }
+
+    /**
+     * Writes the project to a .pto file that the Hugin tools (autooptimiser, pano_modify,
+     * nona) can process. Yaw, pitch and roll of every image but the anchor are marked as
+     * variables to optimise, starting from the values set on the images.
+     *
+     * @param file The output file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("# hugin project file");
+            out.println("p f2 w" + mCanvasWidth + " h" + mCanvasHeight + " v360 n\"TIFF_m\"");
+            out.println("m g1 i0");
+            out.println();
+
+            for (Image image : mImages) {
+                out.println("i w" + image.width + " h" + image.height + " f0 v" + mHorizontalAngle
+                        + " r" + image.roll + " p" + image.pitch + " y" + image.yaw
+                        + " a0 b0 c0 d0 e0 n\"" + image.path + "\"");
+            }
+            out.println();
+
+            for (int i = 1; i < mImages.size(); i++) {
+                out.println("v y" + i);
+                out.println("v p" + i);
+                out.println("v r" + i);
+            }
+            out.println("v");
+            out.println();
+
+            for (ControlPoint cp : mControlPoints) {
+                out.println("c n" + cp.image1 + " N" + cp.image2 + " x" + cp.x1 + " y" + cp.y1
+                        + " X" + cp.x2 + " Y" + cp.y2 + " t0");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the panorama and image lines of a .pto file, typically after autooptimiser and
+     * pano_modify have set the final positions of the pictures. Only full equirectangular
+     * panoramas of rectilinear pictures are supported.
+     *
+     * @param file The project file to parse
+     * @return The project, without its control points
+     * @throws IOException If the file can't be read or isn't supported
+     */
+    public static PtoProject read(File file) throws IOException {
+        PtoProject project = new PtoProject(0);
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        // Per-image parameters, which may link to another image with "v=0" for instance
+        List<Map<Character, String>> params = new ArrayList<Map<Character, String>>();
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("p ")) {
+                    Map<Character, String> values = parseLine(line);
+                    if (!"2".equals(values.get('f')) || !"360".equals(values.get('v'))) {
+                        throw new IOException("Unsupported panorama: " + line);
+                    }
+                    project.mCanvasWidth = Integer.parseInt(values.get('w'));
+                    project.mCanvasHeight = Integer.parseInt(values.get('h'));
+                } else if (line.startsWith("i ")) {
+                    params.add(parseLine(line));
+                }
+            }
+
+            for (Map<Character, String> values : params) {
+                if (!"0".equals(getLinked(params, values, 'f'))) {
+                    throw new IOException("Unsupported image projection");
+                }
+
+                String path = values.get('n');
+                if (path != null && path.startsWith("\"") && path.endsWith("\"")) {
+                    path = path.substring(1, path.length() - 1);
+                }
+
+                Image image = new Image(path,
+                        Integer.parseInt(getLinked(params, values, 'w')),
+                        Integer.parseInt(getLinked(params, values, 'h')));
+                image.hfov = Float.parseFloat(getLinked(params, values, 'v'));
+                image.yaw = Float.parseFloat(getLinked(params, values, 'y'));
+                image.pitch = Float.parseFloat(getLinked(params, values, 'p'));
+                image.roll = Float.parseFloat(getLinked(params, values, 'r'));
+                project.addImage(image);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed project " + file);
+        } catch (NullPointerException e) {
+            throw new IOException("Missing parameter in project " + file);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Invalid image link in project " + file);
+        } finally {
+            reader.close();
+        }
+
+        return project;
+    }
+
+    /**
+     * Splits a project line into its single-letter parameters. Multi-letter parameters
+     * (TrX, Eev, Ra...) are ignored.
+     */
+    private static Map<Character, String> parseLine(String line) {
+        Map<Character, String> values = new HashMap<Character, String>();
+
+        for (String token : line.substring(2).trim().split("\\s+")) {
+            if (token.length() < 2 || Character.isLetter(token.charAt(1))) continue;
+            values.put(token.charAt(0), token.substring(1));
+        }
+
+        return values;
+    }
+
+    /**
+     * Returns an image parameter, following the "=index" links to other images
+     */
+    private static String getLinked(List<Map<Character, String>> params,
+                                     Map<Character, String> values, char key) {
+        String value = values.get(key);
+        if (value != null && value.startsWith("=")) {
+            value = params.get(Integer.parseInt(value.substring(1))).get(key);
+        }
+        return value;
+    }
+
+    /**
+     * Reads the regular (type 0) control points of a .pto file
+     *
+     * @param file The project file to parse
+     * @return The control points found, using the image indexes of the file
+     * @throws IOException
+     */
+    public static List<ControlPoint> readControlPoints(File file) throws IOException {
+        List<ControlPoint> points = new ArrayList<ControlPoint>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("c ")) continue;
+
+                int n1 = -1, n2 = -1, type = 0;
+                float x1 = 0, y1 = 0, x2 = 0, y2 = 0;
+
+                for (String token : line.substring(2).trim().split("\\s+")) {
+                    if (token.length() < 2) continue;
+                    String value = token.substring(1);
+
+                    switch (token.charAt(0)) {
+                        case 'n': n1 = Integer.parseInt(value); break;
+                        case 'N': n2 = Integer.parseInt(value); break;
+                        case 'x': x1 = Float.parseFloat(value); break;
+                        case 'y': y1 = Float.parseFloat(value); break;
+                        case 'X': x2 = Float.parseFloat(value); break;
+                        case 'Y': y2 = Float.parseFloat(value); break;
+                        case 't': type = Integer.parseInt(value); break;
+                    }
+                }
+
+                // Horizontal/vertical line control points (t1, t2...) are not pairwise matches
+                if (n1 >= 0 && n2 >= 0 && n1 != n2 && type == 0) {
+                    points.add(new ControlPoint(n1, n2, x1, y1, x2, y2));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed control point in " + file);
+        } finally {
+            reader.close();
+        }
+
+        return points;
+    }
+}
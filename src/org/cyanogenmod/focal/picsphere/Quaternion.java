@@ -18,8 +18,6 @@
 
 package org.cyanogenmod.focal.picsphere;
 
-import android.opengl.Matrix;
-
 /**
  * 3D Maths - Quaternion
  * Inspired from http://content.gpwiki.org/index.php/OpenGL%3aTutorials%3aUsing_Quaternions_to_represent_rotation
@@ -75,38 +73,62 @@ public class Quaternion {
         normalise();
     }
 
+    public void set(float x, float y, float z, float w) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.w = w;
+    }
+
     // Convert to Matrix
     public float[] getMatrix() {
-        float x2 = x * x;
-        float y2 = y * y;
-        float z2 = z * z;
-        float xy = x * y;
-        float xz = x * z;
-        float yz = y * z;
-        float wx = w * x;
-        float wy = w * y;
-        float wz = w * z;
-
-        // This calculation would be a lot more complicated for non-unit length quaternions
-        // Note: The constructor of Matrix4 expects the Matrix in column-major format like expected by
-        // OpenGL
-        return new float[]{1.0f - 2.0f * (y2 + z2), 2.0f * (xy - wz), 2.0f * (xz + wy), 0.0f,
-                2.0f * (xy + wz), 1.0f - 2.0f * (x2 + z2), 2.0f * (yz - wx), 0.0f,
-                2.0f * (xz - wy), 2.0f * (yz + wx), 1.0f - 2.0f * (x2 + y2), 0.0f,
-                0.0f, 0.0f, 0.0f, 1.0f};
+        float[] matrix = new float[16];
+        toMatrix(matrix, 0);
+        return matrix;
+    }
+
+    /**
+     * Writes the rotation matrix of this quaternion, in column-major format like expected
+     * by OpenGL. This would be a lot more complicated for non-unit length quaternions.
+     *
+     * @param matrix The array to write the 16 values of the matrix into
+     * @param offset The offset of the matrix in the array
+     */
+    public void toMatrix(float[] matrix, int offset) {
+        QuaternionMath.toMatrix(x, y, z, w, matrix, offset);
     }
 
     public Quaternion getConjugate() {
-        return new Quaternion(-x, -y, -z, w);
+        return conjugateInto(new Quaternion());
+    }
+
+    /**
+     * Writes the conjugate of this quaternion into out, which may be this quaternion
+     *
+     * @return out
+     */
+    public Quaternion conjugateInto(Quaternion out) {
+        out.set(-x, -y, -z, w);
+        return out;
     }
 
     // Multiplying q1 with q2 applies the rotation q2 to q1
     public Quaternion multiply(Quaternion rq) {
-        // the constructor takes its arguments as (x, y, z, w)
-        return new Quaternion(w * rq.x + x * rq.w + y * rq.z - z * rq.y,
+        return multiplyInto(rq, new Quaternion());
+    }
+
+    /**
+     * Multiplies this quaternion with rq and writes the result into out, which may be
+     * either of them
+     *
+     * @return out
+     */
+    public Quaternion multiplyInto(Quaternion rq, Quaternion out) {
+        out.set(w * rq.x + x * rq.w + y * rq.z - z * rq.y,
                 w * rq.y + y * rq.w + z * rq.x - x * rq.z,
                 w * rq.z + z * rq.w + x * rq.y - y * rq.x,
                 w * rq.w - x * rq.x - y * rq.y - z * rq.z);
+        return out;
     }
 
     // normalising a quaternion works similar to a vector. This method will not do anything
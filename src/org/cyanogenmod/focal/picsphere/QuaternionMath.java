@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.picsphere;
+
+/**
+ * Allocation-free quaternion maths on flat float arrays, for batches of orientations.
+ * Quaternions are stored as (x, y, z, w) every STRIDE floats, vectors as (x, y, z) every
+ * VECTOR_STRIDE floats, matrices as 16 column-major floats like OpenGL expects them.
+ *
+ * Outputs may alias inputs.
+ */
+public final class QuaternionMath {
+    public final static int STRIDE = 4;
+    public final static int VECTOR_STRIDE = 3;
+    public final static int MATRIX_STRIDE = 16;
+
+    private final static float SLERP_LINEAR_THRESHOLD = 0.9995f;
+
+    private static volatile float sBenchmarkSink;
+
+    private QuaternionMath() {
+    }
+
+    /**
+     * Multiplies the quaternion a with b, ie. applies the rotation b to a
+     */
+    public static void multiply(float[] a, int aOffset, float[] b, int bOffset,
+                                float[] out, int outOffset) {
+        final float ax = a[aOffset], ay = a[aOffset + 1], az = a[aOffset + 2],
+                aw = a[aOffset + 3];
+        final float bx = b[bOffset], by = b[bOffset + 1], bz = b[bOffset + 2],
+                bw = b[bOffset + 3];
+
+        out[outOffset] = aw * bx + ax * bw + ay * bz - az * by;
+        out[outOffset + 1] = aw * by + ay * bw + az * bx - ax * bz;
+        out[outOffset + 2] = aw * bz + az * bw + ax * by - ay * bx;
+        out[outOffset + 3] = aw * bw - ax * bx - ay * by - az * bz;
+    }
+
+    public static void conjugate(float[] q, int qOffset, float[] out, int outOffset) {
+        out[outOffset] = -q[qOffset];
+        out[outOffset + 1] = -q[qOffset + 1];
+        out[outOffset + 2] = -q[qOffset + 2];
+        out[outOffset + 3] = q[qOffset + 3];
+    }
+
+    /**
+     * Writes the rotation matrix of a unit quaternion
+     */
+    public static void toMatrix(float x, float y, float z, float w, float[] m, int offset) {
+        final float x2 = x * x;
+        final float y2 = y * y;
+        final float z2 = z * z;
+        final float xy = x * y;
+        final float xz = x * z;
+        final float yz = y * z;
+        final float wx = w * x;
+        final float wy = w * y;
+        final float wz = w * z;
+
+        m[offset] = 1.0f - 2.0f * (y2 + z2);
+        m[offset + 1] = 2.0f * (xy - wz);
+        m[offset + 2] = 2.0f * (xz + wy);
+        m[offset + 3] = 0.0f;
+        m[offset + 4] = 2.0f * (xy + wz);
+        m[offset + 5] = 1.0f - 2.0f * (x2 + z2);
+        m[offset + 6] = 2.0f * (yz - wx);
+        m[offset + 7] = 0.0f;
+        m[offset + 8] = 2.0f * (xz - wy);
+        m[offset + 9] = 2.0f * (yz + wx);
+        m[offset + 10] = 1.0f - 2.0f * (x2 + y2);
+        m[offset + 11] = 0.0f;
+        m[offset + 12] = 0.0f;
+        m[offset + 13] = 0.0f;
+        m[offset + 14] = 0.0f;
+        m[offset + 15] = 1.0f;
+    }
+
+    public static void toMatrix(float[] q, int qOffset, float[] m, int mOffset) {
+        toMatrix(q[qOffset], q[qOffset + 1], q[qOffset + 2], q[qOffset + 3], m, mOffset);
+    }
+
+    /**
+     * Rotates the vector v by the unit quaternion q, computing q * v * q'
+     */
+    public static void rotate(float[] q, int qOffset, float[] v, int vOffset,
+                              float[] out, int outOffset) {
+        final float qx = q[qOffset], qy = q[qOffset + 1], qz = q[qOffset + 2],
+                qw = q[qOffset + 3];
+        final float vx = v[vOffset], vy = v[vOffset + 1], vz = v[vOffset + 2];
+
+        // t = v * q', v being a pure quaternion (w = 0)
+        final float tx = vx * qw - vy * qz + vz * qy;
+        final float ty = vy * qw - vz * qx + vx * qz;
+        final float tz = vz * qw - vx * qy + vy * qx;
+        final float tw = vx * qx + vy * qy + vz * qz;
+
+        // out = q * t
+        out[outOffset] = qw * tx + qx * tw + qy * tz - qz * ty;
+        out[outOffset + 1] = qw * ty + qy * tw + qz * tx - qx * tz;
+        out[outOffset + 2] = qw * tz + qz * tw + qx * ty - qy * tx;
+    }
+
+    /**
+     * Spherically interpolates between the unit quaternions a and b, taking the shortest
+     * path. t can go past 1 to extrapolate the rotation from a to b.
+     */
+    public static void slerp(float[] a, int aOffset, float[] b, int bOffset, float t,
+                             float[] out, int outOffset) {
+        float cos = a[aOffset] * b[bOffset] + a[aOffset + 1] * b[bOffset + 1]
+                + a[aOffset + 2] * b[bOffset + 2] + a[aOffset + 3] * b[bOffset + 3];
+
+        // q and -q are the same rotation, go the short way
+        float sign = 1.0f;
+        if (cos < 0.0f) {
+            cos = -cos;
+            sign = -1.0f;
+        }
+
+        float wa, wb;
+        if (cos > SLERP_LINEAR_THRESHOLD) {
+            // Too close to divide by the sine, interpolate linearly then normalize below
+            wa = 1.0f - t;
+            wb = t;
+        } else {
+            final float theta = (float) Math.acos(cos);
+            final float sin = (float) Math.sin(theta);
+            wa = (float) Math.sin((1.0f - t) * theta) / sin;
+            wb = (float) Math.sin(t * theta) / sin;
+        }
+        wb *= sign;
+
+        final float x = wa * a[aOffset] + wb * b[bOffset];
+        final float y = wa * a[aOffset + 1] + wb * b[bOffset + 1];
+        final float z = wa * a[aOffset + 2] + wb * b[bOffset + 2];
+        final float w = wa * a[aOffset + 3] + wb * b[bOffset + 3];
+        final float length = (float) Math.sqrt(x * x + y * y + z * z + w * w);
+
+        out[outOffset] = x / length;
+        out[outOffset + 1] = y / length;
+        out[outOffset + 2] = z / length;
+        out[outOffset + 3] = w / length;
+    }
+
+    /**
+     * Multiplies count pairs of quaternions: out[i] = a[i] * b[i]
+     */
+    public static void multiplyAll(float[] a, float[] b, float[] out, int count) {
+        for (int i = 0, o = 0; i < count; i++, o += STRIDE) {
+            multiply(a, o, b, o, out, o);
+        }
+    }
+
+    /**
+     * Writes the rotation matrices of count quaternions
+     */
+    public static void toMatrices(float[] q, float[] m, int count) {
+        for (int i = 0; i < count; i++) {
+            toMatrix(q, i * STRIDE, m, i * MATRIX_STRIDE);
+        }
+    }
+
+    /**
+     * Rotates count vectors by the same quaternion
+     */
+    public static void rotateAll(float[] q, int qOffset, float[] v, float[] out, int count) {
+        for (int i = 0, o = 0; i < count; i++, o += VECTOR_STRIDE) {
+            rotate(q, qOffset, v, o, out, o);
+        }
+    }
+
+    /**
+     * Measures the steps of the PicSphere render loop, done with the allocating Quaternion
+     * and Vector3 methods and with their in-place versions. A step conjugates and multiplies
+     * two quaternions, rotates a vector and writes a matrix.
+     *
+     * @return The average time per step in nanoseconds, allocating first, then in place
+     */
+    public static long[] benchmark(int iterations) {
+        // Orientations of a sweep around the sphere, computed once
+        Quaternion[] orientations = new Quaternion[64];
+        for (int i = 0; i < orientations.length; i++) {
+            orientations[i] = new Quaternion();
+            orientations[i].fromEuler(i * 5.0f, i * 11.0f, 0);
+        }
+
+        // Warm up the code paths before measuring
+        sBenchmarkSink = stepsAllocating(orientations, 1000)
+                + stepsInPlace(orientations, 1000);
+
+        long start = System.nanoTime();
+        float sink = stepsAllocating(orientations, iterations);
+        final long allocating = (System.nanoTime() - start) / Math.max(1, iterations);
+
+        start = System.nanoTime();
+        sink += stepsInPlace(orientations, iterations);
+        final long inPlace = (System.nanoTime() - start) / Math.max(1, iterations);
+
+        // Keeps the results alive, so that the work isn't optimized away
+        sBenchmarkSink = sink;
+        return new long[]{allocating, inPlace};
+    }
+
+    private static float stepsAllocating(Quaternion[] orientations, int count) {
+        Quaternion camera = new Quaternion(0, 0.7071068f, 0, 0.7071068f);
+        Vector3 forward = new Vector3(0, 0, -1);
+        float sink = 0;
+
+        for (int i = 0; i < count; i++) {
+            final Quaternion q = orientations[i % orientations.length];
+            sink += q.getConjugate().multiply(camera).getMatrix()[0]
+                    + forward.multiply(q).x;
+        }
+        return sink;
+    }
+
+    private static float stepsInPlace(Quaternion[] orientations, int count) {
+        Quaternion camera = new Quaternion(0, 0.7071068f, 0, 0.7071068f);
+        Quaternion tmp = new Quaternion();
+        Vector3 forward = new Vector3(0, 0, -1);
+        Vector3 rotated = new Vector3();
+        float[] matrix = new float[MATRIX_STRIDE];
+        float sink = 0;
+
+        for (int i = 0; i < count; i++) {
+            final Quaternion q = orientations[i % orientations.length];
+            q.conjugateInto(tmp).multiplyInto(camera, tmp).toMatrix(matrix, 0);
+            sink += matrix[0] + forward.rotateInto(q, rotated).x;
+        }
+        return sink;
+    }
+}
@@ -25,13 +25,85 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import org.cyanogenmod.focal.SensorTracePlayer;
+import org.cyanogenmod.focal.SensorTraceRecorder;
+
+/**
+ * Tracks the orientation of the device from the rotation vector sensor.
+ *
+ * Samples are kept with their timestamp in a lock-free ring, and readers get the
+ * orientation at the time they need it: the time the frame being rendered will be
+ * presented, or the time a picture was taken. The sensor timestamps are mapped onto
+ * System.nanoTime(), as their clock differs across devices.
+ */
+public class SensorFusion implements SensorEventListener, SensorTracePlayer.Listener {
+    public final static String TAG = "SensorFusion";
+
+    // The rate is only a hint to the sensor HAL
+    private final static int SAMPLING_PERIOD_US = 5000;
+    private final static int RING_CAPACITY = 64;
+    // Frames are presented about one frame after they are rendered
+    private final static long PREDICTION_NS = 16000000L;
+    // Don't guess further than this past the latest sample
+    private final static long MAX_EXTRAPOLATION_NS = 50000000L;
+    // How much the clock offset is allowed to grow per sample, in case the sensor clock
+    // jumps back relative to ours
+    private final static long CLOCK_OFFSET_DRIFT_NS = 10000L;
+    // Span the angular speed is measured over
+    private final static long ANGULAR_SPEED_WINDOW_NS = 100000000L;
 
-public class SensorFusion implements SensorEventListener {
     private SensorManager mSensorManager = null;
-    float[] mOrientation = new float[3];
-    float[] mRotationMatrix;
+    private final OrientationRing mRing = new OrientationRing(RING_CAPACITY);
+    private boolean mHasClockOffset;
+    private long mClockOffset;
+    private volatile long mLatencyNs;
+    private volatile SensorTraceRecorder mRecorder;
+
+    /**
+     * Computes orientations out of the samples. Each thread reading the orientation should
+     * use its own reader, which doesn't allocate.
+     */
+    public class Reader {
+        private final float[] mQuaternion = new float[4];
+        private final float[] mRotationMatrix = new float[16];
+
+        /**
+         * Computes the remapped rotation matrix of the device at the given time
+         *
+         * @param time The time, in System.nanoTime() base
+         * @param matrix The 16 values array to write the matrix into
+         * @return false if no sensor data has been received yet
+         */
+        public boolean getRotationMatrix(long time, float[] matrix) {
+            if (!mRing.sample(time, MAX_EXTRAPOLATION_NS, mQuaternion)) {
+                return false;
+            }
+
+            // Get rotation matrix from the rotation vector (x, y, z, w)
+            SensorManager.getRotationMatrixFromVector(matrix, mQuaternion);
+
+            // Remap the axes
+            SensorManager.remapCoordinateSystem(matrix, SensorManager.AXIS_MINUS_Z,
+                    SensorManager.AXIS_X, matrix);
+            return true;
+        }
+
+        /**
+         * Computes the remapped orientation angles of the device at the given time
+         *
+         * @param time The time, in System.nanoTime() base
+         * @param orientation The array to write azimuth, pitch and roll into, in radians
+         * @return false if no sensor data has been received yet
+         */
+        public boolean getOrientation(long time, float[] orientation) {
+            if (!getRotationMatrix(time, mRotationMatrix)) {
+                return false;
+            }
+
+            SensorManager.getOrientation(mRotationMatrix, orientation);
+            return true;
+        }
+    }
 
     public SensorFusion(Context context) {
         // get sensorManager and initialise sensor listeners
@@ -39,7 +111,14 @@ public class SensorFusion implements SensorEventListener {
         initListeners();
     }
 
+    /**
+     * Creates a fusion that isn't connected to the sensors, to be fed with replayed samples
+     */
+    public SensorFusion() {
+    }
+
     public void onPauseOrStop() {
+        if (mSensorManager == null) return;
         mSensorManager.unregisterListener(this);
     }
 
@@ -50,26 +129,80 @@ public class SensorFusion implements SensorEventListener {
 
     // This function registers sensor listeners for the accelerometer, magnetometer and gyroscope.
     public void initListeners(){
+        if (mSensorManager == null) return;
         mSensorManager.registerListener(this,
                 mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR),
-                20000);
+                SAMPLING_PERIOD_US);
     }
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        if (mRotationMatrix == null) {
-            mRotationMatrix = new float[16];
+        final long arrivalTime = System.nanoTime();
+
+        SensorTraceRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.record(SensorTraceRecorder.TYPE_ROTATION_VECTOR, event.timestamp,
+                    arrivalTime, event.values);
         }
 
-        // Get rotation matrix from angles
-        SensorManager.getRotationMatrixFromVector(mRotationMatrix, event.values);
+        addRotationVector(event.timestamp, arrivalTime, event.values);
+    }
 
-        // Remap the axes
-        SensorManager.remapCoordinateSystem(mRotationMatrix, SensorManager.AXIS_MINUS_Z,
-                SensorManager.AXIS_X, mRotationMatrix);
+    /**
+     * Feeds a replayed sample. The sensors must be paused while replaying, as samples must
+     * all come from the same thread.
+     */
+    @Override
+    public void onSensorSample(int type, long timestamp, long arrivalTime, float[] values) {
+        if (type == SensorTraceRecorder.TYPE_ROTATION_VECTOR) {
+            addRotationVector(timestamp, arrivalTime, values);
+        }
+    }
+
+    /**
+     * Sets the recorder to record the sensor samples into, or null to stop recording
+     */
+    public void setRecorder(SensorTraceRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    /**
+     * Adds a rotation vector sample. Must be called from a single thread, the sensor one
+     * or the one replaying recorded samples.
+     *
+     * @param timestamp The timestamp of the sample, in the sensor clock
+     * @param arrivalTime When the sample was received, in System.nanoTime() base
+     * @param values The rotation vector, with or without its w component
+     */
+    public void addRotationVector(long timestamp, long arrivalTime, float[] values) {
+        // The fastest sample delivery gives the offset between the two clocks
+        long offset = arrivalTime - timestamp;
+        if (!mHasClockOffset || offset < mClockOffset) {
+            mClockOffset = offset;
+            mHasClockOffset = true;
+        } else {
+            mClockOffset += CLOCK_OFFSET_DRIFT_NS;
+        }
 
-        // Get back a remapped orientation vector
-        SensorManager.getOrientation(mRotationMatrix, mOrientation);
+        long time = timestamp + mClockOffset;
+        if (time <= mRing.getLatestTimestamp()) {
+            // Keep timestamps increasing when the offset moved back
+            time = mRing.getLatestTimestamp() + 1;
+        }
+        mLatencyNs = arrivalTime - time;
+
+        float x = values[0];
+        float y = values[1];
+        float z = values[2];
+        float w;
+        if (values.length >= 4) {
+            w = values[3];
+        } else {
+            float w2 = 1 - x * x - y * y - z * z;
+            w = (w2 > 0) ? (float) Math.sqrt(w2) : 0;
+        }
+
+        mRing.add(time, x, y, z, w);
     }
 
     @Override
@@ -77,12 +210,61 @@ public class SensorFusion implements SensorEventListener {
 
     }
 
-    public float[] getFusedOrientation() {
-        return mOrientation;
+    /**
+     * Creates a reader of the orientation, for the calling thread
+     */
+    public Reader createReader() {
+        return new Reader();
     }
 
+    /**
+     * Returns when the frame being rendered now will be presented, in System.nanoTime()
+     * base, to render the orientation the device will have by then
+     */
+    public long getPresentationTime() {
+        return System.nanoTime() + PREDICTION_NS;
+    }
+
+    /**
+     * Returns the current remapped rotation matrix
+     * @return A new rotation matrix, or null if no sensor data has been received yet
+     */
     public float[] getRotationMatrix() {
-        return mRotationMatrix;
+        float[] matrix = new float[16];
+        if (!createReader().getRotationMatrix(System.nanoTime(), matrix)) {
+            return null;
+        }
+        return matrix;
     }
 
+    /**
+     * @return The rate sensor samples are received at, in Hz, or 0 if unknown
+     */
+    public float getSampleRate() {
+        return mRing.getSampleRate();
+    }
+
+    /**
+     * @return How fast the device is rotating, in radians per second, or 0 if unknown
+     */
+    public float getAngularSpeed() {
+        return mRing.getAngularSpeed(ANGULAR_SPEED_WINDOW_NS);
+    }
+
+    /**
+     * @return How late the latest sample was received, compared to the fastest delivery
+     *         seen so far, in nanoseconds
+     */
+    public long getLatencyNs() {
+        return mLatencyNs;
+    }
+
+    /**
+     * @return How old the orientation is, compared to now, in nanoseconds, or -1 if there
+     *         is no sample yet
+     */
+    public long getSampleAgeNs() {
+        long latest = mRing.getLatestTimestamp();
+        return (latest < 0) ? -1 : System.nanoTime() - latest;
+    }
 }
@@ -0,0 +1,439 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.picsphere;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Manages the textures of the PicSphere snapshots within a memory budget.
+ *
+ * Snapshots are downsampled to a power-of-two size matching their size on screen, and
+ * uploaded with mipmaps. When the budget is exceeded, the snapshots that have been out of
+ * view for the longest time are evicted. A texture a quarter of the size is then decoded
+ * in the background, and uploaded in their place if it fits the budget, to be evicted in
+ * turn if needed. They are uploaded at full size again once they get back into view.
+ *
+ * Only a JPEG copy of each downsampled snapshot stays on the heap: the bitmap is dropped
+ * once uploaded, and decoded again in the background, at full or half the size, when the
+ * texture has to be uploaded again.
+ *
+ * create and release can be called from any thread, everything else must be called from
+ * the GL thread.
+ */
+public class SnapshotTextureManager {
+    public final static String TAG = "SnapshotTextureManager";
+
+    private final static int LEVEL_NONE = 0;
+    private final static int LEVEL_REDUCED = 1;
+    private final static int LEVEL_FULL = 2;
+
+    private final static int MAX_TEXTURE_SIZE = 1024;
+    private final static int DEFAULT_TEXTURE_SIZE = 512;
+    // Uploads are spread over frames to avoid hitches when turning around
+    private final static int MAX_UPLOADS_PER_FRAME = 2;
+    private final static int SOURCE_JPEG_QUALITY = 90;
+
+    /**
+     * The texture of a snapshot
+     */
+    public class Texture {
+        private Bitmap mSource;
+        private int mSourceLevel = LEVEL_NONE;
+        private boolean mOwnsSource;
+        private byte[] mSourceJpeg;
+        private boolean mLoading;
+        private int mLoadLevel = LEVEL_NONE;
+        private boolean mReleased;
+        private int mId;
+        private int mLevel = LEVEL_NONE;
+        private int mBytes;
+        private boolean mInView = true;
+        private long mLastSeenFrame;
+
+        /**
+         * @return The GL texture name, or 0 if the texture isn't uploaded
+         */
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * Reports whether the snapshot is in view for the frame being drawn
+         */
+        public void setInView(boolean inView) {
+            mInView = inView;
+            if (inView) {
+                mLastSeenFrame = mFrame;
+            }
+        }
+    }
+
+    private final long mBudgetBytes;
+    private final List<Texture> mTextures;
+    private final List<Texture> mReleased;
+    private int mTargetSize = DEFAULT_TEXTURE_SIZE;
+    private long mUsedBytes;
+    private long mFrame;
+    private int mEvictionCount;
+    private int[] mTextureName = new int[1];
+    private final List<Texture> mLoadQueue = new ArrayList<Texture>();
+    private Thread mLoaderThread;
+
+    public SnapshotTextureManager(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        mTextures = new ArrayList<Texture>();
+        mReleased = new ArrayList<Texture>();
+    }
+
+    /**
+     * Sets the size in pixels a snapshot takes at most on screen
+     */
+    public void setTargetSize(int size) {
+        mTargetSize = Math.min(MAX_TEXTURE_SIZE, size);
+    }
+
+    /**
+     * Creates the texture of a snapshot. The bitmap is downsampled and compressed right away,
+     * it isn't modified or recycled.
+     */
+    public Texture create(Bitmap bitmap) {
+        int width = nearestPowerOfTwo(Math.min(mTargetSize, bitmap.getWidth()));
+        int height = nearestPowerOfTwo(Math.min(mTargetSize,
+                bitmap.getHeight() * width / bitmap.getWidth()));
+
+        Texture texture = new Texture();
+        if (width == bitmap.getWidth() && height == bitmap.getHeight()) {
+            texture.mSource = bitmap;
+        } else {
+            texture.mSource = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            texture.mOwnsSource = (texture.mSource != bitmap);
+        }
+        texture.mSourceLevel = LEVEL_FULL;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        texture.mSource.compress(Bitmap.CompressFormat.JPEG, SOURCE_JPEG_QUALITY, baos);
+        texture.mSourceJpeg = baos.toByteArray();
+
+        synchronized (mTextures) {
+            mTextures.add(texture);
+        }
+        return texture;
+    }
+
+    /**
+     * Releases the texture of a snapshot. It will be deleted on the next update.
+     */
+    public void release(Texture texture) {
+        synchronized (mTextures) {
+            if (mTextures.remove(texture)) {
+                texture.mReleased = true;
+                mReleased.add(texture);
+            }
+        }
+    }
+
+    /**
+     * Forgets about the uploaded textures, after the GL context has been lost. They will be
+     * uploaded again when they are in view.
+     */
+    public void invalidate() {
+        synchronized (mTextures) {
+            for (Texture texture : mTextures) {
+                texture.mId = 0;
+                texture.mLevel = LEVEL_NONE;
+                texture.mBytes = 0;
+            }
+            for (Texture texture : mReleased) {
+                texture.mId = 0;
+                texture.mBytes = 0;
+            }
+            mUsedBytes = 0;
+        }
+    }
+
+    /**
+     * Deletes the released textures, uploads the ones that got into view and brings the
+     * usage back within the budget. Called once per frame, before drawing.
+     */
+    public void update() {
+        synchronized (mTextures) {
+            mFrame++;
+
+            for (int i = 0; i < mReleased.size(); i++) {
+                Texture texture = mReleased.get(i);
+                deleteTexture(texture);
+                dropSource(texture);
+                texture.mSourceJpeg = null;
+            }
+            mReleased.clear();
+
+            int uploads = 0;
+            for (int i = 0; i < mTextures.size() && uploads < MAX_UPLOADS_PER_FRAME; i++) {
+                Texture texture = mTextures.get(i);
+                if (texture.mInView && texture.mLevel != LEVEL_FULL) {
+                    if (texture.mSourceLevel != LEVEL_FULL) {
+                        // Not decoded yet, or only at the reduced size
+                        dropSource(texture);
+                        requestLoad(texture, LEVEL_FULL);
+                        continue;
+                    }
+
+                    upload(texture);
+                    dropSource(texture);
+                    uploads++;
+                }
+            }
+
+            // Swap the reduced textures decoded for the evicted snapshots in, if they fit
+            for (int i = 0; i < mTextures.size() && uploads < MAX_UPLOADS_PER_FRAME; i++) {
+                Texture texture = mTextures.get(i);
+                if (!texture.mInView && texture.mSourceLevel == LEVEL_REDUCED) {
+                    if (texture.mLevel == LEVEL_NONE
+                            && mUsedBytes + getBytes(texture.mSource) <= mBudgetBytes) {
+                        upload(texture);
+                        uploads++;
+                    }
+                    dropSource(texture);
+                }
+            }
+
+            while (mUsedBytes > mBudgetBytes) {
+                Texture victim = findVictim();
+                if (victim == null) {
+                    // Everything uploaded is in view
+                    break;
+                }
+
+                if (victim.mLevel == LEVEL_FULL) {
+                    // Comes back at a quarter of the size if there is room for it
+                    requestLoad(victim, LEVEL_REDUCED);
+                }
+                deleteTexture(victim);
+                mEvictionCount++;
+            }
+        }
+    }
+
+    /**
+     * @return The memory budget for the snapshot textures, in bytes
+     */
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * @return The memory currently used by the snapshot textures, in bytes
+     */
+    public long getUsedBytes() {
+        synchronized (mTextures) {
+            return mUsedBytes;
+        }
+    }
+
+    /**
+     * @return The number of snapshot textures currently uploaded
+     */
+    public int getUploadedCount() {
+        synchronized (mTextures) {
+            int count = 0;
+            for (Texture texture : mTextures) {
+                if (texture.mId != 0) count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return The number of textures evicted to stay within the budget so far
+     */
+    public int getEvictionCount() {
+        synchronized (mTextures) {
+            return mEvictionCount;
+        }
+    }
+
+    /**
+     * Returns the uploaded texture that has been out of view for the longest time
+     */
+    private Texture findVictim() {
+        Texture victim = null;
+        for (int i = 0; i < mTextures.size(); i++) {
+            Texture texture = mTextures.get(i);
+            if (!texture.mInView && texture.mId != 0
+                    && (victim == null || texture.mLastSeenFrame < victim.mLastSeenFrame)) {
+                victim = texture;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Uploads the decoded bitmap of a snapshot, at the level it was decoded for
+     */
+    private void upload(Texture texture) {
+        final Bitmap bitmap = texture.mSource;
+
+        if (texture.mId == 0) {
+            GLES20.glGenTextures(1, mTextureName, 0);
+            texture.mId = mTextureName[0];
+            if (texture.mId == 0) {
+                Log.e(TAG, "Unable to allocate a snapshot texture");
+                return;
+            }
+        }
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture.mId);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR_MIPMAP_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+
+        final int bytes = getBytes(bitmap);
+        mUsedBytes += bytes - texture.mBytes;
+        texture.mBytes = bytes;
+        texture.mLevel = texture.mSourceLevel;
+    }
+
+    /**
+     * Returns the memory a bitmap takes once uploaded
+     */
+    private static int getBytes(Bitmap bitmap) {
+        // The mip chain adds a third to the base level
+        return bitmap.getWidth() * bitmap.getHeight() * 4 * 4 / 3;
+    }
+
+    /**
+     * Drops the bitmap of an uploaded snapshot, which can be decoded again from its JPEG
+     * copy. Must be called with the lock held.
+     */
+    private void dropSource(Texture texture) {
+        if (texture.mSource != null && texture.mOwnsSource) {
+            texture.mSource.recycle();
+        }
+        texture.mSource = null;
+        texture.mSourceLevel = LEVEL_NONE;
+    }
+
+    /**
+     * Queues the decoding of the bitmap of a snapshot, at full size or at half the size for
+     * the reduced level. Must be called with the lock held.
+     */
+    private void requestLoad(Texture texture, int level) {
+        if (texture.mSourceJpeg == null) {
+            return;
+        }
+
+        // A decode already queued takes the latest level
+        texture.mLoadLevel = level;
+        if (texture.mLoading) {
+            return;
+        }
+
+        texture.mLoading = true;
+        mLoadQueue.add(texture);
+        if (mLoaderThread == null) {
+            mLoaderThread = new LoaderThread();
+            mLoaderThread.start();
+        }
+    }
+
+    /**
+     * Decodes the queued snapshots, and stops once there are none left
+     */
+    private class LoaderThread extends Thread {
+        public LoaderThread() {
+            super(TAG + "-Loader");
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                Texture texture;
+                byte[] jpeg;
+                int level;
+                synchronized (mTextures) {
+                    if (mLoadQueue.isEmpty()) {
+                        mLoaderThread = null;
+                        return;
+                    }
+                    texture = mLoadQueue.remove(0);
+                    jpeg = texture.mSourceJpeg;
+                    level = texture.mLoadLevel;
+                }
+
+                Bitmap bitmap = null;
+                if (jpeg != null) {
+                    BitmapFactory.Options opts = new BitmapFactory.Options();
+                    opts.inSampleSize = (level == LEVEL_REDUCED) ? 2 : 1;
+                    bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, opts);
+                }
+                if (bitmap == null) {
+                    Log.e(TAG, "Unable to decode a snapshot");
+                }
+
+                synchronized (mTextures) {
+                    texture.mLoading = false;
+                    if (bitmap == null) {
+                        // Don't try again every frame
+                        texture.mSourceJpeg = null;
+                    } else if (texture.mReleased) {
+                        bitmap.recycle();
+                    } else {
+                        dropSource(texture);
+                        texture.mSource = bitmap;
+                        texture.mSourceLevel = level;
+                        texture.mOwnsSource = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void deleteTexture(Texture texture) {
+        if (texture.mId != 0) {
+            mTextureName[0] = texture.mId;
+            GLES20.glDeleteTextures(1, mTextureName, 0);
+            texture.mId = 0;
+        }
+
+        mUsedBytes -= texture.mBytes;
+        texture.mBytes = 0;
+        texture.mLevel = LEVEL_NONE;
+    }
+
+    private static int nearestPowerOfTwo(int value) {
+        int lower = Integer.highestOneBit(Math.max(1, value));
+        int upper = lower << 1;
+        return (value - lower < upper - value) ? lower : upper;
+    }
+}
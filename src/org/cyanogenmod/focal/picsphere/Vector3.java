@@ -54,26 +54,47 @@ public class Vector3 {
         final float length = length();
 
         if(length != 0) {
-            y = x/length;
+            x = x/length;
             y = y/length;
             z = z/length;
         }
     }
 
+    public void set(float x, float y, float z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
     public Vector3 multiply(Quaternion quat) {
-        Vector3 vn = new Vector3(this);
-        vn.normalise();
+        return rotateInto(quat, new Vector3());
+    }
 
-        Quaternion vecQuat = new Quaternion(),
-                resQuat = new Quaternion();
-        vecQuat.x = vn.x;
-        vecQuat.y = vn.y;
-        vecQuat.z = vn.z;
-        vecQuat.w = 0.0f;
+    /**
+     * Rotates the normalised direction of this vector by quat, and writes the result
+     * into out, which may be this vector
+     *
+     * @return out
+     */
+    public Vector3 rotateInto(Quaternion quat, Vector3 out) {
+        float vx = x, vy = y, vz = z;
+        final float length = length();
+        if (length != 0) {
+            vx /= length;
+            vy /= length;
+            vz /= length;
+        }
 
-        resQuat = vecQuat.multiply(quat.getConjugate());
-        resQuat = quat.multiply(resQuat);
+        // t = v * quat', v being a pure quaternion
+        final float tx = vx * quat.w - vy * quat.z + vz * quat.y;
+        final float ty = vy * quat.w - vz * quat.x + vx * quat.z;
+        final float tz = vz * quat.w - vx * quat.y + vy * quat.x;
+        final float tw = vx * quat.x + vy * quat.y + vz * quat.z;
 
-        return new Vector3(resQuat.x, resQuat.y, resQuat.z);
+        // out = quat * t
+        out.set(quat.w * tx + quat.x * tw + quat.y * tz - quat.z * ty,
+                quat.w * ty + quat.y * tw + quat.z * tx - quat.x * tz,
+                quat.w * tz + quat.z * tw + quat.x * ty - quat.y * tx);
+        return out;
     }
 }
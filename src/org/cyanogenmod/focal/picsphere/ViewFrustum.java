@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.picsphere;
+
+/**
+ * View frustum extracted from a view-projection matrix, to cull objects on the CPU before
+ * drawing them. Doesn't depend on GL.
+ */
+public class ViewFrustum {
+    private final static int PLANES = 6;
+
+    // a, b, c, d of each plane, normals pointing inside
+    private final float[] mPlanes = new float[PLANES * 4];
+
+    /**
+     * Extracts the planes of the frustum
+     *
+     * @param m The column-major view-projection matrix, as used by OpenGL
+     */
+    public void setFromMatrix(float[] m) {
+        // Each plane is the 4th row of the matrix plus or minus one of the others, from
+        // -w <= x, y, z <= w in clip coordinates
+        for (int i = 0; i < 3; i++) {
+            setPlane(i * 2, m[3] + m[i], m[7] + m[4 + i], m[11] + m[8 + i], m[15] + m[12 + i]);
+            setPlane(i * 2 + 1, m[3] - m[i], m[7] - m[4 + i], m[11] - m[8 + i],
+                    m[15] - m[12 + i]);
+        }
+    }
+
+    /**
+     * Returns whether a sphere is at least partly inside the frustum
+     */
+    public boolean intersectsSphere(float x, float y, float z, float radius) {
+        for (int i = 0; i < PLANES * 4; i += 4) {
+            if (mPlanes[i] * x + mPlanes[i + 1] * y + mPlanes[i + 2] * z + mPlanes[i + 3]
+                    < -radius) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the radius of the sphere bounding a quad once transformed by its model matrix
+     *
+     * @param modelMatrix The column-major model matrix of the quad
+     * @param halfWidth Half the width of the quad in model space
+     * @param halfHeight Half the height of the quad in model space
+     */
+    public static float getBoundingRadius(float[] modelMatrix, float halfWidth,
+                                          float halfHeight) {
+        // The largest scale of the matrix, along any of the quad axes
+        float scaleX = length(modelMatrix[0], modelMatrix[1], modelMatrix[2]);
+        float scaleY = length(modelMatrix[4], modelMatrix[5], modelMatrix[6]);
+        float scale = Math.max(scaleX, scaleY);
+
+        return scale * length(halfWidth, halfHeight, 0);
+    }
+
+    private void setPlane(int index, float a, float b, float c, float d) {
+        float length = length(a, b, c);
+        int offset = index * 4;
+        mPlanes[offset] = a / length;
+        mPlanes[offset + 1] = b / length;
+        mPlanes[offset + 2] = c / length;
+        mPlanes[offset + 3] = d / length;
+    }
+
+    private static float length(float x, float y, float z) {
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+}
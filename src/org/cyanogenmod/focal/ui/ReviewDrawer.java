@@ -272,6 +272,25 @@ public class ReviewDrawer extends RelativeLayout {
         });
     }
 
+    /**
+     * Removes an image from the image ribbon, when it has been deleted from the MediaStore
+     *
+     * @param id The id of the image from the MediaStore
+     */
+    public void removeImageFromList(final int id) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mImages.remove(Integer.valueOf(id))) return;
+
+                if (mReviewedImageId == id) {
+                    mReviewedImageId = mImages.size() > 0 ? mImages.get(0) : 0;
+                }
+                mImagesListAdapter.notifyDataSetChanged();
+            }
+        });
+    }
+
     public void scrollToLatestImage() {
         mHandler.post(new Runnable() {
             @Override
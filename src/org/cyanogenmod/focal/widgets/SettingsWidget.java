@@ -32,6 +32,8 @@ import org.cyanogenmod.focal.CameraManager;
 import org.cyanogenmod.focal.R;
 import org.cyanogenmod.focal.SettingsStorage;
 import org.cyanogenmod.focal.SnapshotManager;
+import org.cyanogenmod.focal.feats.ZslCapture;
+import org.cyanogenmod.focal.picsphere.PicSphereManager;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -46,6 +48,8 @@ public class SettingsWidget extends WidgetBase {
     private static final String DRAWABLE_KEY_EXPO_RING = "_Nemesis_ExposureRing=true";
     private static final String DRAWABLE_KEY_AUTO_ENHANCE = "_Nemesis_AutoEnhance=true";
     private static final String DRAWABLE_KEY_RULE_OF_THIRDS = "_Nemesis_RuleOfThirds=true";
+    private static final String DRAWABLE_KEY_PICSPHERE_AUTO_CAPTURE = "_Nemesis_PicSphereAutoCapture=true";
+    private static final String DRAWABLE_KEY_SOFTWARE_ZSL = "_Nemesis_SoftwareZsl=true";
     private static final String KEY_SHOW_EXPOSURE_RING = "ShowExposureRing";
     private static final String KEY_ENABLE_AUTO_ENHANCE = "AutoEnhanceEnabled";
     private static final String KEY_ENABLE_RULE_OF_THIRDS = "RuleOfThirdsEnabled";
@@ -54,6 +58,8 @@ public class SettingsWidget extends WidgetBase {
     private WidgetOptionButton mToggleAutoEnhancer;
     private WidgetOptionButton mToggleWidgetsButton;
     private WidgetOptionButton mToggleRuleOfThirds;
+    private WidgetOptionButton mTogglePicSphereAutoCapture;
+    private WidgetOptionButton mToggleSoftwareZsl;
     private CameraActivity mContext;
     private CameraCapabilities mCapabilities;
     private List<String> mResolutionsName;
@@ -109,6 +115,45 @@ public class SettingsWidget extends WidgetBase {
         }
     };
 
+    private View.OnClickListener mPicSphereAutoCaptureClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View view) {
+            boolean enabled = !SettingsStorage.getAppSetting(mContext,
+                    PicSphereManager.KEY_AUTO_CAPTURE, "0").equals("1");
+
+            if (enabled) {
+                mTogglePicSphereAutoCapture.setActiveDrawable(DRAWABLE_KEY_PICSPHERE_AUTO_CAPTURE);
+            } else {
+                mTogglePicSphereAutoCapture.resetImage();
+            }
+
+            if (mContext.getPicSphereManager() != null) {
+                mContext.getPicSphereManager().setAutoCaptureEnabled(enabled);
+            }
+
+            SettingsStorage.storeAppSetting(mContext, PicSphereManager.KEY_AUTO_CAPTURE,
+                    enabled ? "1" : "0");
+        }
+    };
+
+    private View.OnClickListener mSoftwareZslClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View view) {
+            boolean enabled = !(mContext.getCaptureTransformer() instanceof ZslCapture);
+
+            if (enabled) {
+                mContext.setCaptureTransformer(new ZslCapture(mContext));
+                mToggleSoftwareZsl.setActiveDrawable(DRAWABLE_KEY_SOFTWARE_ZSL);
+            } else {
+                mContext.setCaptureTransformer(null);
+                mToggleSoftwareZsl.resetImage();
+            }
+
+            SettingsStorage.storeAppSetting(mContext, ZslCapture.KEY_ENABLED,
+                    enabled ? "1" : "0");
+        }
+    };
+
     private View.OnClickListener mAutoEnhanceClickListener = new View.OnClickListener() {
         @Override
         public void onClick(View view) {
@@ -316,6 +361,30 @@ public class SettingsWidget extends WidgetBase {
             }
 
             addViewToContainer(mToggleRuleOfThirds);
+
+            // Toggle software zero shutter lag
+            if (CameraActivity.getCameraMode() == CameraActivity.CAMERA_MODE_PHOTO) {
+                mToggleSoftwareZsl = new WidgetOptionButton(R.drawable.ic_widget_shutterspeed, context);
+                mToggleSoftwareZsl.setOnClickListener(mSoftwareZslClickListener);
+                mToggleSoftwareZsl.setHintText(mContext.getString(R.string.widget_settings_zsl));
+
+                // The stored state is applied by the activity when entering the photo mode
+                updateSoftwareZslToggle();
+
+                addViewToContainer(mToggleSoftwareZsl);
+            }
+        } else {
+            // Toggle PicSphere auto-capture
+            mTogglePicSphereAutoCapture = new WidgetOptionButton(R.drawable.ic_picsphere_marker, context);
+            mTogglePicSphereAutoCapture.setOnClickListener(mPicSphereAutoCaptureClickListener);
+            mTogglePicSphereAutoCapture.setHintText(mContext.getString(R.string.widget_settings_picsphere_autocapture));
+
+            // Restore auto-capture state
+            if (SettingsStorage.getAppSetting(mContext, PicSphereManager.KEY_AUTO_CAPTURE, "0").equals("1")) {
+                mTogglePicSphereAutoCapture.setActiveDrawable(DRAWABLE_KEY_PICSPHERE_AUTO_CAPTURE);
+            }
+
+            addViewToContainer(mTogglePicSphereAutoCapture);
         }
 
         // Choose widgets to appear
@@ -330,6 +399,26 @@ public class SettingsWidget extends WidgetBase {
         addViewToContainer(mToggleWidgetsButton);
     }
 
+    @Override
+    public void open() {
+        // Another widget may have replaced the zero shutter lag transformer meanwhile
+        updateSoftwareZslToggle();
+        super.open();
+    }
+
+    /**
+     * Shows the software zero shutter lag toggle as active if it's the active transformer
+     */
+    private void updateSoftwareZslToggle() {
+        if (mToggleSoftwareZsl == null) return;
+
+        if (mContext.getCaptureTransformer() instanceof ZslCapture) {
+            mToggleSoftwareZsl.setActiveDrawable(DRAWABLE_KEY_SOFTWARE_ZSL);
+        } else {
+            mToggleSoftwareZsl.resetImage();
+        }
+    }
+
     @Override
     public boolean isSupported(Camera.Parameters params) {
         int mode = CameraActivity.getCameraMode();